@@ -0,0 +1,61 @@
+package com.prodigi.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prodigi.object.Node;
+import com.prodigi.object.PatternMatchingTrie;
+import com.prodigi.object.TrieBuilder;
+
+/**
+ * Time to build a Trie from a whole corpus: one <code>addTemplate()</code>
+ * call per template, which publishes a snapshot each time, against
+ * TrieBuilder, which builds in parallel and publishes once.
+ *
+ * @author Wilkin Cheung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildBenchmark {
+
+    @Param({"whale.a", "hamster.b", "synthetic-10k", "synthetic-100k"})
+    public String corpus;
+
+    private List<String> templates;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        templates = TemplateCorpus.load(corpus).templates();
+    }
+
+    @Benchmark
+    public PatternMatchingTrie<Node> addTemplate() {
+        PatternMatchingTrie<Node> trie = new PatternMatchingTrie<>();
+        for (String template : templates) {
+            trie.addTemplate(template);
+        }
+        return trie;
+    }
+
+    @Benchmark
+    public PatternMatchingTrie<Node> trieBuilder() {
+        return TrieBuilder.build(templates);
+    }
+}
@@ -0,0 +1,96 @@
+package com.prodigi.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prodigi.object.MatchResult;
+import com.prodigi.object.Node;
+import com.prodigi.object.PatternMatchingTrie;
+import com.prodigi.object.TrieBuilder;
+
+/**
+ * Time of <code>PatternMatchingTrie.matches()</code> for urls that match a
+ * template, urls that match none, and urls that match the templates with the
+ * most variables. Each call takes the next of 1024 urls, so branch history
+ * and caches see a realistic mix rather than one url.
+ *
+ * @author Wilkin Cheung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchBenchmark {
+
+    private static final int MASK = TemplateCorpus.URL_COUNT - 1;
+
+    @Param({"whale.a", "hamster.a", "hamster.b", "hamster.c", "synthetic-10k", "synthetic-100k"})
+    public String corpus;
+
+    private PatternMatchingTrie<Node> trie;
+    private String[] hits;
+    private String[] misses;
+    private String[] wildcardHits;
+
+    /**
+     * Position in the urls, of each thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        final MatchResult result = new MatchResult();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TemplateCorpus templates = TemplateCorpus.load(corpus);
+        trie = TrieBuilder.build(templates.templates());
+        hits = templates.hits();
+        misses = templates.misses();
+        wildcardHits = templates.wildcardHits();
+
+        // a corpus whose urls do not do what they say would measure nothing
+        for (int i = 0; i < TemplateCorpus.URL_COUNT; i++) {
+            if (!trie.matches(hits[i]) || !trie.matches(wildcardHits[i])) {
+                throw new IllegalStateException("no template matches " + hits[i] + " or " + wildcardHits[i]);
+            }
+            if (trie.matches(misses[i])) {
+                throw new IllegalStateException("a template matches " + misses[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean hit(Cursor cursor) {
+        return trie.matches(hits[cursor.next++ & MASK]);
+    }
+
+    @Benchmark
+    public boolean miss(Cursor cursor) {
+        return trie.matches(misses[cursor.next++ & MASK]);
+    }
+
+    @Benchmark
+    public boolean wildcardHit(Cursor cursor) {
+        return trie.matches(wildcardHits[cursor.next++ & MASK]);
+    }
+
+    @Benchmark
+    public boolean wildcardMatchWithVariables(Cursor cursor) {
+        return trie.match(wildcardHits[cursor.next++ & MASK], cursor.result);
+    }
+}
@@ -0,0 +1,103 @@
+package com.prodigi.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prodigi.object.MappedTrie;
+import com.prodigi.object.Node;
+import com.prodigi.object.PatternMatchingTrie;
+import com.prodigi.object.TrieBuilder;
+import com.prodigi.object.TrieCodec;
+
+/**
+ * Round trips of a Trie through each way to store it: Java serialization,
+ * TrieCodec, and the MappedTrie binary format. Each round trip ends with a
+ * match, so the decoded Trie is known to be usable.
+ *
+ * @author Wilkin Cheung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"whale.a", "hamster.b", "synthetic-10k", "synthetic-100k"})
+    public String corpus;
+
+    private PatternMatchingTrie<Node> trie;
+    private String url;
+    private byte[] javaBytes;
+    private byte[] codecBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        TemplateCorpus templates = TemplateCorpus.load(corpus);
+        trie = TrieBuilder.build(templates.templates());
+        url = templates.hits()[0];
+        javaBytes = serialize(trie);
+        codecBytes = TrieCodec.getDefault().encode(trie);
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public boolean javaRoundTrip() throws IOException, ClassNotFoundException {
+        @SuppressWarnings("unchecked")
+        PatternMatchingTrie<Node> copy = (PatternMatchingTrie<Node>) deserialize(serialize(trie));
+        return copy.matches(url);
+    }
+
+    @Benchmark
+    public Object javaDeserialize() throws IOException, ClassNotFoundException {
+        return deserialize(javaBytes);
+    }
+
+    @Benchmark
+    public boolean codecRoundTrip() {
+        TrieCodec codec = TrieCodec.getDefault();
+        return codec.decode(codec.encode(trie)).matches(url);
+    }
+
+    @Benchmark
+    public PatternMatchingTrie<Node> codecDecode() {
+        return TrieCodec.getDefault().decode(codecBytes);
+    }
+
+    @Benchmark
+    public boolean mappedRoundTrip() {
+        return MappedTrie.wrap(ByteBuffer.wrap(MappedTrie.toBytes(trie.compile()))).matches(url);
+    }
+}
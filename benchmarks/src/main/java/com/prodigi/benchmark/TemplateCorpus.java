@@ -0,0 +1,184 @@
+package com.prodigi.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Templates and urls that benchmarks run against. A corpus is either a
+ * .templates file bundled with the tests, by name without extension, such as
+ * <code>whale.a</code>, or a synthetic set of a given size, such as
+ * <code>synthetic-10k</code>.
+ *
+ * Urls are built from templates by giving each variable a random number, so
+ * every hit url matches a template. Everything is seeded, so each run and
+ * each fork sees the same urls.
+ *
+ * @author Wilkin Cheung
+ */
+public final class TemplateCorpus {
+
+    // number of urls of each kind; a power of 2, so benchmarks can wrap with
+    // a mask
+    public static final int URL_COUNT = 1024;
+
+    private static final String SYNTHETIC = "synthetic-";
+
+    private static final Pattern VARIABLE = Pattern.compile("\\{[^}]*\\}");
+
+    private static final Pattern FIRST_SEGMENT = Pattern.compile("^(https?://[^/]+/)");
+
+    private final List<String> templates;
+
+    private final String[] hits;
+    private final String[] misses;
+    private final String[] wildcardHits;
+
+    private TemplateCorpus(List<String> templates) {
+        this.templates = Collections.unmodifiableList(templates);
+
+        Random random = new Random(42);
+        this.hits = new String[URL_COUNT];
+        this.misses = new String[URL_COUNT];
+        for (int i = 0; i < URL_COUNT; i++) {
+            hits[i] = expand(templates.get(random.nextInt(templates.size())), random);
+            // no template starts with this segment
+            misses[i] = FIRST_SEGMENT.matcher(hits[i]).replaceFirst("$1zz-missing/");
+        }
+
+        // the tenth of templates with the most variables
+        List<String> wildcardHeavy = new ArrayList<>(templates);
+        wildcardHeavy.sort(Comparator.comparingInt(TemplateCorpus::variableCount).reversed());
+        wildcardHeavy = wildcardHeavy.subList(0, Math.max(1, wildcardHeavy.size() / 10));
+        this.wildcardHits = new String[URL_COUNT];
+        for (int i = 0; i < URL_COUNT; i++) {
+            wildcardHits[i] = expand(wildcardHeavy.get(random.nextInt(wildcardHeavy.size())), random);
+        }
+    }
+
+    /**
+     * @param name name of .templates file without extension, such as
+     *             whale.a, or synthetic-N, where N may end with k
+     * @return corpus
+     */
+    public static TemplateCorpus load(String name) {
+        if (name.startsWith(SYNTHETIC)) {
+            String size = name.substring(SYNTHETIC.length());
+            int count = size.endsWith("k")
+                    ? Integer.parseInt(size.substring(0, size.length() - 1)) * 1000
+                    : Integer.parseInt(size);
+            return new TemplateCorpus(synthetic(count));
+        }
+        return new TemplateCorpus(read("/" + name + ".templates"));
+    }
+
+    /**
+     * Templates shaped like a large REST API: literal versions and
+     * resources, complete and partial wildcards, and query parameters
+     *
+     * @param count number of templates
+     * @return distinct templates
+     */
+    static List<String> synthetic(int count) {
+        List<String> templates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String base = "http://api.prodigi.com/v" + (i % 4) + "/service" + (i % 97)
+                    + "/resource" + (i / 97);
+            switch (i % 5) {
+                case 0:
+                    templates.add(base + "/{id}");
+                    break;
+                case 1:
+                    templates.add(base + "/{id}/items/{itemId}.json");
+                    break;
+                case 2:
+                    templates.add(base + "/{id}/logo");
+                    break;
+                case 3:
+                    templates.add(base + "/search?q={q}&page={page}&size={size}");
+                    break;
+                default:
+                    templates.add(base + "/{id}.(*,{fields});rev={rev}");
+                    break;
+            }
+        }
+        return templates;
+    }
+
+    private static List<String> read(String resource) {
+        InputStream in = TemplateCorpus.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalArgumentException("no such corpus: " + resource);
+        }
+        List<String> templates = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    templates.add(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return templates;
+    }
+
+    private static String expand(String template, Random random) {
+        Matcher matcher = VARIABLE.matcher(template);
+        StringBuffer url = new StringBuffer(template.length());
+        while (matcher.find()) {
+            matcher.appendReplacement(url, Integer.toString(1 + random.nextInt(99999)));
+        }
+        matcher.appendTail(url);
+        return url.toString();
+    }
+
+    private static int variableCount(String template) {
+        int count = 0;
+        for (int i = 0; i < template.length(); i++) {
+            if (template.charAt(i) == '{') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return templates of this corpus, in file order
+     */
+    public List<String> templates() {
+        return templates;
+    }
+
+    /**
+     * @return urls that each match a template
+     */
+    public String[] hits() {
+        return hits;
+    }
+
+    /**
+     * @return urls that match no template
+     */
+    public String[] misses() {
+        return misses;
+    }
+
+    /**
+     * @return urls that match the templates with the most variables
+     */
+    public String[] wildcardHits() {
+        return wildcardHits;
+    }
+}
@@ -0,0 +1,85 @@
+package com.prodigi.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prodigi.service.UriTemplateValidator;
+
+/**
+ * Baseline for MatchBenchmark: compare url against each template in turn with
+ * UriTemplateValidator, as a linked list of templates would. Templates are
+ * compiled once, by the cache of the validator, so only the scan is timed.
+ * synthetic-100k is left out; a miss there takes far too long per call.
+ *
+ * @author Wilkin Cheung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValidatorScanBenchmark {
+
+    private static final int MASK = TemplateCorpus.URL_COUNT - 1;
+
+    @Param({"whale.a", "hamster.a", "hamster.b", "hamster.c", "synthetic-10k"})
+    public String corpus;
+
+    private UriTemplateValidator validator;
+    private List<String> templates;
+    private String[] hits;
+    private String[] misses;
+
+    /**
+     * Position in the urls, of each thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TemplateCorpus corpusTemplates = TemplateCorpus.load(corpus);
+        templates = corpusTemplates.templates();
+        hits = corpusTemplates.hits();
+        misses = corpusTemplates.misses();
+        validator = new UriTemplateValidator(templates.size());
+        for (String template : templates) {
+            validator.compile(template);
+        }
+    }
+
+    private boolean scan(String url) {
+        for (String template : templates) {
+            if (validator.isMatch(url, template)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean hit(Cursor cursor) {
+        return scan(hits[cursor.next++ & MASK]);
+    }
+
+    @Benchmark
+    public boolean miss(Cursor cursor) {
+        return scan(misses[cursor.next++ & MASK]);
+    }
+}
@@ -0,0 +1,162 @@
+package com.prodigi.object;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.prodigi.service.CharPolicy;
+import com.prodigi.service.VariableFilter;
+
+/**
+ * CharPolicy of a Trie, and of single variables by name. Immutable; each
+ * snapshot of a Trie holds the one it is matched with.
+ *
+ * @author Wilkin Cheung
+ * @see PatternMatchingTrie#setCharPolicy(String, CharPolicy)
+ */
+final class CharPolicies {
+
+    static final CharPolicies DEFAULT =
+            new CharPolicies(CharPolicy.DEFAULT, Collections.<String, CharPolicy>emptyMap());
+
+    // no character allowed; what restore() starts from
+    private static final CharPolicy NONE = CharPolicy.UNRESERVED.reject(asciiChars())
+            .nonAscii(CharPolicy.NonAscii.REJECT);
+
+    // policy of variables not in byVariable
+    private final CharPolicy policy;
+
+    // policy of variables by name
+    private final Map<String, CharPolicy> byVariable;
+
+    private CharPolicies(CharPolicy policy, Map<String, CharPolicy> byVariable) {
+        this.policy = policy;
+        this.byVariable = byVariable;
+    }
+
+    private static String asciiChars() {
+        StringBuilder chars = new StringBuilder(128);
+        for (int c = 0; c < 128; c++) {
+            chars.append((char) c);
+        }
+        return chars.toString();
+    }
+
+    /**
+     * @param policy policy of all variables without their own
+     * @return new policies
+     */
+    CharPolicies with(CharPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+        return new CharPolicies(policy, byVariable);
+    }
+
+    /**
+     * @param variableName name of variable, for example "imageId"
+     * @param policy       policy of variable; null to use the policy of all
+     *                     variables again
+     * @return new policies
+     */
+    CharPolicies with(String variableName, CharPolicy policy) {
+        Map<String, CharPolicy> map = new HashMap<>(byVariable);
+        if (policy == null) {
+            map.remove(variableName);
+        } else {
+            map.put(variableName, policy);
+        }
+        return new CharPolicies(this.policy, map.isEmpty()
+                ? Collections.<String, CharPolicy>emptyMap()
+                : Collections.unmodifiableMap(map));
+    }
+
+    /**
+     * @return policies of variables by name; empty if none
+     */
+    Map<String, CharPolicy> byVariable() {
+        return byVariable;
+    }
+
+    /**
+     * @return policy of all variables without their own
+     */
+    CharPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * @param variableName name of variable
+     * @return policy of variable
+     */
+    CharPolicy policy(String variableName) {
+        if (byVariable.isEmpty()) {
+            return policy;
+        }
+        CharPolicy own = byVariable.get(variableName);
+        return (own == null) ? policy : own;
+    }
+
+    /**
+     * Filter that checks each variable of a template against its policy.
+     * Unless a variable has its own policy, this is the policy of all
+     * variables, and nothing is allocated.
+     *
+     * @param keyNames names of variables of template, from left to right
+     * @return filter
+     */
+    VariableFilter filter(final String[] keyNames) {
+        if (byVariable.isEmpty()) {
+            return policy;
+        }
+        return (index, s, start, end) -> policy(keyNames[index]).isValid(s, start, end);
+    }
+
+    /**
+     * Ascii characters allowed by policy, as a bitmap, so TrieCodec and
+     * MappedTrie can write a policy
+     *
+     * @param policy policy
+     * @param from   0 for 00-3F; 64 for 40-7F
+     * @return bit c - from set if ascii character c is allowed
+     */
+    static long asciiBits(CharPolicy policy, int from) {
+        long bits = 0;
+        for (int c = from; c < from + 64; c++) {
+            if (policy.isAllowed((char) c)) {
+                bits |= 1L << c;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Policy written by TrieCodec or MappedTrie
+     *
+     * @param low            bitmap of ascii characters 00-3F allowed
+     * @param high           bitmap of ascii characters 40-7F allowed
+     * @param nonAscii       rule for characters above ascii
+     * @param percentEncoded true if percent-encoded octets are allowed
+     * @return policy equal to the one written
+     */
+    static CharPolicy restore(long low, long high, CharPolicy.NonAscii nonAscii,
+                              boolean percentEncoded) {
+        StringBuilder allowed = new StringBuilder();
+        for (int c = 0; c < 128; c++) {
+            if (((c < 64 ? low : high) & (1L << c)) != 0) {
+                allowed.append((char) c);
+            }
+        }
+        CharPolicy policy = NONE.allow(allowed.toString()).nonAscii(nonAscii);
+        return percentEncoded ? policy.allowPercentEncoded() : policy;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("CharPolicies [policy=%s, byVariable=%s]", policy, byVariable);
+    }
+}
@@ -0,0 +1,621 @@
+package com.prodigi.object;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.prodigi.object.Node.Edge;
+import com.prodigi.object.Node.NodeType;
+import com.prodigi.service.UriTemplateValidator;
+
+/**
+ * Immutable node of CompiledTrie. Created from a builder
+ * <code>com.prodigi.object.Node</code> by <code>PatternMatchingTrie.compile()</code>.
+ *
+ * All fields are final, so a CompiledNode can be shared by many threads
+ * without locks. Matching a url never writes to a CompiledNode.
+ *
+ * Child nodes are indexed by value, so a literal url segment finds its child
+ * in O(1). Wildcard child nodes are also kept in a separate short array; they
+ * are the only children that are compared one by one.
+ *
+ * @author Wilkin Cheung
+ */
+final class CompiledNode {
+
+    private static final CompiledNode[] NO_WILDCARD_CHILDREN = new CompiledNode[0];
+
+    private static final LiteralIndex<CompiledNode[]> NO_QUERY_CHILDREN =
+            LiteralIndex.of(new LinkedHashMap<String, CompiledNode[]>());
+
+    static final String[] NO_KEY_NAMES = new String[0];
+
+    // Value of node
+    private final String value;
+
+    // @see Enum nodeType
+    private final NodeType nodeType;
+
+    // if wildcard, then use pattern matching; null otherwise
+    private final UriTemplateValidator.UriTemplate uriTemplatePart;
+
+    // names of variables in uriTemplatePart; empty if not wildcard
+    private final String[] keyNames;
+
+    // last element in template (ie. leaf node)
+    private final boolean isLeaf;
+
+    // first template that ends at this node; null if not leaf
+    private final String template;
+
+    // value attached to template; null if none
+    private final Object payload;
+
+    // number of urls that matched template, shared with the builder node;
+    // null if not leaf
+    private final LongAdder hits;
+
+    // all child nodes connected through forward slash, by value
+    private final LiteralIndex<CompiledNode> children;
+
+    // complete and partial wildcard child nodes
+    private final CompiledNode[] wildcardChildren;
+
+    // wildcard child nodes compared one by one; all but query children
+    private final CompiledNode[] scanChildren;
+
+    // path and query parameters of value, if this is a leaf with a query
+    // string and no child nodes; null otherwise
+    private final QueryTemplate query;
+
+    // child nodes with a QueryTemplate, by literal path before '?'
+    private final LiteralIndex<CompiledNode[]> queryChildren;
+
+    // child nodes with a QueryTemplate, whose path has variables
+    private final CompiledNode[] wildcardQueryChildren;
+
+    // rough heap size of this node and all nodes below it
+    private final long estimatedBytes;
+
+    /**
+     * Constructor. Copy builder node, and take the compiled copy of each child
+     * node. A child that has not changed since the last compile keeps its
+     * copy, so compiling after a change only copies the nodes on the path to
+     * the change.
+     *
+     * @param node builder node
+     */
+    CompiledNode(Node node) {
+        this.value = node.value();
+        this.nodeType = node.nodeType();
+        this.uriTemplatePart = node.uriTemplatePart();
+        this.isLeaf = node.isLeaf();
+        this.keyNames = (uriTemplatePart == null) ? NO_KEY_NAMES
+                : uriTemplatePart.getKeyNames().toArray(NO_KEY_NAMES);
+
+        Iterator<Map.Entry<String, Object>> leafTemplates =
+                node.leafTemplates().entrySet().iterator();
+        if (leafTemplates.hasNext()) {
+            Map.Entry<String, Object> first = leafTemplates.next();
+            this.template = first.getKey();
+            this.payload = first.getValue();
+        } else {
+            this.template = null;
+            this.payload = null;
+        }
+        this.hits = isLeaf ? node.hitCounter() : null;
+
+        Node.Children nodes = node.getChildrenOrEmpty(Edge.FORWARD_SLASH);
+        this.query = (isLeaf && nodes.all().isEmpty() && value.indexOf('?') != -1)
+                ? QueryTemplate.parse(value) : null;
+
+        Map<String, CompiledNode> byValue = new LinkedHashMap<>();
+        List<CompiledNode> wildcards = new ArrayList<>();
+        List<CompiledNode> scan = new ArrayList<>();
+        Map<String, List<CompiledNode>> queriesByPath = new LinkedHashMap<>();
+        List<CompiledNode> wildcardQueries = new ArrayList<>();
+
+        long bytes = 64 + stringBytes(value) + stringBytes(template) + (isLeaf ? 32 : 0);
+        if (uriTemplatePart != null) {
+            bytes += 128 + 2L * uriTemplatePart.toString().length();
+        }
+        if (query != null) {
+            bytes += 64 + 64L * query.paramCount();
+        }
+
+        for (Node child : nodes.all()) {
+            CompiledNode compiledChild = child.compiled();
+            bytes += compiledChild.estimatedBytes;
+            byValue.put(child.value(), compiledChild);
+            if (child.nodeType() != NodeType.NOT_WILDCARD) {
+                wildcards.add(compiledChild);
+            }
+
+            // query children are found by path, then by parameter name,
+            // instead of comparing the whole segment one by one
+            QueryTemplate childQuery = compiledChild.query;
+            if (childQuery == null) {
+                if (child.nodeType() != NodeType.NOT_WILDCARD) {
+                    scan.add(compiledChild);
+                }
+            } else if (childQuery.literalPath() == null) {
+                wildcardQueries.add(compiledChild);
+            } else {
+                List<CompiledNode> samePath = queriesByPath.get(childQuery.literalPath());
+                if (samePath == null) {
+                    samePath = new ArrayList<>(1);
+                    queriesByPath.put(childQuery.literalPath(), samePath);
+                }
+                samePath.add(compiledChild);
+            }
+        }
+        this.children = LiteralIndex.of(byValue);
+        this.wildcardChildren = wildcards.toArray(NO_WILDCARD_CHILDREN);
+        this.scanChildren = (scan.size() == wildcards.size()) ? wildcardChildren
+                : scan.toArray(NO_WILDCARD_CHILDREN);
+        this.wildcardQueryChildren = wildcardQueries.toArray(NO_WILDCARD_CHILDREN);
+        if (queriesByPath.isEmpty()) {
+            this.queryChildren = NO_QUERY_CHILDREN;
+        } else {
+            Map<String, CompiledNode[]> index = new LinkedHashMap<>();
+            for (Map.Entry<String, List<CompiledNode>> entry : queriesByPath.entrySet()) {
+                index.put(entry.getKey(), entry.getValue().toArray(NO_WILDCARD_CHILDREN));
+            }
+            this.queryChildren = LiteralIndex.of(index);
+        }
+        this.estimatedBytes = bytes + 16 + 16L * children.capacity()
+                + 8L * wildcardChildren.length + 16L * queryChildren.capacity();
+    }
+
+    /**
+     * Find the leaf node, below this node, of a template that the url matches
+     * from index <code>from</code> up to <code>end</code>.
+     *
+     * The url is cut up by '/' in place. Each segment is first looked up by
+     * value in the child index, then compared against wildcard children with
+     * their compiled LevelOneMatcher. No substring or throwaway node is
+     * created, so matching allocates nothing.
+     *
+     * If a segment matches more than one child (for example a literal and a
+     * complete wildcard sibling), each child is tried in turn until one of them
+     * leads to a leaf.
+     *
+     * If result is not null, variable values along the way are recorded in
+     * it. Variables of a child that does not lead to a leaf are removed again.
+     *
+     * @param url      incoming url, with or without http host and port
+     * @param from     index of first character of the next segment
+     * @param end      index after last character of the url
+     * @param result   receives variables; null if not needed
+     * @param policies characters allowed in variable values
+     * @param listener told about each node; null if none
+     * @return leaf node; null if remaining url matches no template below this
+     *         node
+     */
+    CompiledNode findLeaf(CharSequence url, int from, int end, MatchResult result,
+                          CharPolicies policies, MatchListener listener) {
+        // find next slash index; if cannot find next slash, this is last segment
+        int slashIndex = Node.indexOf(url, '/', from, end);
+        boolean isLast = slashIndex == -1;
+        int segmentEnd = isLast ? end : slashIndex;
+
+        int mark = (result == null) ? 0 : result.variableCount();
+
+        // exact match, regardless of nodeType. Variables of a wildcard node
+        // that is matched literally are not bound to a value.
+        CompiledNode exactChild = children.get(url, from, segmentEnd);
+        if (exactChild != null) {
+            if (listener != null) {
+                listener.onNodeEntered(url, exactChild.value, from, segmentEnd);
+            }
+            if (result != null) {
+                result.bindUnbound(exactChild.keyNames);
+            }
+            CompiledNode leaf = exactChild.findRest(url, slashIndex, end, result, policies,
+                    listener);
+            if (leaf != null) {
+                return leaf;
+            }
+            if (result != null) {
+                result.truncate(mark);
+            }
+        }
+
+        for (CompiledNode child : scanChildren) {
+            if (child == exactChild) {
+                continue;
+            }
+            if (matchesSegment(child.uriTemplatePart, child.keyNames, url,
+                    from, segmentEnd, result, policies)) {
+                if (listener != null) {
+                    listener.onCandidateMatched(url, child.value, from, segmentEnd);
+                    listener.onNodeEntered(url, child.value, from, segmentEnd);
+                }
+                CompiledNode leaf = child.findRest(url, slashIndex, end, result, policies,
+                        listener);
+                if (leaf != null) {
+                    return leaf;
+                }
+            } else if (listener != null) {
+                listener.onCandidateRejected(url, child.value, from, segmentEnd);
+            }
+            if (result != null) {
+                result.truncate(mark);
+            }
+        }
+
+        // query string runs to the end of url, slashes and all
+        if (hasQueryChildren()) {
+            int question = Node.indexOf(url, '?', from, segmentEnd);
+            if (question != -1) {
+                return findQuery(url, from, question, end, result, policies, listener);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the child node with a QueryTemplate that the last segment of url
+     * matches. Candidates are found by path, and their parameters by name,
+     * so the order of parameters in url does not matter.
+     *
+     * @param url      incoming url
+     * @param from     index of first character of segment
+     * @param question index of '?' in segment
+     * @param end      index after last character of the url
+     * @param result   receives variables; may be null
+     * @param policies characters allowed in variable values
+     * @param listener told about each candidate; null if none
+     * @return leaf node; null if no match
+     */
+    private CompiledNode findQuery(CharSequence url, int from, int question, int end,
+                                   MatchResult result, CharPolicies policies,
+                                   MatchListener listener) {
+        CompiledNode[] samePath = queryChildren.get(url, from, question);
+        if (samePath != null) {
+            CompiledNode leaf = findQuery(samePath, url, from, question, end, result,
+                    policies, listener);
+            if (leaf != null) {
+                return leaf;
+            }
+        }
+        return findQuery(wildcardQueryChildren, url, from, question, end, result,
+                policies, listener);
+    }
+
+    /**
+     * Try each candidate in turn
+     */
+    private static CompiledNode findQuery(CompiledNode[] candidates, CharSequence url, int from,
+                                          int question, int end, MatchResult result,
+                                          CharPolicies policies, MatchListener listener) {
+        int mark = (result == null) ? 0 : result.variableCount();
+        for (CompiledNode child : candidates) {
+            if (child.query.matches(url, from, question, end, result, policies)) {
+                if (listener != null) {
+                    listener.onCandidateMatched(url, child.value, from, end);
+                    listener.onNodeEntered(url, child.value, from, end);
+                }
+                return child;
+            }
+            if (listener != null) {
+                listener.onCandidateRejected(url, child.value, from, end);
+            }
+            if (result != null) {
+                result.truncate(mark);
+            }
+        }
+        return null;
+    }
+
+    private boolean hasQueryChildren() {
+        return queryChildren.size() > 0 || wildcardQueryChildren.length > 0;
+    }
+
+    /**
+     * Once a segment matches this node, check the rest of the url
+     *
+     * @param url        incoming url
+     * @param slashIndex index of slash after the segment; -1 if last segment
+     * @param end        index after last character of the url
+     * @param result     receives variables; may be null
+     * @param policies   characters allowed in variable values
+     * @param listener   told about each node; null if none
+     * @return this node if leaf for last segment, or leaf node below this
+     *         node that remaining url matches; null otherwise
+     */
+    private CompiledNode findRest(CharSequence url, int slashIndex, int end,
+                                  MatchResult result, CharPolicies policies,
+                                  MatchListener listener) {
+        if (slashIndex == -1) {
+            return isLeaf ? this : null;
+        }
+        return findLeaf(url, slashIndex + 1, end, result, policies, listener);
+    }
+
+    /**
+     * Match many urls at once, below this node. Same as <code>findLeaf()</code>
+     * for each url, but urls with the same next segment share the work: the
+     * child index is searched once, and each wildcard child is compared once,
+     * for all of them.
+     *
+     * Urls in <code>order[lo..hi)</code> are sorted by path, and all have the
+     * same segments up to this node, so urls with the same next segment are
+     * next to each other, with the ones that end there first.
+     *
+     * @param urls    incoming urls
+     * @param order   indices of urls, sorted by path
+     * @param lo      first position in order
+     * @param hi      one past last position in order
+     * @param from    index of first character of next segment, of each url;
+     *                restored before this method returns
+     * @param ends    index after last character, of each url
+     * @param matched  set to true for each url that matches a template
+     * @param policies characters allowed in variable values
+     */
+    void findAll(CharSequence[] urls, int[] order, int lo, int hi, int[] from,
+                 int[] ends, boolean[] matched, CharPolicies policies) {
+        int runStart = lo;
+        while (runStart < hi) {
+            int i = order[runStart];
+            CharSequence url = urls[i];
+            int start = from[i];
+            int segmentEnd = segmentEnd(url, start, ends[i]);
+
+            // urls with the same segment; the ones that end here come first
+            int lastEnd = runStart;
+            int runEnd = runStart;
+            boolean unmatched = false;
+            while (runEnd < hi) {
+                int j = order[runEnd];
+                int jSegmentEnd = segmentEnd(urls[j], from[j], ends[j]);
+                if (!regionEquals(url, start, segmentEnd, urls[j], from[j], jSegmentEnd)) {
+                    break;
+                }
+                if (jSegmentEnd == ends[j]) {
+                    lastEnd = runEnd + 1;
+                }
+                unmatched |= !matched[j];
+                runEnd++;
+            }
+
+            if (unmatched) {
+                CompiledNode exactChild = children.get(url, start, segmentEnd);
+                if (exactChild != null) {
+                    exactChild.findAllRest(urls, order, runStart, lastEnd, runEnd,
+                            segmentEnd - start + 1, from, ends, matched, policies);
+                }
+                for (CompiledNode child : scanChildren) {
+                    if (child != exactChild
+                            && matchesSegment(child.uriTemplatePart, child.keyNames, url,
+                            start, segmentEnd, null, policies)) {
+                        child.findAllRest(urls, order, runStart, lastEnd, runEnd,
+                                segmentEnd - start + 1, from, ends, matched, policies);
+                    }
+                }
+                int question = hasQueryChildren() ? Node.indexOf(url, '?', start, segmentEnd) : -1;
+                if (question != -1) {
+                    // query strings differ after the segment; one url at a time
+                    for (int k = runStart; k < runEnd; k++) {
+                        int j = order[k];
+                        if (!matched[j] && findQuery(urls[j], from[j], from[j] + question - start,
+                                ends[j], null, policies, null) != null) {
+                            matched[j] = true;
+                        }
+                    }
+                }
+            }
+            runStart = runEnd;
+        }
+    }
+
+    /**
+     * Once a segment matches this node, for a run of urls, check the rest of
+     * each url
+     *
+     * @param lastEnd  urls in order[lo..lastEnd) end at this node
+     * @param advance  length of segment, and slash after it
+     */
+    private void findAllRest(CharSequence[] urls, int[] order, int lo, int lastEnd, int hi,
+                             int advance, int[] from, int[] ends, boolean[] matched,
+                             CharPolicies policies) {
+        if (isLeaf) {
+            for (int k = lo; k < lastEnd; k++) {
+                matched[order[k]] = true;
+            }
+        }
+        if (lastEnd == hi || children.size() == 0) {
+            return;
+        }
+        for (int k = lastEnd; k < hi; k++) {
+            from[order[k]] += advance;
+        }
+        findAll(urls, order, lastEnd, hi, from, ends, matched, policies);
+        for (int k = lastEnd; k < hi; k++) {
+            from[order[k]] -= advance;
+        }
+    }
+
+    private static int segmentEnd(CharSequence url, int start, int end) {
+        int slashIndex = Node.indexOf(url, '/', start, end);
+        return (slashIndex == -1) ? end : slashIndex;
+    }
+
+    private static boolean regionEquals(CharSequence a, int aStart, int aEnd,
+                                        CharSequence b, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        for (int i = 0; i < aEnd - aStart; i++) {
+            if (a.charAt(aStart + i) != b.charAt(bStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if one url segment matches this wildcard node, without creating
+     * substring. Exact match is already taken care of by the child index of
+     * parent node.
+     *
+     * @param uriTemplatePart template of wildcard node
+     * @param keyNames        names of variables in uriTemplatePart
+     * @param url             incoming url
+     * @param start           index of first character of segment
+     * @param end             index after last character of segment
+     * @param result          receives variables; may be null
+     * @param policies        characters allowed in variable values; checked
+     *                        as soon as each value is found
+     * @return true if match; false otherwise
+     */
+    static boolean matchesSegment(UriTemplateValidator.UriTemplate uriTemplatePart,
+                                  String[] keyNames, CharSequence url,
+                                  int start, int end, MatchResult result,
+                                  CharPolicies policies) {
+        // shortcut: {id} takes the entire segment as param value
+        if (uriTemplatePart.isSingleVariable()) {
+            if (!policies.policy(keyNames[0]).isValid(url, start, end)) {
+                return false;
+            }
+            if (result != null) {
+                result.bind(keyNames[0], start, end);
+            }
+            return true;
+        }
+
+        if (result == null) {
+            return uriTemplatePart.matches(url, start, end, policies.filter(keyNames));
+        }
+        int[] offsets = result.reserve(keyNames.length);
+        if (!uriTemplatePart.match(url, start, end, offsets,
+                2 * result.variableCount(), policies.filter(keyNames))) {
+            return false;
+        }
+        result.bind(keyNames);
+        return true;
+    }
+
+    /**
+     * @return value of node
+     */
+    String value() {
+        return value;
+    }
+
+    /**
+     * @return NodeType enum
+     */
+    NodeType nodeType() {
+        return nodeType;
+    }
+
+    /**
+     * @return true if last element in template (ie. leaf node)
+     */
+    boolean isLeaf() {
+        return isLeaf;
+    }
+
+    /**
+     * @return all child nodes
+     */
+    List<CompiledNode> children() {
+        return children.values();
+    }
+
+    /**
+     * @return wildcard child nodes compared one by one: all but those with a
+     *         QueryTemplate
+     */
+    CompiledNode[] scanChildren() {
+        return scanChildren;
+    }
+
+    /**
+     * @return child nodes with a QueryTemplate whose path has no variables,
+     *         by that path, in the order findQuery() tries them
+     */
+    Map<String, CompiledNode[]> literalQueryChildren() {
+        Map<String, CompiledNode[]> byPath = new LinkedHashMap<>();
+        List<String> paths = queryChildren.keys();
+        List<CompiledNode[]> samePaths = queryChildren.values();
+        for (int i = 0; i < paths.size(); i++) {
+            byPath.put(paths.get(i), samePaths.get(i));
+        }
+        return byPath;
+    }
+
+    /**
+     * @return child nodes with a QueryTemplate whose path has variables, in
+     *         the order findQuery() tries them
+     */
+    CompiledNode[] wildcardQueryChildren() {
+        return wildcardQueryChildren;
+    }
+
+    /**
+     * @return true if this is a leaf whose query parameters may come in any
+     *         order
+     */
+    boolean hasQuery() {
+        return query != null;
+    }
+
+    /**
+     * @return true if a url segment may match a child node other than by its
+     *         exact value: a wildcard child, or a child with a query string
+     *         whose parameters may come in any order
+     */
+    boolean isOpen() {
+        return wildcardChildren.length > 0 || hasQueryChildren();
+    }
+
+    /**
+     * Rough heap size of this node and all nodes below it: object headers,
+     * fields, strings as 2 bytes per char, and child index arrays. Uri
+     * templates of wildcard nodes are counted by their string length only.
+     *
+     * @return estimated size in bytes
+     */
+    long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    private static long stringBytes(String s) {
+        return (s == null) ? 0 : 40 + 2L * s.length();
+    }
+
+    /**
+     * @return first template that ends at this node; null if not leaf
+     */
+    String template() {
+        return template;
+    }
+
+    /**
+     * @return value attached to template; null if none
+     */
+    Object payload() {
+        return payload;
+    }
+
+    /**
+     * Count a url that matched template of this leaf node
+     */
+    void recordHit() {
+        hits.increment();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return value;
+    }
+}
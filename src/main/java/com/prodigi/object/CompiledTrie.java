@@ -0,0 +1,459 @@
+package com.prodigi.object;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Immutable snapshot of a PatternMatchingTrie, created by
+ * <code>PatternMatchingTrie.compile()</code>.
+ *
+ * A CompiledTrie has only final fields and is never written to after
+ * construction, so it is safe to publish to any number of threads (for
+ * example Tomcat worker threads) and match against it without locks.
+ * Templates added to the PatternMatchingTrie afterwards are not visible in
+ * this snapshot; compile again to pick them up.
+ *
+ * For example:
+ * <code>
+ *   PatternMatchingTrie trie = new PatternMatchingTrie();
+ *   trie.addTemplate("http://prodigi.com/image/{imageId}");
+ *   CompiledTrie compiled = trie.compile();
+ *   compiled.matches("http://prodigi.com/image/123.jpg");
+ * </code>
+ * ...returns true
+ *
+ * @author Wilkin Cheung
+ */
+public final class CompiledTrie {
+
+    private static Logger logger = Logger.getLogger(CompiledTrie.class);
+
+    // root node is the only reference to Trie
+    private final CompiledNode root;
+
+    // rough heap size of all nodes
+    private final long estimatedBytes;
+
+    // number of changes to the PatternMatchingTrie before this snapshot
+    private final long generation;
+
+    // rejects urls that cannot match; null if none
+    private final PrefixFilter prefixFilter;
+
+    // characters allowed in variable values
+    private final CharPolicies charPolicies;
+
+    /**
+     * Constructor. Take the compiled copy of all nodes of builder Trie.
+     *
+     * @param root        root node of builder Trie
+     * @param generation  number of changes to builder Trie so far
+     * @param filterDepth path levels of PrefixFilter; 0 for no filter
+     * @param filterFpp   false positive rate of PrefixFilter
+     * @param policies    characters allowed in variable values
+     */
+    CompiledTrie(Node root, long generation, int filterDepth, double filterFpp,
+                 CharPolicies policies) {
+        this.root = root.compiled();
+        this.generation = generation;
+        this.charPolicies = policies;
+        this.prefixFilter = (filterDepth == 0) ? null
+                : PrefixFilter.build(this.root, filterDepth, filterFpp);
+        this.estimatedBytes = this.root.estimatedBytes()
+                + ((prefixFilter == null) ? 0 : prefixFilter.bitCount() / 8);
+    }
+
+    /**
+     * Rough heap size of this snapshot, for example to bound a cache of
+     * snapshots by memory rather than by count.
+     *
+     * @return estimated size in bytes
+     */
+    public long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Is url matching template(s)? Url is walked down the Trie by index, so
+     * any CharSequence works directly. For example, the StringBuffer returned
+     * by <code>request.getRequestURL()</code>.
+     *
+     * @param url incoming url for comparison
+     * @return true if url matches a template; false otherwise
+     */
+    public boolean matches(CharSequence url) {
+        return find(url, null) != null;
+    }
+
+    /**
+     * Match url, and find out which template matched and the value of each
+     * variable, in a single walk down the Trie.
+     *
+     * @param url    incoming url for comparison
+     * @param result reusable holder that receives template and variables;
+     *               cleared first
+     * @return true if url matches a template; false otherwise
+     * @see MatchResult
+     */
+    public boolean match(CharSequence url, MatchResult result) {
+        return find(url, result) != null;
+    }
+
+    /**
+     * Is url matching template(s)? Listener is told about each step.
+     *
+     * @param url      incoming url for comparison
+     * @param listener told about each step; may be null
+     * @return true if url matches a template; false otherwise
+     * @see MatchListener
+     */
+    public boolean matches(CharSequence url, MatchListener listener) {
+        return find(url, null, listener) != null;
+    }
+
+    /**
+     * Match url, and find out which template matched and the value of each
+     * variable. Listener is told about each step.
+     *
+     * @param url      incoming url for comparison
+     * @param result   reusable holder that receives template and variables;
+     *                 cleared first
+     * @param listener told about each step; may be null
+     * @return true if url matches a template; false otherwise
+     * @see MatchListener
+     */
+    public boolean match(CharSequence url, MatchResult result, MatchListener listener) {
+        return find(url, result, listener) != null;
+    }
+
+    /**
+     * Match many urls in one call. Same as calling <code>matches()</code> for
+     * each url, but urls are sorted by path first, so urls that share leading
+     * segments walk those segments down the Trie only once.
+     *
+     * @param urls incoming urls for comparison
+     * @return bit i set if urls.get(i) matches a template
+     */
+    public BitSet matchAll(List<? extends CharSequence> urls) {
+        BitSet out = new BitSet(urls.size());
+        matchAll(urls.toArray(new CharSequence[urls.size()]), out);
+        return out;
+    }
+
+    /**
+     * Match many urls in one call, in the current thread
+     *
+     * @param urls incoming urls for comparison
+     * @param out  bit i set if urls[i] matches a template, cleared otherwise;
+     *             bits from urls.length up are left as they are
+     * @see #matchAll(List)
+     */
+    public void matchAll(CharSequence[] urls, BitSet out) {
+        matchAll(urls, out, null);
+    }
+
+    /**
+     * Match many urls in one call. A large batch is split across the threads
+     * of pool after sorting, so each thread still walks shared segments once
+     * for its part of the batch.
+     *
+     * @param urls incoming urls for comparison
+     * @param out  bit i set if urls[i] matches a template, cleared otherwise;
+     *             bits from urls.length up are left as they are
+     * @param pool matches parts of a large batch in parallel; null for
+     *             current thread only
+     * @see #matchAll(List)
+     */
+    public void matchAll(CharSequence[] urls, BitSet out, ForkJoinPool pool) {
+        int count = urls.length;
+        int[] from = new int[count];
+        int[] ends = new int[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            // skip http host and port, if found
+            from[i] = PatternMatchingTrie.pathStart(urls[i]);
+            ends[i] = urls[i].length();
+            order[i] = i;
+        }
+        sortByPath(order, 0, count, urls, from, ends);
+
+        boolean[] matched = new boolean[count];
+        boolean parallel = pool != null && count >= 2 * MatchAllTask.BATCH_SIZE;
+        MatchAllTask task = new MatchAllTask(urls, order, 0, count, from, ends, matched, parallel);
+        if (parallel) {
+            pool.invoke(task);
+        } else {
+            task.compute();
+        }
+
+        out.clear(0, count);
+        for (int i = 0; i < count; i++) {
+            if (matched[i]) {
+                out.set(i);
+            }
+        }
+    }
+
+    // ranges this short are sorted by insertion
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /**
+     * Sort order[lo, hi), indices of urls, by path. A quicksort of primitive
+     * indices, so sorting boxes nothing and needs no comparator object.
+     */
+    private static void sortByPath(int[] order, int lo, int hi, CharSequence[] urls,
+                                   int[] from, int[] ends) {
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            // median of three as pivot, moved to lo
+            int mid = (lo + hi) >>> 1;
+            if (comparePaths(order[mid], order[lo], urls, from, ends) < 0) {
+                swap(order, mid, lo);
+            }
+            if (comparePaths(order[hi - 1], order[mid], urls, from, ends) < 0) {
+                swap(order, hi - 1, mid);
+                if (comparePaths(order[mid], order[lo], urls, from, ends) < 0) {
+                    swap(order, mid, lo);
+                }
+            }
+            swap(order, lo, mid);
+            int pivot = order[lo];
+
+            // Hoare partition: [lo, j] <= pivot <= [j + 1, hi)
+            int i = lo;
+            int j = hi;
+            while (true) {
+                do {
+                    i++;
+                } while (i < hi && comparePaths(order[i], pivot, urls, from, ends) < 0);
+                do {
+                    j--;
+                } while (comparePaths(order[j], pivot, urls, from, ends) > 0);
+                if (i >= j) {
+                    break;
+                }
+                swap(order, i, j);
+            }
+            swap(order, lo, j);
+
+            // recurse into the smaller side, loop on the larger one, so the
+            // stack stays O(log n) deep
+            if (j - lo < hi - j - 1) {
+                sortByPath(order, lo, j, urls, from, ends);
+                lo = j + 1;
+            } else {
+                sortByPath(order, j + 1, hi, urls, from, ends);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i < hi; i++) {
+            int index = order[i];
+            int j = i - 1;
+            while (j >= lo && comparePaths(order[j], index, urls, from, ends) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
+        }
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int index = order[i];
+        order[i] = order[j];
+        order[j] = index;
+    }
+
+    /**
+     * Compare paths of urls[a] and urls[b]
+     */
+    private static int comparePaths(int a, int b, CharSequence[] urls, int[] from, int[] ends) {
+        return comparePaths(urls[a], from[a], ends[a], urls[b], from[b], ends[b]);
+    }
+
+    /**
+     * Compare paths of two urls, char by char
+     */
+    private static int comparePaths(CharSequence a, int aStart, int aEnd,
+                                    CharSequence b, int bStart, int bEnd) {
+        int length = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < length; i++) {
+            char ca = a.charAt(aStart + i);
+            char cb = b.charAt(bStart + i);
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    /**
+     * @return filter that rejects urls before walking down the Trie; null if
+     *         none
+     * @see PatternMatchingTrie#setPrefixFilter(int, double)
+     */
+    public PrefixFilter prefixFilter() {
+        return prefixFilter;
+    }
+
+    /**
+     * Could url match a template? Only checks the PrefixFilter, if any.
+     *
+     * @param url incoming url for comparison
+     * @return false if url surely matches no template; true if it might
+     */
+    boolean mightMatch(CharSequence url) {
+        return prefixFilter == null || prefixFilter.mightMatch(url);
+    }
+
+    /**
+     * @return number of changes to the PatternMatchingTrie before this
+     *         snapshot; tags entries of ResultCache
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * @return root node
+     */
+    CompiledNode root() {
+        return root;
+    }
+
+    /**
+     * @return characters allowed in variable values
+     */
+    CharPolicies charPolicies() {
+        return charPolicies;
+    }
+
+    /**
+     * Find the leaf node of the template that url matches
+     *
+     * @param url    incoming url for comparison
+     * @param result receives template and variables; may be null
+     * @return leaf node; null if no match
+     */
+    CompiledNode find(CharSequence url, MatchResult result) {
+        return find(url, result, null);
+    }
+
+    /**
+     * Find the leaf node of the template that url matches
+     *
+     * @param url      incoming url for comparison
+     * @param result   receives template and variables; may be null
+     * @param listener told about each step; may be null
+     * @return leaf node; null if no match
+     */
+    CompiledNode find(CharSequence url, MatchResult result, MatchListener listener) {
+        return find(url, result, listener, true);
+    }
+
+    /**
+     * Find the leaf node of the template that url matches
+     *
+     * @param url      incoming url for comparison
+     * @param result   receives template and variables; may be null
+     * @param listener told about each step; may be null
+     * @param filter   check PrefixFilter first; false if caller already did
+     * @return leaf node; null if no match
+     */
+    CompiledNode find(CharSequence url, MatchResult result, MatchListener listener, boolean filter) {
+        if (result != null) {
+            result.reset(url);
+        }
+        // only timed when traced
+        MatchListener walk = (listener == null) ? null : listener.onStart(url);
+        long start = (walk == null) ? 0 : System.nanoTime();
+
+        CompiledNode leaf = null;
+        try {
+            // skip http host and port, if found
+            int from = PatternMatchingTrie.pathStart(url);
+            if (!filter || prefixFilter == null || prefixFilter.mightMatch(url, from, url.length())) {
+                leaf = root.findLeaf(url, from, url.length(), result, charPolicies, walk);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Exception occured while matching Uri in Trie : "
+                    + e.getMessage());
+        }
+        if (result != null) {
+            if (leaf == null) {
+                result.reset(url);
+            } else {
+                result.complete(leaf.template());
+            }
+        }
+        if (walk != null) {
+            long nanos = System.nanoTime() - start;
+            if (leaf == null) {
+                walk.onNoMatch(url, nanos);
+            } else {
+                walk.onMatched(url, leaf.template(), nanos);
+            }
+        }
+        return leaf;
+    }
+
+    /**
+     * Matches a range of sorted urls, split in halves while large
+     */
+    private final class MatchAllTask extends RecursiveAction {
+
+        // urls per task, at least
+        static final int BATCH_SIZE = 1024;
+
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence[] urls;
+        private final int[] order;
+        private final int lo;
+        private final int hi;
+        private final int[] from;
+        private final int[] ends;
+        private final boolean[] matched;
+        // split in halves, if large?
+        private final boolean parallel;
+
+        MatchAllTask(CharSequence[] urls, int[] order, int lo, int hi, int[] from,
+                     int[] ends, boolean[] matched, boolean parallel) {
+            this.urls = urls;
+            this.order = order;
+            this.lo = lo;
+            this.hi = hi;
+            this.from = from;
+            this.ends = ends;
+            this.matched = matched;
+            this.parallel = parallel;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        @Override
+        protected void compute() {
+            if (parallel && hi - lo >= 2 * BATCH_SIZE) {
+                // each half is still sorted, and starts from root
+                int middle = (lo + hi) >>> 1;
+                invokeAll(new MatchAllTask(urls, order, lo, middle, from, ends, matched, true),
+                        new MatchAllTask(urls, order, middle, hi, from, ends, matched, true));
+                return;
+            }
+            try {
+                root.findAll(urls, order, lo, hi, from, ends, matched, charPolicies);
+            } catch (RuntimeException e) {
+                logger.error("Exception occured while matching Uris in Trie : "
+                        + e.getMessage());
+                // fall back to one url at a time, as matches() does
+                for (int k = lo; k < hi; k++) {
+                    matched[order[k]] = find(urls[order[k]], null) != null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.prodigi.object;
+
+/**
+ * Passes each event to two listeners, for example MatchMetrics and a
+ * SlowMatchTracer on the same Trie
+ *
+ * @author Wilkin Cheung
+ */
+final class CompositeMatchListener implements MatchListener {
+
+    private final MatchListener first;
+    private final MatchListener second;
+
+    private CompositeMatchListener(MatchListener first, MatchListener second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * @param first  listener; may be null
+     * @param second listener; may be null
+     * @return listener that tells both; the other one if one is null
+     */
+    static MatchListener of(MatchListener first, MatchListener second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return new CompositeMatchListener(first, second);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onStart(java.lang.CharSequence)
+     */
+    @Override
+    public MatchListener onStart(CharSequence url) {
+        MatchListener firstWalk = first.onStart(url);
+        MatchListener secondWalk = second.onStart(url);
+        if (firstWalk == first && secondWalk == second) {
+            return this;
+        }
+        return of(firstWalk, secondWalk);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onNodeEntered(java.lang.CharSequence, java.lang.String, int, int)
+     */
+    @Override
+    public void onNodeEntered(CharSequence url, String node, int start, int end) {
+        first.onNodeEntered(url, node, start, end);
+        second.onNodeEntered(url, node, start, end);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onCandidateMatched(java.lang.CharSequence, java.lang.String, int, int)
+     */
+    @Override
+    public void onCandidateMatched(CharSequence url, String node, int start, int end) {
+        first.onCandidateMatched(url, node, start, end);
+        second.onCandidateMatched(url, node, start, end);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onCandidateRejected(java.lang.CharSequence, java.lang.String, int, int)
+     */
+    @Override
+    public void onCandidateRejected(CharSequence url, String node, int start, int end) {
+        first.onCandidateRejected(url, node, start, end);
+        second.onCandidateRejected(url, node, start, end);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onMatched(java.lang.CharSequence, java.lang.String, long)
+     */
+    @Override
+    public void onMatched(CharSequence url, String template, long nanos) {
+        first.onMatched(url, template, nanos);
+        second.onMatched(url, template, nanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onNoMatch(java.lang.CharSequence, long)
+     */
+    @Override
+    public void onNoMatch(CharSequence url, long nanos) {
+        first.onNoMatch(url, nanos);
+        second.onNoMatch(url, nanos);
+    }
+}
@@ -0,0 +1,175 @@
+package com.prodigi.object;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable hash index from String key to value, that can be looked up with
+ * a region of any CharSequence. Used by CompiledNode to find the child node
+ * of a url segment in O(1), without creating a substring for the segment.
+ *
+ * Open addressing with linear probing. Hash code of a region is computed the
+ * same way as <code>String.hashCode()</code>, so hash code of each key is the
+ * one String already caches.
+ *
+ * @param <V> value type
+ * @author Wilkin Cheung
+ */
+final class LiteralIndex<V> {
+
+    // Index that has no key
+    private static final LiteralIndex<Object> EMPTY =
+            new LiteralIndex<>(new String[1], new int[1], new Object[1], 0);
+
+    // key of each slot; null if slot is empty
+    private final String[] keys;
+
+    // hash code of each key
+    private final int[] hashes;
+
+    // value of each slot
+    private final Object[] values;
+
+    // number of keys
+    private final int size;
+
+    /**
+     * Constructor
+     *
+     * @param keys   key of each slot
+     * @param hashes hash code of each key
+     * @param values value of each slot
+     * @param size   number of keys
+     */
+    private LiteralIndex(String[] keys, int[] hashes, Object[] values, int size) {
+        this.keys = keys;
+        this.hashes = hashes;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * Build an index from map
+     *
+     * @param map key to value
+     * @param <V> value type
+     * @return immutable LiteralIndex
+     */
+    @SuppressWarnings("unchecked")
+    static <V> LiteralIndex<V> of(Map<String, V> map) {
+        if (map.isEmpty()) {
+            return (LiteralIndex<V>) EMPTY;
+        }
+
+        // keep load factor at or below 0.5, so probe sequences stay short
+        int capacity = Integer.highestOneBit(map.size() * 2 - 1) << 1;
+        String[] keys = new String[capacity];
+        int[] hashes = new int[capacity];
+        Object[] values = new Object[capacity];
+
+        for (Map.Entry<String, V> entry : map.entrySet()) {
+            int hash = entry.getKey().hashCode();
+            int slot = spread(hash) & (capacity - 1);
+            while (keys[slot] != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            keys[slot] = entry.getKey();
+            hashes[slot] = hash;
+            values[slot] = entry.getValue();
+        }
+        return new LiteralIndex<>(keys, hashes, values, map.size());
+    }
+
+    /**
+     * Find value of the key that equals the region of CharSequence
+     *
+     * @param s     CharSequence
+     * @param start index of first character of region
+     * @param end   index after last character of region
+     * @return value if found; null otherwise
+     */
+    @SuppressWarnings("unchecked")
+    V get(CharSequence s, int start, int end) {
+        if (size == 0) {
+            return null;
+        }
+
+        int hash = hashCode(s, start, end);
+        int mask = keys.length - 1;
+        for (int slot = spread(hash) & mask; keys[slot] != null;
+             slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && Node.regionEquals(keys[slot], s, start, end)) {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of keys
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return number of slots
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return all keys, in slot order
+     */
+    List<String> keys() {
+        List<String> result = new ArrayList<>(size);
+        for (String key : keys) {
+            if (key != null) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all values, in slot order
+     */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                result.add((V) values[slot]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as <code>String.hashCode()</code> for a region of CharSequence
+     *
+     * @param s     CharSequence
+     * @param start index of first character of region
+     * @param end   index after last character of region
+     * @return hash code
+     */
+    static int hashCode(CharSequence s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Mix high bits into low bits, since slot is taken from low bits only
+     *
+     * @param hash hash code
+     * @return spread hash code
+     */
+    static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,642 @@
+package com.prodigi.object;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+
+import com.prodigi.exception.TrieException;
+import com.prodigi.object.Node.NodeType;
+import com.prodigi.service.CharPolicy;
+import com.prodigi.service.UriTemplateValidator;
+
+/**
+ * CompiledTrie in a compact binary format, matched directly from a ByteBuffer
+ * with no deserialization step.
+ *
+ * The usual source is a file mapped with <code>FileChannel.map()</code>. The
+ * Trie then lives off-heap, is shared through the page cache by every JVM
+ * that maps the same file, and is available as soon as the file is mapped.
+ *
+ * For example:
+ * <code>
+ *   MappedTrie.write(trie.compile(), new File("/var/cache/apiKey.trie"));
+ *   ...
+ *   MappedTrie mapped = MappedTrie.open(new File("/var/cache/apiKey.trie"));
+ *   mapped.matches("http://prodigi.com/image/123.jpg");
+ * </code>
+ *
+ * Format, big-endian, strings as int length followed by UTF-16 chars:
+ * <code>
+ *   header:  int magic, int version, int matcherCount, int rootOffset
+ *   policies: policy, int variableCount, variableCount x (string name, policy)
+ *   policy:  long allowed ascii 00-3F, long allowed ascii 40-7F,
+ *            byte flags (bits 0-1 NonAscii ordinal, bit 2 percentEncoded)
+ *   node:    byte flags (bit 0 leaf, bits 1-2 NodeType ordinal, bit 3 query),
+ *            int matcherIndex (-1 if neither wildcard nor query),
+ *            string value, string template (length -1 if not leaf),
+ *            int tableSize, tableSize x (int hash, int childOffset),
+ *            int scanChildCount, scanChildCount x int childOffset,
+ *            int pathTableSize, pathTableSize x (int hash, int queryListOffset),
+ *            int queryChildCount, queryChildCount x int childOffset
+ *   query list: string path, int queryChildCount, queryChildCount x int childOffset
+ * </code>
+ * Child table and path table are open addressing with linear probing, same
+ * as LiteralIndex; offset 0 marks an empty slot. The path table holds the
+ * query children whose path has no variables, by that path; the list after
+ * it those whose path has variables. Children and query lists are written
+ * before their parent, so root is the last node. Policies, right after the header, are
+ * those set by <code>setCharPolicy()</code>: of all variables, then of
+ * variables by name.
+ *
+ * Scan children are the wildcard children compared segment by segment.
+ * Query children are leaves with a QueryTemplate, whose parameters are
+ * matched by name, in any order, as by CompiledNode. Snapshots of an older
+ * version are not read; write them again from the Trie.
+ *
+ * Only the matchers of wildcard and query nodes are kept on-heap. Each is
+ * built from the node value the first time a url reaches that node. Values
+ * attached by RoutingTrie are not written.
+ *
+ * A MappedTrie is safe to share across threads.
+ *
+ * @author Wilkin Cheung
+ */
+public final class MappedTrie {
+
+    // "UTPM"
+    static final int MAGIC = 0x5554504D;
+
+    // format version; bump on any change to the layout
+    static final int VERSION = 4;
+
+    private static final int HEADER_SIZE = 16;
+
+    // size of flags byte plus matcherIndex
+    private static final int NODE_VALUE = 5;
+
+    // size of a policy: two longs and flags byte
+    private static final int POLICY_SIZE = 17;
+
+    private static Logger logger = Logger.getLogger(MappedTrie.class);
+
+    // big-endian view of the snapshot; only absolute get methods are used
+    private final ByteBuffer buffer;
+
+    // matcher of each wildcard or query node, built on first use
+    private final AtomicReferenceArray<NodeMatcher> matchers;
+
+    // offset of root node
+    private final int root;
+
+    // characters allowed in variable values
+    private final CharPolicies policies;
+
+    /**
+     * Constructor
+     *
+     * @param buffer snapshot
+     */
+    private MappedTrie(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new TrieException("not a trie snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new TrieException(String.format(
+                    "unsupported trie snapshot version %d", buffer.getInt(4)));
+        }
+        this.matchers = new AtomicReferenceArray<>(buffer.getInt(8));
+        this.root = buffer.getInt(12);
+        this.policies = readPolicies(HEADER_SIZE);
+    }
+
+    /**
+     * Use a snapshot already in memory. The buffer is not copied; it must not
+     * be modified afterwards.
+     *
+     * @param buffer snapshot, from its index 0 up to its capacity
+     * @return MappedTrie
+     * @throws TrieException if buffer is not a snapshot of a supported version
+     */
+    public static MappedTrie wrap(ByteBuffer buffer) {
+        return new MappedTrie(buffer.duplicate().order(ByteOrder.BIG_ENDIAN));
+    }
+
+    /**
+     * Map a snapshot file read-only. The mapping stays valid after this method
+     * returns; it is released when the MappedTrie is garbage collected.
+     *
+     * @param file snapshot file written by <code>write()</code>
+     * @return MappedTrie
+     * @throws IOException   if file cannot be read
+     * @throws TrieException if file is not a snapshot of a supported version
+     */
+    public static MappedTrie open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write snapshot of trie to file
+     *
+     * @param trie compiled trie
+     * @param file destination; overwritten if exists
+     * @throws IOException if file cannot be written
+     */
+    public static void write(CompiledTrie trie, File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(toBytes(trie));
+        }
+    }
+
+    /**
+     * Encode snapshot of trie
+     *
+     * @param trie compiled trie
+     * @return snapshot bytes
+     */
+    public static byte[] toBytes(CompiledTrie trie) {
+        try {
+            Writer writer = new Writer();
+            writer.writePolicies(trie.charPolicies());
+            int rootOffset = writer.writeNode(trie.root());
+
+            byte[] bytes = writer.bytes.toByteArray();
+            ByteBuffer header = ByteBuffer.wrap(bytes);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, writer.matcherCount);
+            header.putInt(12, rootOffset);
+            return bytes;
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new TrieException(e);
+        }
+    }
+
+    /**
+     * @return size of snapshot in bytes
+     */
+    public int size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Is url matching template(s)?
+     *
+     * @param url incoming url for comparison
+     * @return true if url matches a template; false otherwise
+     */
+    public boolean matches(CharSequence url) {
+        return find(url, null) != 0;
+    }
+
+    /**
+     * Match url, and find out which template matched and the value of each
+     * variable, in a single walk down the Trie.
+     *
+     * @param url    incoming url for comparison
+     * @param result reusable holder that receives template and variables
+     * @return true if url matches a template; false otherwise
+     * @see MatchResult
+     */
+    public boolean match(CharSequence url, MatchResult result) {
+        return find(url, result) != 0;
+    }
+
+    /**
+     * Find the leaf node of the template that url matches
+     *
+     * @param url    incoming url for comparison
+     * @param result receives template and variables; may be null
+     * @return offset of leaf node; 0 if no match
+     */
+    private int find(CharSequence url, MatchResult result) {
+        if (result != null) {
+            result.reset(url);
+        }
+        int leaf = 0;
+        try {
+            // skip http host and port, if found
+            leaf = findLeaf(root, url, PatternMatchingTrie.pathStart(url),
+                    url.length(), result);
+        } catch (RuntimeException e) {
+            logger.error("Exception occured while matching Uri in Trie : "
+                    + e.getMessage());
+        }
+        if (result != null) {
+            if (leaf == 0) {
+                result.reset(url);
+            } else {
+                result.complete(readString(templateOffset(leaf)));
+            }
+        }
+        return leaf;
+    }
+
+    /**
+     * Same walk as <code>CompiledNode.findLeaf()</code>, on node offsets
+     *
+     * @param node   offset of current node
+     * @param url    incoming url
+     * @param from   index of first character of the next segment
+     * @param end    index after last character of the url
+     * @param result receives variables; may be null
+     * @return offset of leaf node; 0 if remaining url matches no template
+     */
+    private int findLeaf(int node, CharSequence url, int from, int end,
+                         MatchResult result) {
+        int slashIndex = Node.indexOf(url, '/', from, end);
+        int segmentEnd = (slashIndex == -1) ? end : slashIndex;
+        int mark = (result == null) ? 0 : result.variableCount();
+
+        int table = tableOffset(node);
+        int tableSize = buffer.getInt(table);
+
+        // exact match, regardless of nodeType
+        int exactChild = (tableSize == 0) ? 0
+                : lookup(table + 4, tableSize, NODE_VALUE, url, from, segmentEnd);
+        if (exactChild != 0) {
+            if (result != null) {
+                result.bindUnbound(keyNames(exactChild));
+            }
+            int leaf = findRest(exactChild, url, slashIndex, end, result);
+            if (leaf != 0) {
+                return leaf;
+            }
+            if (result != null) {
+                result.truncate(mark);
+            }
+        }
+
+        int scanList = table + 4 + 8 * tableSize;
+        int scanChildCount = buffer.getInt(scanList);
+        for (int i = 0; i < scanChildCount; i++) {
+            int child = buffer.getInt(scanList + 4 + 4 * i);
+            if (child != exactChild) {
+                NodeMatcher matcher = matcher(child);
+                if (CompiledNode.matchesSegment(matcher.uriTemplatePart,
+                        matcher.keyNames, url, from, segmentEnd, result,
+                        policies)) {
+                    int leaf = findRest(child, url, slashIndex, end, result);
+                    if (leaf != 0) {
+                        return leaf;
+                    }
+                }
+            }
+            if (result != null) {
+                result.truncate(mark);
+            }
+        }
+
+        // query string runs to the end of url, slashes and all
+        int pathTable = scanList + 4 + 4 * scanChildCount;
+        int pathTableSize = buffer.getInt(pathTable);
+        int queryList = pathTable + 4 + 8 * pathTableSize;
+        if (pathTableSize > 0 || buffer.getInt(queryList) > 0) {
+            int question = Node.indexOf(url, '?', from, segmentEnd);
+            if (question != -1) {
+                return findQuery(pathTable, pathTableSize, queryList, url, from,
+                        question, end, result);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Same as <code>CompiledNode.findQuery()</code>: look up the query
+     * children of the literal path of url, then try those whose path has
+     * variables
+     *
+     * @param pathTable     offset of path table
+     * @param pathTableSize number of slots of path table
+     * @param queryList     offset of list of query children whose path has
+     *                      variables
+     * @param url           incoming url
+     * @param from          index of first character of segment
+     * @param question      index of '?' in segment
+     * @param end           index after last character of the url
+     * @param result        receives variables; may be null
+     * @return offset of leaf node; 0 if no match
+     */
+    private int findQuery(int pathTable, int pathTableSize, int queryList,
+                          CharSequence url, int from, int question, int end,
+                          MatchResult result) {
+        if (pathTableSize > 0) {
+            int samePath = lookup(pathTable + 4, pathTableSize, 0, url, from, question);
+            if (samePath != 0) {
+                int leaf = findQuery(samePath + 4 + 2 * buffer.getInt(samePath), url,
+                        from, question, end, result);
+                if (leaf != 0) {
+                    return leaf;
+                }
+            }
+        }
+        return findQuery(queryList, url, from, question, end, result);
+    }
+
+    /**
+     * Try each query child of list in turn
+     *
+     * @param queryList offset of query child list
+     * @return offset of leaf node; 0 if no match
+     */
+    private int findQuery(int queryList, CharSequence url, int from, int question,
+                          int end, MatchResult result) {
+        int mark = (result == null) ? 0 : result.variableCount();
+        int queryChildCount = buffer.getInt(queryList);
+        for (int i = 0; i < queryChildCount; i++) {
+            int child = buffer.getInt(queryList + 4 + 4 * i);
+            if (matcher(child).query.matches(url, from, question, end, result,
+                    policies)) {
+                return child;
+            }
+            if (result != null) {
+                result.truncate(mark);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Once a segment matches node, check the rest of the url
+     */
+    private int findRest(int node, CharSequence url, int slashIndex, int end,
+                         MatchResult result) {
+        if (slashIndex == -1) {
+            return (buffer.get(node) & 1) != 0 ? node : 0;
+        }
+        return findLeaf(node, url, slashIndex + 1, end, result);
+    }
+
+    /**
+     * Find the entry of a child table or path table whose key equals the
+     * region of url
+     *
+     * @param slots     offset of first slot of table
+     * @param tableSize number of slots, a power of two
+     * @param keyOffset offset of key string within entry: node value or path
+     * @param url       incoming url
+     * @param start     index of first character of region
+     * @param end       index after last character of region
+     * @return offset of entry; 0 if not found
+     */
+    private int lookup(int slots, int tableSize, int keyOffset, CharSequence url,
+                       int start, int end) {
+        int hash = LiteralIndex.hashCode(url, start, end);
+        int mask = tableSize - 1;
+        for (int slot = LiteralIndex.spread(hash) & mask; ;
+             slot = (slot + 1) & mask) {
+            int entry = buffer.getInt(slots + 8 * slot + 4);
+            if (entry == 0) {
+                return 0;
+            }
+            if (buffer.getInt(slots + 8 * slot) == hash
+                    && stringEquals(entry + keyOffset, url, start, end)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Compare string at offset with a region of CharSequence
+     */
+    private boolean stringEquals(int offset, CharSequence s, int start, int end) {
+        int length = buffer.getInt(offset);
+        if (length != end - start) {
+            return false;
+        }
+        int chars = offset + 4;
+        for (int i = 0; i < length; i++) {
+            if (buffer.getChar(chars + 2 * i) != s.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Names of variables of node; empty if not wildcard
+     */
+    private String[] keyNames(int node) {
+        return (buffer.getInt(node + 1) == -1) ? CompiledNode.NO_KEY_NAMES
+                : matcher(node).keyNames;
+    }
+
+    /**
+     * Matcher of wildcard or query node; built from node value on first use.
+     * Two threads may build the same matcher at once; either one is kept.
+     */
+    private NodeMatcher matcher(int node) {
+        int index = buffer.getInt(node + 1);
+        NodeMatcher matcher = matchers.get(index);
+        if (matcher == null) {
+            int flags = buffer.get(node);
+            matcher = new NodeMatcher(readString(node + NODE_VALUE),
+                    NodeType.values()[(flags >> 1) & 3] != NodeType.NOT_WILDCARD,
+                    (flags & 8) != 0);
+            matchers.compareAndSet(index, null, matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * @param offset offset of policies
+     * @return policies written by <code>Writer.writePolicies()</code>
+     */
+    private CharPolicies readPolicies(int offset) {
+        CharPolicies read = CharPolicies.DEFAULT.with(readPolicy(offset));
+        offset += POLICY_SIZE;
+        int variableCount = buffer.getInt(offset);
+        offset += 4;
+        for (int i = 0; i < variableCount; i++) {
+            String variableName = readString(offset);
+            offset += 4 + 2 * variableName.length();
+            read = read.with(variableName, readPolicy(offset));
+            offset += POLICY_SIZE;
+        }
+        return read;
+    }
+
+    private CharPolicy readPolicy(int offset) {
+        int flags = buffer.get(offset + 16);
+        return CharPolicies.restore(buffer.getLong(offset), buffer.getLong(offset + 8),
+                CharPolicy.NonAscii.values()[flags & 3], (flags & 4) != 0);
+    }
+
+    private int templateOffset(int node) {
+        int value = node + NODE_VALUE;
+        return value + 4 + 2 * buffer.getInt(value);
+    }
+
+    private int tableOffset(int node) {
+        int template = templateOffset(node);
+        return template + 4 + 2 * Math.max(0, buffer.getInt(template));
+    }
+
+    /**
+     * @return string at offset; null if length is -1
+     */
+    private String readString(int offset) {
+        int length = buffer.getInt(offset);
+        if (length == -1) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar(offset + 4 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Matcher of a wildcard node, and names of its variables, and path and
+     * query parameters of a query node
+     */
+    private static final class NodeMatcher {
+        // null if not wildcard
+        final UriTemplateValidator.UriTemplate uriTemplatePart;
+        final String[] keyNames;
+
+        // null if not query
+        final QueryTemplate query;
+
+        NodeMatcher(String value, boolean isWildcard, boolean isQuery) {
+            this.uriTemplatePart = isWildcard
+                    ? new UriTemplateValidator.UriTemplate(value) : null;
+            this.keyNames = isWildcard
+                    ? uriTemplatePart.getKeyNames().toArray(CompiledNode.NO_KEY_NAMES)
+                    : CompiledNode.NO_KEY_NAMES;
+            this.query = isQuery ? QueryTemplate.parse(value) : null;
+        }
+    }
+
+    /**
+     * Write nodes, children before parent
+     */
+    private static final class Writer {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        int matcherCount = 0;
+
+        Writer() throws IOException {
+            // header is filled in at the end
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        void writePolicies(CharPolicies policies) throws IOException {
+            writePolicy(policies.policy());
+            out.writeInt(policies.byVariable().size());
+            for (Map.Entry<String, CharPolicy> entry : policies.byVariable().entrySet()) {
+                writeString(entry.getKey());
+                writePolicy(entry.getValue());
+            }
+        }
+
+        void writePolicy(CharPolicy policy) throws IOException {
+            out.writeLong(CharPolicies.asciiBits(policy, 0));
+            out.writeLong(CharPolicies.asciiBits(policy, 64));
+            out.writeByte(policy.getNonAscii().ordinal()
+                    | (policy.isPercentEncodedAllowed() ? 4 : 0));
+        }
+
+        /**
+         * @return offset of node
+         */
+        int writeNode(CompiledNode node) throws IOException {
+            List<CompiledNode> children = node.children();
+            Map<CompiledNode, Integer> offsets = new IdentityHashMap<>();
+            for (CompiledNode child : children) {
+                offsets.put(child, writeNode(child));
+            }
+
+            Map<String, CompiledNode[]> literalQueries = node.literalQueryChildren();
+            Map<String, Integer> queryLists = new LinkedHashMap<>();
+            for (Map.Entry<String, CompiledNode[]> entry : literalQueries.entrySet()) {
+                queryLists.put(entry.getKey(), out.size());
+                writeString(entry.getKey());
+                writeOffsets(entry.getValue(), offsets);
+            }
+
+            int offset = out.size();
+            int flags = (node.isLeaf() ? 1 : 0) | (node.nodeType().ordinal() << 1)
+                    | (node.hasQuery() ? 8 : 0);
+            out.writeByte(flags);
+            out.writeInt(node.nodeType() == NodeType.NOT_WILDCARD && !node.hasQuery()
+                    ? -1 : matcherCount++);
+            writeString(node.value());
+            writeString(node.template());
+
+            Map<String, Integer> childOffsets = new LinkedHashMap<>();
+            for (CompiledNode child : children) {
+                childOffsets.put(child.value(), offsets.get(child));
+            }
+            writeTable(childOffsets);
+            writeOffsets(node.scanChildren(), offsets);
+            writeTable(queryLists);
+            writeOffsets(node.wildcardQueryChildren(), offsets);
+            return offset;
+        }
+
+        /**
+         * Write hash table from key to offset, same layout as LiteralIndex;
+         * load factor at or below 0.5
+         */
+        void writeTable(Map<String, Integer> entries) throws IOException {
+            int tableSize = entries.isEmpty() ? 0
+                    : Integer.highestOneBit(entries.size() * 2 - 1) << 1;
+            int[] hashes = new int[tableSize];
+            int[] entryOffsets = new int[tableSize];
+            for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+                int hash = entry.getKey().hashCode();
+                int slot = LiteralIndex.spread(hash) & (tableSize - 1);
+                while (entryOffsets[slot] != 0) {
+                    slot = (slot + 1) & (tableSize - 1);
+                }
+                hashes[slot] = hash;
+                entryOffsets[slot] = entry.getValue();
+            }
+            out.writeInt(tableSize);
+            for (int slot = 0; slot < tableSize; slot++) {
+                out.writeInt(hashes[slot]);
+                out.writeInt(entryOffsets[slot]);
+            }
+        }
+
+        /**
+         * Write count, then offset of each node
+         */
+        void writeOffsets(CompiledNode[] nodes, Map<CompiledNode, Integer> offsets)
+                throws IOException {
+            out.writeInt(nodes.length);
+            for (CompiledNode node : nodes) {
+                out.writeInt(offsets.get(node));
+            }
+        }
+
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(s.length());
+                out.writeChars(s);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.prodigi.object;
+
+/**
+ * Told about each step of matching a url against a Trie, for tracing. All
+ * methods do nothing by default; override the ones needed.
+ *
+ * A listener is installed on a PatternMatchingTrie, or passed to a single
+ * call. When there is none, matching checks a null reference at each step,
+ * and nothing else: no event, no timing, no allocation.
+ *
+ * For example, to log every node entered:
+ * <code>
+ *   trie.matches(url, new MatchListener() {
+ *       public void onNodeEntered(CharSequence url, String node, int start, int end) {
+ *           logger.info(node + " matches " + url.subSequence(start, end));
+ *       }
+ *   });
+ * </code>
+ *
+ * Methods are called on the thread that matches, in order, and must not
+ * throw. A url found in the ResultCache, or rejected by the PrefixFilter, is
+ * not walked, so it has no events.
+ *
+ * @author Wilkin Cheung
+ * @see SlowMatchTracer
+ */
+public interface MatchListener {
+
+    /**
+     * Called before url is matched. Returns the listener for this url, so a
+     * listener can trace only some urls, for example a sample of them.
+     *
+     * @param url incoming url
+     * @return listener for the rest of this match; null for no events
+     */
+    default MatchListener onStart(CharSequence url) {
+        return this;
+    }
+
+    /**
+     * Called when a segment of url matches a node, by value or by pattern.
+     * The walk goes on below it.
+     *
+     * @param url   incoming url
+     * @param node  value of node, such as {imageId}
+     * @param start index of first character of segment
+     * @param end   index after last character of segment
+     */
+    default void onNodeEntered(CharSequence url, String node, int start, int end) {
+    }
+
+    /**
+     * Called when a segment of url is compared against a wildcard node, or
+     * the path and query against a query node, and matches. The node is then
+     * entered.
+     *
+     * @param url   incoming url
+     * @param node  value of node
+     * @param start index of first character of segment
+     * @param end   index after last character of segment
+     */
+    default void onCandidateMatched(CharSequence url, String node, int start, int end) {
+    }
+
+    /**
+     * Called when a segment of url is compared against a wildcard node, or
+     * the path and query against a query node, and does not match
+     *
+     * @param url   incoming url
+     * @param node  value of node
+     * @param start index of first character of segment
+     * @param end   index after last character of segment
+     */
+    default void onCandidateRejected(CharSequence url, String node, int start, int end) {
+    }
+
+    /**
+     * Called once url has matched a template
+     *
+     * @param url      incoming url
+     * @param template template that matched
+     * @param nanos    time to match
+     */
+    default void onMatched(CharSequence url, String template, long nanos) {
+    }
+
+    /**
+     * Called once url has matched no template
+     *
+     * @param url   incoming url
+     * @param nanos time to match
+     */
+    default void onNoMatch(CharSequence url, long nanos) {
+    }
+}
@@ -0,0 +1,408 @@
+package com.prodigi.object;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Counters and a latency histogram of matches against a Trie. Meant to stay
+ * installed in production:
+ * <code>
+ *   MatchMetrics metrics = new MatchMetrics();
+ *   trie.setMetrics(metrics);
+ *   ...
+ *   MatchMetrics.Snapshot snapshot = metrics.snapshot();
+ *   String text = snapshot.toPrometheus("uri_trie");
+ * </code>
+ *
+ * Every counter is a LongAdder, striped by thread, so threads that match at
+ * the same time do not contend on a counter. Reading a snapshot sums the
+ * stripes; counters are read one by one, not atomically.
+ *
+ * A walk down the Trie counts each segment walked (each node entered) and
+ * each wildcard evaluation (each wildcard or query node that a segment is
+ * compared against), and its latency. A url answered without a walk, from
+ * the result cache or by the prefix filter, only counts as a call, and a
+ * hit or a miss. So do urls of <code>matchAll()</code>.
+ *
+ * @author Wilkin Cheung
+ */
+public final class MatchMetrics implements MatchListener {
+
+    // upper bound of each latency bucket, in nanoseconds. The last bucket,
+    // with no bound, counts slower matches.
+    private static final long[] LATENCY_BOUNDS = {
+        TimeUnit.MICROSECONDS.toNanos(1),
+        TimeUnit.MICROSECONDS.toNanos(2),
+        TimeUnit.MICROSECONDS.toNanos(5),
+        TimeUnit.MICROSECONDS.toNanos(10),
+        TimeUnit.MICROSECONDS.toNanos(20),
+        TimeUnit.MICROSECONDS.toNanos(50),
+        TimeUnit.MICROSECONDS.toNanos(100),
+        TimeUnit.MICROSECONDS.toNanos(200),
+        TimeUnit.MICROSECONDS.toNanos(500),
+        TimeUnit.MILLISECONDS.toNanos(1),
+        TimeUnit.MILLISECONDS.toNanos(2),
+        TimeUnit.MILLISECONDS.toNanos(5),
+        TimeUnit.MILLISECONDS.toNanos(10)
+    };
+
+    private static final Pattern METRIC_NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+    private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unwalked = new LongAdder();
+    private final LongAdder segments = new LongAdder();
+    private final LongAdder wildcardEvaluations = new LongAdder();
+
+    // latencyCounts[i] counts walks of at most LATENCY_BOUNDS[i] nanoseconds,
+    // and more than LATENCY_BOUNDS[i - 1]
+    private final LongAdder[] latencyCounts = new LongAdder[LATENCY_BOUNDS.length + 1];
+    private final LongAdder latencySumNanos = new LongAdder();
+
+    public MatchMetrics() {
+        for (int i = 0; i < latencyCounts.length; i++) {
+            latencyCounts[i] = new LongAdder();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onStart(java.lang.CharSequence)
+     */
+    @Override
+    public MatchListener onStart(CharSequence url) {
+        calls.increment();
+        return this;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onNodeEntered(java.lang.CharSequence, java.lang.String, int, int)
+     */
+    @Override
+    public void onNodeEntered(CharSequence url, String node, int start, int end) {
+        segments.increment();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onCandidateMatched(java.lang.CharSequence, java.lang.String, int, int)
+     */
+    @Override
+    public void onCandidateMatched(CharSequence url, String node, int start, int end) {
+        wildcardEvaluations.increment();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onCandidateRejected(java.lang.CharSequence, java.lang.String, int, int)
+     */
+    @Override
+    public void onCandidateRejected(CharSequence url, String node, int start, int end) {
+        wildcardEvaluations.increment();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onMatched(java.lang.CharSequence, java.lang.String, long)
+     */
+    @Override
+    public void onMatched(CharSequence url, String template, long nanos) {
+        hits.increment();
+        recordLatency(nanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onNoMatch(java.lang.CharSequence, long)
+     */
+    @Override
+    public void onNoMatch(CharSequence url, long nanos) {
+        misses.increment();
+        recordLatency(nanos);
+    }
+
+    /**
+     * Count a url answered without a walk down the Trie
+     *
+     * @param matched true if url matches a template
+     */
+    void recordUnwalked(boolean matched) {
+        calls.increment();
+        unwalked.increment();
+        (matched ? hits : misses).increment();
+    }
+
+    /**
+     * Count urls of one <code>matchAll()</code> call
+     *
+     * @param count   number of urls
+     * @param matched number of urls that match a template
+     */
+    void recordBatch(int count, int matched) {
+        calls.add(count);
+        hits.add(matched);
+        misses.add(count - matched);
+    }
+
+    private void recordLatency(long nanos) {
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && nanos > LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        latencyCounts[bucket].increment();
+        latencySumNanos.add(nanos);
+    }
+
+    /**
+     * @return current value of each counter and of the latency histogram
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[latencyCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencyCounts[i].sum();
+        }
+        return new Snapshot(calls.sum(), hits.sum(), misses.sum(), unwalked.sum(), segments.sum(),
+                wildcardEvaluations.sum(), counts, latencySumNanos.sum());
+    }
+
+    /**
+     * Set every counter and the histogram back to 0. Matches at the same time
+     * may be counted in part.
+     */
+    public void reset() {
+        calls.reset();
+        hits.reset();
+        misses.reset();
+        unwalked.reset();
+        segments.reset();
+        wildcardEvaluations.reset();
+        for (LongAdder count : latencyCounts) {
+            count.reset();
+        }
+        latencySumNanos.reset();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * Immutable values of MatchMetrics at one point in time
+     */
+    public static final class Snapshot {
+
+        private final long calls;
+        private final long hits;
+        private final long misses;
+        private final long unwalked;
+        private final long segments;
+        private final long wildcardEvaluations;
+        private final long[] latencyCounts;
+        private final long latencySumNanos;
+
+        private Snapshot(long calls, long hits, long misses, long unwalked, long segments,
+                long wildcardEvaluations, long[] latencyCounts, long latencySumNanos) {
+            this.calls = calls;
+            this.hits = hits;
+            this.misses = misses;
+            this.unwalked = unwalked;
+            this.segments = segments;
+            this.wildcardEvaluations = wildcardEvaluations;
+            this.latencyCounts = latencyCounts;
+            this.latencySumNanos = latencySumNanos;
+        }
+
+        /**
+         * @return number of urls matched
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return number of urls that matched a template
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return number of urls that matched no template
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return number of urls answered without a walk down the Trie, from
+         *         the result cache or by the prefix filter
+         */
+        public long getUnwalked() {
+            return unwalked;
+        }
+
+        /**
+         * @return number of segments walked, that is nodes entered
+         */
+        public long getSegments() {
+            return segments;
+        }
+
+        /**
+         * @return number of segments compared against a wildcard or query
+         *         node
+         */
+        public long getWildcardEvaluations() {
+            return wildcardEvaluations;
+        }
+
+        /**
+         * @return upper bound of each latency bucket but the last, in
+         *         nanoseconds
+         */
+        public long[] getLatencyBounds() {
+            return LATENCY_BOUNDS.clone();
+        }
+
+        /**
+         * @return number of walks in each latency bucket; one more than
+         *         bounds, the last for walks slower than every bound
+         */
+        public long[] getLatencyCounts() {
+            return latencyCounts.clone();
+        }
+
+        /**
+         * @return number of walks timed
+         */
+        public long getLatencyCount() {
+            long count = 0;
+            for (long bucket : latencyCounts) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        /**
+         * @return total time of walks timed, in nanoseconds
+         */
+        public long getLatencySumNanos() {
+            return latencySumNanos;
+        }
+
+        /**
+         * @param prefix prefix of each metric name, such as uri_trie
+         * @return counters and histogram in Prometheus text format
+         * @see #toPrometheus(String, Map)
+         */
+        public String toPrometheus(String prefix) {
+            return toPrometheus(prefix, Collections.<String, String>emptyMap());
+        }
+
+        /**
+         * Counters and histogram in Prometheus text exposition format, version
+         * 0.0.4. Latency is in seconds, with cumulative buckets.
+         * <code>
+         *   uri_trie_calls_total{apiKey="abc"} 1024
+         *   ...
+         *   uri_trie_match_duration_seconds_bucket{apiKey="abc",le="0.000001"} 17
+         * </code>
+         *
+         * @param prefix prefix of each metric name, such as uri_trie
+         * @param labels label of every sample, by name, in order
+         * @return text to serve on a metrics endpoint
+         */
+        public String toPrometheus(String prefix, Map<String, String> labels) {
+            if (prefix == null || !METRIC_NAME.matcher(prefix).matches()) {
+                throw new IllegalArgumentException("invalid metric name prefix: " + prefix);
+            }
+            StringBuilder common = new StringBuilder();
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                if (!LABEL_NAME.matcher(label.getKey()).matches() || label.getKey().startsWith("__")) {
+                    throw new IllegalArgumentException("invalid label name: " + label.getKey());
+                }
+                if (common.length() > 0) {
+                    common.append(',');
+                }
+                common.append(label.getKey()).append("=\"");
+                escape(label.getValue(), common);
+                common.append('"');
+            }
+            String plain = (common.length() == 0) ? "" : "{" + common + "}";
+            String bucketPrefix = (common.length() == 0) ? "{" : "{" + common + ",";
+
+            StringBuilder out = new StringBuilder(2048);
+            counter(out, prefix + "_calls_total", "Urls matched", plain, calls);
+            counter(out, prefix + "_hits_total", "Urls that matched a template", plain, hits);
+            counter(out, prefix + "_misses_total", "Urls that matched no template", plain, misses);
+            counter(out, prefix + "_unwalked_total", "Urls answered without a walk down the trie",
+                    plain, unwalked);
+            counter(out, prefix + "_segments_total", "Segments walked", plain, segments);
+            counter(out, prefix + "_wildcard_evaluations_total",
+                    "Segments compared against a wildcard or query node", plain, wildcardEvaluations);
+
+            String histogram = prefix + "_match_duration_seconds";
+            out.append("# HELP ").append(histogram).append(" Time to walk down the trie\n");
+            out.append("# TYPE ").append(histogram).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < latencyCounts.length; i++) {
+                cumulative += latencyCounts[i];
+                String bound = (i < LATENCY_BOUNDS.length) ? seconds(LATENCY_BOUNDS[i]) : "+Inf";
+                out.append(histogram).append("_bucket").append(bucketPrefix)
+                        .append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(histogram).append("_sum").append(plain).append(' ')
+                    .append(seconds(latencySumNanos)).append('\n');
+            out.append(histogram).append("_count").append(plain).append(' ')
+                    .append(cumulative).append('\n');
+            return out.toString();
+        }
+
+        private static void counter(StringBuilder out, String name, String help, String labels, long value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(labels).append(' ').append(value).append('\n');
+        }
+
+        private static String seconds(long nanos) {
+            return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+        }
+
+        private static void escape(String value, StringBuilder out) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    out.append('\\').append(c);
+                } else if (c == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format("MatchMetrics [calls=%d, hits=%d, misses=%d, unwalked=%d, segments=%d, "
+                    + "wildcardEvaluations=%d, latencyCounts=%s, latencySumNanos=%d]", calls, hits, misses,
+                    unwalked, segments, wildcardEvaluations, Arrays.toString(latencyCounts), latencySumNanos);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.prodigi.object;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of matching a url against a Trie: which template matched, and the
+ * value of each variable, found in a single walk down the Trie.
+ *
+ * A MatchResult is a reusable holder supplied by the caller. Variable values
+ * are recorded as start and end index into the url, so filling a MatchResult
+ * allocates nothing once its arrays are large enough. Strings are only
+ * created on demand, by <code>value()</code>, <code>get()</code> or
+ * <code>toMap()</code>.
+ *
+ * For example:
+ * <code>
+ *   MatchResult result = new MatchResult();
+ *   if (trie.match("http://prodigi.com/human/v1/rec/id/123.json", result)) {
+ *       result.template();    // "http://prodigi.com/human/v1/{type}/id/{id}.json"
+ *       result.get("id");     // "123"
+ *   }
+ * </code>
+ *
+ * Variable names are those of the Trie nodes. Templates that differ only by
+ * complete wildcard names, such as /{a} and /{b}, share nodes; names and
+ * template reported are then those of the first template added.
+ *
+ * A MatchResult is not thread-safe. Keep one per thread, and do not modify
+ * the url while reading values.
+ *
+ * @author Wilkin Cheung
+ */
+public final class MatchResult {
+
+    // url last matched
+    private CharSequence url;
+
+    // template that matched; null if no match
+    private String template;
+
+    // name of each variable
+    private String[] names = new String[8];
+
+    // start index of variable i at [2 * i], end index at [2 * i + 1];
+    // -1 if variable is not bound to a value
+    private int[] offsets = new int[16];
+
+    // number of variables
+    private int variableCount;
+
+    /**
+     * Did the last match find a template?
+     *
+     * @return true if url matched a template; false otherwise
+     */
+    public boolean matched() {
+        return template != null;
+    }
+
+    /**
+     * @return template that matched, as added to Trie; null if no match
+     */
+    public String template() {
+        return template;
+    }
+
+    /**
+     * @return url last matched
+     */
+    public CharSequence url() {
+        return url;
+    }
+
+    /**
+     * @return number of variables, from left to right in template
+     */
+    public int variableCount() {
+        return variableCount;
+    }
+
+    /**
+     * @param i index of variable
+     * @return name of variable
+     */
+    public String name(int i) {
+        checkIndex(i);
+        return names[i];
+    }
+
+    /**
+     * @param i index of variable
+     * @return index of first character of value in url; -1 if not bound
+     */
+    public int start(int i) {
+        checkIndex(i);
+        return offsets[2 * i];
+    }
+
+    /**
+     * @param i index of variable
+     * @return index after last character of value in url; -1 if not bound
+     */
+    public int end(int i) {
+        checkIndex(i);
+        return offsets[2 * i + 1];
+    }
+
+    /**
+     * Value of variable. A variable is not bound to a value if its segment
+     * of url is literally the same as the template, for example "{id}".
+     *
+     * @param i index of variable
+     * @return value of variable as String; null if not bound
+     */
+    public String value(int i) {
+        int start = start(i);
+        return (start == -1) ? null : url.subSequence(start, end(i)).toString();
+    }
+
+    /**
+     * Value of variable by name. If the name occurs more than once, the last
+     * value is returned, same as <code>UriTemplate.match()</code>.
+     *
+     * @param name name of variable
+     * @return value of variable as String; null if not found or not bound
+     */
+    public String get(String name) {
+        for (int i = variableCount - 1; i >= 0; i--) {
+            if (names[i].equals(name)) {
+                return value(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy variables into a Map, same as <code>UriTemplate.match()</code>
+     *
+     * @return Map of variable name to value, in template order
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>(variableCount);
+        for (int i = 0; i < variableCount; i++) {
+            map.put(names[i], value(i));
+        }
+        return map;
+    }
+
+    /**
+     * Clear result before matching url
+     *
+     * @param url url about to be matched
+     */
+    void reset(CharSequence url) {
+        this.url = url;
+        this.template = null;
+        this.variableCount = 0;
+    }
+
+    /**
+     * Make room for more variables, and return offsets for them to be written
+     * into, starting at index <code>2 * variableCount()</code>
+     *
+     * @param count number of variables to be added
+     * @return offsets array
+     */
+    int[] reserve(int count) {
+        int required = variableCount + count;
+        if (required > names.length) {
+            int capacity = Math.max(required, names.length * 2);
+            names = Arrays.copyOf(names, capacity);
+            offsets = Arrays.copyOf(offsets, 2 * capacity);
+        }
+        return offsets;
+    }
+
+    /**
+     * Add variables whose offsets were written after <code>reserve()</code>
+     *
+     * @param variableNames names of variables
+     */
+    void bind(String[] variableNames) {
+        System.arraycopy(variableNames, 0, names, variableCount,
+                variableNames.length);
+        variableCount += variableNames.length;
+    }
+
+    /**
+     * Add one variable
+     *
+     * @param name  name of variable
+     * @param start index of first character of value; -1 if not bound
+     * @param end   index after last character of value; -1 if not bound
+     */
+    void bind(String name, int start, int end) {
+        reserve(1);
+        names[variableCount] = name;
+        offsets[2 * variableCount] = start;
+        offsets[2 * variableCount + 1] = end;
+        variableCount++;
+    }
+
+    /**
+     * Add variables that are not bound to a value
+     *
+     * @param variableNames names of variables
+     */
+    void bindUnbound(String[] variableNames) {
+        for (String name : variableNames) {
+            bind(name, -1, -1);
+        }
+    }
+
+    /**
+     * Remove variables added after a mark, when walk backtracks
+     *
+     * @param mark number of variables to keep
+     */
+    void truncate(int mark) {
+        variableCount = mark;
+    }
+
+    /**
+     * Record template that matched
+     *
+     * @param matchedTemplate template
+     */
+    void complete(String matchedTemplate) {
+        this.template = matchedTemplate;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= variableCount) {
+            throw new IndexOutOfBoundsException("variable " + i + " of "
+                    + variableCount);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return matched() ? template + " " + toMap() : "no match";
+    }
+}
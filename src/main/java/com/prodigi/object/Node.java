@@ -1,16 +1,22 @@
 package com.prodigi.object;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 import com.prodigi.exception.TrieException;
+import com.prodigi.service.CharPolicy;
 import com.prodigi.service.UriTemplateValidator;
+import com.prodigi.service.VariableFilter;
 import org.apache.log4j.Logger;
 
 /**
@@ -25,7 +31,7 @@ public class Node implements Serializable {
             .compile(".*\\{(\\w+)?\\}.*");
 
     // required for (de-)serialization
-    protected static final long serialVersionUID = 1L;
+    protected static final long serialVersionUID = 2L;
 
     // If URL template PARAM VALUE contains ANY of the following characters, then
     // no match
@@ -64,21 +70,11 @@ public class Node implements Serializable {
     // 5D ]
     // 60 `
     //
-    private static String RESERVED_CHARS_HEX_VALUE =
-            "\\x26\\x2C\\x2F\\x3A\\x3B\\x3D\\x3F\\x40";
-    private static String UNSAFE_CHARS_HEX_VALUE =
-            "\\x22\\x3C\\x3E\\x23\\x7B\\x7D\\x7C\\x5C\\x5E\\x5B\\x5D\\x60";
-    private static String ASCII_CONTROL_CHARS_HEX_VALUE = "\\x00-\\x1F";
-    private static String NON_ASCII_CHARS_HEX_VALUE = "\\x80-\\xFF";
-    private static String WHITESPACE_CHARS_HEX_VALUE = "\\x20";
-
-    // Pattern that represents invalid characters defined above
-    // The idea is that, if ANY of invalid characters appear in the URL Template
-    // param, then there is no match
-    private static Pattern INVALID_CHARS_IN_PARAM = Pattern.compile(".*["
-            + RESERVED_CHARS_HEX_VALUE + UNSAFE_CHARS_HEX_VALUE
-            + NON_ASCII_CHARS_HEX_VALUE + WHITESPACE_CHARS_HEX_VALUE
-            + ASCII_CONTROL_CHARS_HEX_VALUE + "].*");
+    // Filter that rejects param value with invalid characters defined above,
+    // except 7F. The idea is that, if ANY of invalid characters appear in the
+    // URL Template param, then there is no match.
+    // @see CharPolicy#DEFAULT
+    static final VariableFilter VALID_PARAM = CharPolicy.DEFAULT;
 
     private static Logger logger = Logger.getLogger(Node.class);
 
@@ -86,6 +82,7 @@ public class Node implements Serializable {
     private String value;
 
     // if PARTIAL_WILDCARD, then use pattern matching. Support one or more {}
+    // Left null by TrieCodec, and built again on first use.
     private UriTemplateValidator.UriTemplate uriTemplatePart = null;
 
     // @see Enum nodeType
@@ -99,15 +96,27 @@ public class Node implements Serializable {
     // Set this flag if this is the last pattern in url (ie. leaf node)
     private boolean isLeaf = false;
 
+    // Templates that end at this node, in the order they were added, and the
+    // value attached to each (null if none). More than one template ends at
+    // the same node if they differ only by complete wildcard names, such as
+    // /{a} and /{b}. Empty if not leaf.
+    private Map<String, Object> templates = new LinkedHashMap<>(2);
+
     // Each node connects to child nodes through an Edge
     // In most use-case, an Edge is forward slash.
-    private Map<Edge, Set<Node>> edgeToChildrenMap = new HashMap<>();
+    // Children are indexed by value; wildcard children are also kept in a
+    // separate short list. @see Children
+    private Map<Edge, Children> edgeToChildrenMap = new HashMap<>();
+
+    // Immutable copy of this node and all nodes below it, reused by the next
+    // compile if nothing below this node changed. Any change to this node or
+    // its children clears it, on this node and on all its ancestors.
+    private transient CompiledNode compiled;
 
-    // store param value, for later check for invalid chars
-    // this variable is used only in comparing URL against URL Template.
-    // moot point to mark it volatile actually (not used in assembling Trie) but
-    // mark it as transient anyway
-    private transient Map<String, String> paramValues = new LinkedHashMap<>();
+    // number of urls that matched the first template of this leaf node,
+    // shared by each compiled copy; null until first compiled, and again
+    // once the first template is removed
+    private transient LongAdder hits;
 
     /**
      * Constructor. This method also figures out nodeType
@@ -119,7 +128,7 @@ public class Node implements Serializable {
         this.value = v;
         this.nodeType = getNodeType();
 
-        debug(String.format("  nodeType=%s for value %s", nodeType, value));
+        debug("  nodeType=%s for value %s", nodeType, value);
     }
 
     /**
@@ -138,8 +147,8 @@ public class Node implements Serializable {
         // wildcard siblings
         // siblings properties and siblings' children will be merged into a single
         // node
-        if (parentNode.isCompleteWildcard(value)) {
-            debug(String.format("   value [%s] is complete wildcard", value));
+        if (isCompleteWildcard(value)) {
+            debug("   value [%s] is complete wildcard", value);
 
             Node completeWildcardChild =
                     parentNode.getCompleteWildcardChildOrNull(edge);
@@ -157,10 +166,10 @@ public class Node implements Serializable {
                 newWildcardChild.nodeType = NodeType.COMPLETE_WILDCARD;
                 newWildcardChild.isLeaf = isLast;
 
-                debug(String.format("       ->newWildcardChild.value=%s, edge=%s",
-                        value, edge));
+                debug("       ->newWildcardChild.value=%s, edge=%s",
+                        value, edge);
 
-                Iterator<Node> iter = parentNode.getChildren(edge).iterator();
+                Iterator<Node> iter = parentNode.getChildrenOrEmpty(edge).all().iterator();
 
                 if (iter.hasNext() == false) {
                     debug("       ->No sibling to consolidate");
@@ -169,17 +178,23 @@ public class Node implements Serializable {
                 }
                 while (iter.hasNext()) {
                     Node sibling = iter.next();
-                    debug(String.format("         =>Sibling: value=%s, nodeType=%s",
-                            sibling.value, sibling.nodeType));
+                    debug("         =>Sibling: value=%s, nodeType=%s",
+                            sibling.value, sibling.nodeType);
 
                     if (sibling.nodeType == NodeType.COMPLETE_WILDCARD) {
                         // consolidate children of siblings
-                        newWildcardChild.getChildren(edge)
-                                .addAll(sibling.getChildren(edge));
+                        for (Node nephew : sibling.getChildrenOrEmpty(edge).all()) {
+                            newWildcardChild.getChildren(edge).add(nephew);
+                        }
 
                         // set properties
                         if (sibling.isLeaf) {
                             newWildcardChild.isLeaf = true;
+                            for (Map.Entry<String, Object> entry : sibling.templates.entrySet()) {
+                                if (!newWildcardChild.templates.containsKey(entry.getKey())) {
+                                    newWildcardChild.templates.put(entry.getKey(), entry.getValue());
+                                }
+                            }
                             debug("            Copied from sibling: newWildcardChild.isLast = true");
                         }
                         if (sibling.hasCompleteWildcardChild) {
@@ -195,8 +210,8 @@ public class Node implements Serializable {
                 // obsolete
                 parentNode.getChildren(edge).add(newWildcardChild);
 
-                debug(String.format("       ->newWildcardChild.isLast=%s",
-                        newWildcardChild.isLeaf));
+                debug("       ->newWildcardChild.isLast=%s",
+                        newWildcardChild.isLeaf);
 
                 // for later pattern comparison to find invalid character
                 newWildcardChild.uriTemplatePart = new UriTemplateValidator.UriTemplate(value);
@@ -215,15 +230,24 @@ public class Node implements Serializable {
             }
         }
 
-        debug(String.format("   ->value [%s] is just regular child", value));
+        debug("   ->value [%s] is just regular child", value);
+
+        // if child already exists, then merge properties
+        // If a property is true, then it stays true
+        Node existingChild = parentNode.getExactChildOrNull(value, edge);
+        if (existingChild != null) {
+            if (isLast) {
+                existingChild.isLeaf = true;
+            }
+            return existingChild;
+        }
 
         // Just create a new node and set its properties
         Node child = new Node(value, edge);
 
         if (PARTIAL_WILDCARD_PATTERN.matcher(value).matches()) {
-            debug(String
-                    .format("     ->value [%s] is partial wildcard. Create child node, and pattern",
-                            value));
+            debug("     ->value [%s] is partial wildcard. Create child node, and pattern",
+                    value);
             child.uriTemplatePart = new UriTemplateValidator.UriTemplate(value);
         }
 
@@ -232,33 +256,16 @@ public class Node implements Serializable {
         return child;
     }
 
-    /**
-     * Check if invalid characters. Invalid character means reserved, unsafe,
-     * whitespace, or ascii control characters.
-     *
-     * @param str String input
-     * @return true if invalid characters found; false otherwise
-     */
-    private static boolean hasInvalidCharacter(String str) {
-        boolean containsInvalidChars =
-                INVALID_CHARS_IN_PARAM.matcher(str).matches();
-
-        if (containsInvalidChars) {
-            debug(String.format(" ***Invalid char found in string: %s", str));
-        }
-
-        return containsInvalidChars;
-    }
-
     /**
      * Helper method for debugging
      *
-     * @param s debug statement
+     * @param format debug statement, formatted with args only if debug is
+     *               enabled
+     * @param args   arguments referenced by format
      */
-    private static void debug(String s) {
-        // System.out.println(s);
+    private static void debug(String format, Object... args) {
         if (logger.isDebugEnabled()) {
-            logger.debug(s);
+            logger.debug((args.length == 0) ? format : String.format(format, args));
         }
     }
 
@@ -294,22 +301,35 @@ public class Node implements Serializable {
      * @param value com.prodigi.object.Node value
      * @return true if value is complete wildcard; false otherwise
      */
-    private boolean isCompleteWildcard(String value) {
+    static boolean isCompleteWildcard(String value) {
         return value.startsWith("{") && value.endsWith("}")
                 && value.lastIndexOf('{') == 0;
     }
 
+    /**
+     * Get child nodes of current node for edge, without creating the holding
+     * data structure. Lookups use this method, so reading a Trie never writes
+     * to it.
+     *
+     * @param edge Edge
+     * @return Children of com.prodigi.object.Node; empty Children if none
+     */
+    Children getChildrenOrEmpty(Edge edge) {
+        Children children = edgeToChildrenMap.get(edge);
+        return (children == null) ? Children.EMPTY : children;
+    }
+
     /**
      * Get child nodes of current node for edge
      *
      * @param edge Edge
-     * @return Set of child com.prodigi.object.Node
+     * @return Children of com.prodigi.object.Node
      */
-    Set<Node> getChildren(Edge edge) {
+    Children getChildren(Edge edge) {
         // if map does not already contains edge, then create the holding data
         // structure
         if (!edgeToChildrenMap.keySet().contains(edge)) {
-            Set<Node> children = new HashSet<Node>();
+            Children children = new Children();
 
             edgeToChildrenMap.put(edge, children);
         }
@@ -324,8 +344,8 @@ public class Node implements Serializable {
     Set<Node> getAllChildrenForAllEdges() {
         Set<Node> combinedSetOfNode = new HashSet<>();
 
-        for (Set<Node> oneSetOfNode : edgeToChildrenMap.values()) {
-            combinedSetOfNode.addAll(oneSetOfNode);
+        for (Children oneSetOfNode : edgeToChildrenMap.values()) {
+            combinedSetOfNode.addAll(oneSetOfNode.all());
         }
         return combinedSetOfNode;
     }
@@ -339,7 +359,174 @@ public class Node implements Serializable {
      * @return newly added child com.prodigi.object.Node
      */
      Node addChildToCurrentNode(String child, boolean isLast, Edge edge) {
-        return addChildToParentNode(this, child, isLast, edge);
+        Node childNode = addChildToParentNode(this, child, isLast, edge);
+
+        // this node and child may have changed; caller walks down from root,
+        // so ancestors are cleared by their own addChildToCurrentNode()
+        this.compiled = null;
+        childNode.compiled = null;
+        return childNode;
+    }
+
+    /**
+     * Find the child node that a template segment was inserted into. Same as
+     * exact lookup, except that any complete wildcard segment goes to the
+     * complete wildcard child, since complete wildcard siblings are merged.
+     *
+     * @param segment template segment
+     * @param edge    Edge object
+     * @return child node if found; null otherwise
+     */
+    Node getChildForSegmentOrNull(String segment, Edge edge) {
+        if (isCompleteWildcard(segment)) {
+            return getCompleteWildcardChildOrNull(edge);
+        }
+        return getExactChildOrNull(segment, edge);
+    }
+
+    /**
+     * Remove child node, with everything below it
+     *
+     * @param child child node
+     * @param edge  Edge object
+     */
+    void removeChild(Node child, Edge edge) {
+        getChildrenOrEmpty(edge).remove(child);
+        hasCompleteWildcardChild = getCompleteWildcardChildOrNull(edge) != null;
+        compiled = null;
+    }
+
+    /**
+     * Give a complete wildcard child a new name, for example when the
+     * template that named it is removed. Children of child are kept.
+     *
+     * @param child    complete wildcard child node
+     * @param newValue new value, such as "{id}"
+     * @param edge     Edge object
+     */
+    void renameChild(Node child, String newValue, Edge edge) {
+        Children children = getChildrenOrEmpty(edge);
+        children.remove(child);
+        child.value = newValue;
+        child.uriTemplatePart = null;
+        child.compiled = null;
+        children.add(child);
+        compiled = null;
+    }
+
+    /**
+     * @return true if node has at least one child node
+     */
+    boolean hasChildren() {
+        for (Children children : edgeToChildrenMap.values()) {
+            if (children.size() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * First template that ends at this node or below it
+     *
+     * @return template; null if none
+     */
+    String firstTemplateBelow() {
+        if (!templates.isEmpty()) {
+            return templates.keySet().iterator().next();
+        }
+        for (Children children : edgeToChildrenMap.values()) {
+            for (Node child : children.all()) {
+                String template = child.firstTemplateBelow();
+                if (template != null) {
+                    return template;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collect all templates that end at this node or below it, with their
+     * values
+     *
+     * @param result receives template and value
+     */
+    void collectTemplates(Map<String, Object> result) {
+        result.putAll(templates);
+        for (Children children : edgeToChildrenMap.values()) {
+            for (Node child : children.all()) {
+                child.collectTemplates(result);
+            }
+        }
+    }
+
+    /**
+     * Collect the hit count of each template that ends at this node or below
+     * it. Urls only ever match the first template of a leaf; the others
+     * count 0.
+     *
+     * @param result receives template and number of urls that matched it
+     */
+    void collectTemplateHits(Map<String, Long> result) {
+        boolean first = true;
+        for (String template : templates.keySet()) {
+            result.put(template, (first && hits != null) ? hits.sum() : 0L);
+            first = false;
+        }
+        for (Children children : edgeToChildrenMap.values()) {
+            for (Node child : children.all()) {
+                child.collectTemplateHits(result);
+            }
+        }
+    }
+
+    /**
+     * Set hit count of this node and all nodes below it back to 0
+     */
+    void resetTemplateHits() {
+        if (hits != null) {
+            hits.reset();
+        }
+        for (Children children : edgeToChildrenMap.values()) {
+            for (Node child : children.all()) {
+                child.resetTemplateHits();
+            }
+        }
+    }
+
+    /**
+     * Counter of urls that matched this leaf node. The same counter is kept
+     * across compiled copies, so counts survive changes elsewhere in the
+     * Trie.
+     *
+     * @return LongAdder
+     */
+    LongAdder hitCounter() {
+        if (hits == null) {
+            hits = new LongAdder();
+        }
+        return hits;
+    }
+
+    /**
+     * Immutable copy of this node and all nodes below it. Reused until this
+     * node or a node below it changes.
+     *
+     * @return CompiledNode
+     */
+    CompiledNode compiled() {
+        if (compiled == null) {
+            compiled = new CompiledNode(this);
+        }
+        return compiled;
+    }
+
+    /**
+     * Clear immutable copy of this node, after a change
+     */
+    void invalidateCompiled() {
+        compiled = null;
     }
 
     /**
@@ -367,7 +554,7 @@ public class Node implements Serializable {
      * @return Child node that is completeWildcardChild
      */
     public Node getCompleteWildcardChildOrNull(Edge edge) {
-        Iterator<Node> iter = getChildren(edge).iterator();
+        Iterator<Node> iter = getChildrenOrEmpty(edge).wildcards().iterator();
         while (iter.hasNext()) {
             Node child = iter.next();
             if (child.nodeType == NodeType.COMPLETE_WILDCARD) {
@@ -385,13 +572,13 @@ public class Node implements Serializable {
      * @return true if match; false otherwise
      */
     public boolean isAChild(Node urlNode, Edge edge) {
-        debug("  IN: isAChild()");
-        debug(String
-                .format("   ->checking if urlNode=[%s] is child of [%s] (%s children):%s, nodeType=%s",
-                        urlNode, value, getChildren(edge).size(), getChildren(edge)
-                        .toString(), nodeType));
-        debug(String.format("   ->hasCompleteWildcardChild=%s",
-                hasCompleteWildcardChild));
+        if (logger.isDebugEnabled()) {
+            debug("  IN: isAChild()");
+            // the count only: listing every child makes each add O(fan-out)
+            debug("   ->checking if urlNode=[%s] is child of [%s] (%s children), nodeType=%s",
+                    urlNode, value, getChildrenOrEmpty(edge).size(), nodeType);
+            debug("   ->hasCompleteWildcardChild=%s", hasCompleteWildcardChild);
+        }
 
         // shortcut for complete wildcard
         if (hasCompleteWildcardChild) {
@@ -399,15 +586,16 @@ public class Node implements Serializable {
             return true;
         }
 
-        // traverse each child node, looking for a
-        // match
-        for (Node childNode : getChildren(edge)) {
-            // exact match
-            if (childNode.nodeType == NodeType.NOT_WILDCARD
-                    && childNode.value.equals(urlNode.value)) {
-                return true;
-            }
-            // partial match
+        Children children = getChildrenOrEmpty(edge);
+
+        // exact match
+        Node exactChild = children.get(urlNode.value);
+        if (exactChild != null && exactChild.nodeType == NodeType.NOT_WILDCARD) {
+            return true;
+        }
+
+        // partial match; only wildcard children need pattern matching
+        for (Node childNode : children.wildcards()) {
             if (childNode.nodeType == NodeType.PARTIAL_WILDCARD
                     && childNode.matchPattern(urlNode.value)) {
                 return true;
@@ -417,50 +605,34 @@ public class Node implements Serializable {
     }
 
     /**
-     * Check if value matches uri template using java pattern/matcher
+     * Check if value matches uri template
      *
      * @param value a node value
      * @return true if match; false otherwise
      */
     private boolean matchPattern(String value) {
-        try {
-            return matchPatternThrowable(value);
-        } catch (TrieException e) {
-            return false;
+        UriTemplateValidator.UriTemplate template = uriTemplatePart();
+        if (template == null) {
+            throw new TrieException("  ***uriTemplate cannot be null at this point*** ");
         }
+        return matchPattern(template, value, 0, value.length());
     }
 
     /**
-     * Check if value matches uri template using java pattern/matcher
+     * Check if a region of input matches uri template, and that no param value
+     * has invalid characters. Param values are checked as soon as they are
+     * found, and nothing is allocated, so this method is safe and cheap to
+     * call from many threads.
      *
-     * @param value String value
+     * @param uriTemplate uri template of a wildcard node
+     * @param s           input
+     * @param start       index of first character of region
+     * @param end         index after last character of region
      * @return true if match; false otherwise
-     * @throws TrieException if invalid character found
      */
-    private boolean matchPatternThrowable(String value) throws TrieException {
-        debug(String.format("   IN: matchPattern for value [%s]", value));
-        if (uriTemplatePart == null) {
-            throw new RuntimeException("  ***uriTemplate cannot be null at this point*** ");
-        }
-
-        // save paramValues for later use
-        paramValues = uriTemplatePart.match(value);
-
-        if (paramValues == null || paramValues.size() == 0) {
-            return false;
-        }
-
-        // throw com.prodigi.exception.TrieException if value has invalid characters
-        for (String paramValue : paramValues.values()) {
-            if (hasInvalidCharacter(paramValue)) {
-                debug(String
-                        .format("*******************has invalid char in paramValue=%s",
-                                paramValue));
-                throw new TrieException(String.format("Character not allowed in parameter: %s",
-                        paramValue));
-            }
-        }
-        return true;
+    static boolean matchPattern(UriTemplateValidator.UriTemplate uriTemplate,
+                                CharSequence s, int start, int end) {
+        return uriTemplate.matches(s, start, end, VALID_PARAM);
     }
 
     /**
@@ -494,38 +666,171 @@ public class Node implements Serializable {
      * @return child node if found; null otherwise
      */
     public Node getChildOrNull(String inputValue, boolean useExactMatch, Edge edge) {
-        Set<Node> setOfNodes;
-
         if (edge == Edge.ANY) {
-            setOfNodes = getAllChildrenForAllEdges();
-        } else {
-            setOfNodes = getChildren(edge);
+            for (Edge oneEdge : edgeToChildrenMap.keySet()) {
+                Node child = getChildOrNull(inputValue, useExactMatch, oneEdge);
+                if (child != null) {
+                    return child;
+                }
+            }
+            return null;
         }
 
-        Iterator<Node> iter = setOfNodes.iterator();
-        debug(String
-                .format(" IN: getChildOrNull() for edge=%s, inputValue is %s, children.size is %s children): %s",
-                        edge, inputValue, setOfNodes.size(), setOfNodes.toString()));
+        Children children = getChildrenOrEmpty(edge);
+        if (logger.isDebugEnabled()) {
+            debug(" IN: getChildOrNull() for edge=%s, inputValue is %s, %s children",
+                    edge, inputValue, children.size());
+        }
 
-        while (iter.hasNext()) {
-            Node child = iter.next();
-            if (child.value.equals(inputValue)) {
-                return child;
+        // exact match takes a single lookup
+        Node child = children.get(inputValue);
+        if (child != null || useExactMatch) {
+            return child;
+        }
+
+        // only wildcard children need pattern matching
+        for (Node wildcardChild : children.wildcards()) {
+            if (wildcardChild.matchPattern(inputValue)) {
+                debug("    => [%s] matches [%s]", wildcardChild.value, inputValue);
+                return wildcardChild;
             }
+        }
+        return null;
+    }
 
-            if (!useExactMatch && child.nodeType == NodeType.COMPLETE_WILDCARD
-                    && child.matchPattern(inputValue)) {
-                return child;
+    /**
+     * Compare String against a region of CharSequence, character by character
+     *
+     * @param str   String
+     * @param s     CharSequence
+     * @param start index of first character of region
+     * @param end   index after last character of region
+     * @return true if equal; false otherwise
+     */
+    static boolean regionEquals(String str, CharSequence s, int start, int end) {
+        int length = end - start;
+        if (str.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (str.charAt(i) != s.charAt(start + i)) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            if (!useExactMatch && child.nodeType == NodeType.PARTIAL_WILDCARD
-                    && child.matchPattern(inputValue)) {
-                debug(String
-                        .format("    => [%s] matches [%s]", child.value, inputValue));
-                return child;
+    /**
+     * Find index of character within a region of CharSequence
+     *
+     * @param s     CharSequence
+     * @param c     character to find
+     * @param start index to start from
+     * @param end   index after last character of region
+     * @return index of character if found; -1 otherwise
+     */
+    static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
             }
         }
-        return null;
+        return -1;
+    }
+
+    /**
+     * Record a template that ends at this leaf node. Adding the same template
+     * again replaces its value.
+     *
+     * @param template template as added to Trie
+     * @param payload  value attached to template; may be null
+     */
+    void addLeafTemplate(String template, Object payload) {
+        templates.put(template, payload);
+        compiled = null;
+    }
+
+    /**
+     * Forget a template that ends at this leaf node. Node is no longer leaf if
+     * no other template ends at it.
+     *
+     * @param template template as added to Trie
+     * @return true if template ended at this node; false otherwise
+     */
+    boolean removeLeafTemplate(String template) {
+        if (!templates.containsKey(template)) {
+            return false;
+        }
+        if (template.equals(templates.keySet().iterator().next())) {
+            // hits so far were of the removed template; the next one starts
+            // from 0 with a counter of its own, while snapshots still in use
+            // count on into the old one
+            hits = null;
+        }
+        templates.remove(template);
+        isLeaf = !templates.isEmpty();
+        compiled = null;
+        return true;
+    }
+
+    /**
+     * Templates that end at this node, in the order they were added, and the
+     * value attached to each
+     *
+     * @return Map of template to value; empty if not leaf
+     */
+    Map<String, Object> leafTemplates() {
+        return templates;
+    }
+
+    /**
+     * Getter for nodeType
+     *
+     * @return NodeType enum
+     */
+    NodeType nodeType() {
+        return nodeType;
+    }
+
+    /**
+     * Getter for uri template of a wildcard node. Built from value if not
+     * already, for example after TrieCodec.decode().
+     *
+     * @return UriTemplate; null if not wildcard
+     */
+    UriTemplateValidator.UriTemplate uriTemplatePart() {
+        if (uriTemplatePart == null && nodeType != NodeType.NOT_WILDCARD) {
+            uriTemplatePart = new UriTemplateValidator.UriTemplate(value);
+        }
+        return uriTemplatePart;
+    }
+
+    /**
+     * Getter for hasCompleteWildcardChild
+     *
+     * @return true if node has a complete wildcard child
+     */
+    boolean hasCompleteWildcardChild() {
+        return hasCompleteWildcardChild;
+    }
+
+    /**
+     * Re-create a node from its properties, without uri template. Used by
+     * TrieCodec.
+     *
+     * @param value                    value of node
+     * @param nodeType                 NodeType enum
+     * @param isLeaf                   is last element in template?
+     * @param hasCompleteWildcardChild has a complete wildcard child?
+     * @return node without children
+     */
+    static Node restore(String value, NodeType nodeType, boolean isLeaf,
+                        boolean hasCompleteWildcardChild) {
+        Node node = new Node(value, Edge.FORWARD_SLASH);
+        node.nodeType = nodeType;
+        node.isLeaf = isLeaf;
+        node.hasCompleteWildcardChild = hasCompleteWildcardChild;
+        return node;
     }
 
     /**
@@ -579,6 +884,96 @@ public class Node implements Serializable {
         return true;
     }
 
+    /**
+     * Child nodes connected through one Edge. Every child is indexed by its
+     * value, so finding a child by exact value takes a single lookup instead
+     * of a scan over all siblings. Complete and partial wildcard children are
+     * also kept in a separate list, which is usually short, and is the only
+     * list that needs pattern matching.
+     *
+     * @author Wilkin Cheung
+     */
+    static class Children implements Serializable {
+        // Children of a node that has none; never added to
+        static final Children EMPTY = new Children();
+
+        // required for (de-)serialization
+        protected static final long serialVersionUID = 1L;
+
+        // all child nodes by value; insertion order maintained
+        private final Map<String, Node> byValue = new LinkedHashMap<>();
+
+        // complete and partial wildcard child nodes
+        private final List<Node> wildcards = new ArrayList<>();
+
+        /**
+         * Add child node, unless a child with the same value already exists
+         *
+         * @param child child node
+         */
+        void add(Node child) {
+            if (byValue.containsKey(child.value)) {
+                return;
+            }
+            byValue.put(child.value, child);
+            if (child.nodeType != NodeType.NOT_WILDCARD) {
+                wildcards.add(child);
+            }
+        }
+
+        /**
+         * Remove child node
+         *
+         * @param child child node
+         */
+        void remove(Node child) {
+            if (byValue.get(child.value) == child) {
+                byValue.remove(child.value);
+                wildcards.remove(child);
+            }
+        }
+
+        /**
+         * Find child node by exact value
+         *
+         * @param value child node value
+         * @return child node if found; null otherwise
+         */
+        Node get(String value) {
+            return byValue.get(value);
+        }
+
+        /**
+         * @return complete and partial wildcard child nodes
+         */
+        List<Node> wildcards() {
+            return wildcards;
+        }
+
+        /**
+         * @return all child nodes, in insertion order
+         */
+        Collection<Node> all() {
+            return byValue.values();
+        }
+
+        /**
+         * @return number of child nodes
+         */
+        int size() {
+            return byValue.size();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return byValue.keySet().toString();
+        }
+    }
+
     /**
      * NodeType
      *
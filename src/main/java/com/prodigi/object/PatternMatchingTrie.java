@@ -2,14 +2,18 @@ package com.prodigi.object;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
 import com.prodigi.object.Node.Edge;
+import com.prodigi.service.CharPolicy;
+import com.prodigi.service.UrlScanner;
 import org.apache.log4j.spi.LoggerFactory;
 
 /**
@@ -80,7 +84,7 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
     // Example is "{A}.{B}"
 
     // required for (de-)serialization
-    private static final long serialVersionUID = 3L;
+    private static final long serialVersionUID = 4L;
 
     // Single serial version UID for all trie classes.
     // Since all trie classes (com.prodigi.object.PatternMatchingTrie, com.prodigi.object.Node, Edge) are cached as single object,
@@ -88,12 +92,71 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
     // Therefore those classes should all point to the same serialVersionUID.
     private static Logger logger = Logger.getLogger(PatternMatchingTrie.class);
 
-    // URL pattern; assuming URL starts with http or https
-    private static Pattern URL_PATTERN = Pattern.compile("^https?://(.*?)\\/(.*)$");
-
     // root node is the only reference to Trie
     private Node root = new Node("root", Edge.FORWARD_SLASH);
 
+    // immutable snapshot of this Trie used for matching. Replaced, never
+    // modified, at the end of each change to this Trie, so readers never take
+    // a lock and never see a change half applied.
+    private transient volatile CompiledTrie compiled;
+
+    // number of snapshots published; guarded by this
+    private transient long generation = 0;
+
+    // cache of match results; null if none
+    private transient volatile ResultCache resultCache;
+
+    // told about each step of each match; null if none
+    private transient volatile MatchListener matchListener;
+
+    // counters of each match; null if none
+    private transient volatile MatchMetrics metrics;
+
+    // metrics and matchListener, both told about each walk; null if neither.
+    // Written under lock.
+    private transient volatile MatchListener walkListener;
+
+    // count urls that match each leaf node?
+    private transient volatile boolean countTemplateHits = false;
+
+    // PrefixFilter settings of each snapshot; depth 0 for no filter.
+    // Guarded by this.
+    private transient int filterDepth = 0;
+    private transient double filterFpp = 0;
+
+    // characters allowed in variable values, of each snapshot. Guarded by
+    // this.
+    private transient CharPolicies charPolicies = CharPolicies.DEFAULT;
+
+    /**
+     * Constructor. Empty Trie.
+     */
+    public PatternMatchingTrie() {
+        publish();
+    }
+
+    /**
+     * Constructor. Trie with nodes already built, for example by TrieCodec.
+     *
+     * @param root root node
+     */
+    PatternMatchingTrie(Node root) {
+        this(root, CharPolicies.DEFAULT);
+    }
+
+    /**
+     * Constructor. Trie with nodes already built, and the CharPolicy of each
+     * variable, for example read by TrieCodec.
+     *
+     * @param root         root node
+     * @param charPolicies characters allowed in variable values
+     */
+    PatternMatchingTrie(Node root, CharPolicies charPolicies) {
+        this.root = root;
+        this.charPolicies = charPolicies;
+        publish();
+    }
+
     /**
      * Helper method to remove http host and port from URL
      *
@@ -101,14 +164,9 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
      * @return URL String without http host and port
      */
     static String removeHttpHostAndPort(String original) {
-        Matcher matcher = URL_PATTERN.matcher(original);
-
         // strip out host and port, if found; otherwise just return the entire
         // string
-        if (matcher.find()) {
-            return matcher.group(2);
-        }
-        return original;
+        return original.substring(pathStart(original));
     }
 
     /**
@@ -128,14 +186,14 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
 
         // find next slash index
         int slashIndex = remaining.indexOf('/');
-        debug(String.format("   ==>slashIndex=%s", slashIndex));
+        debug("   ==>slashIndex=%s", slashIndex);
 
         // if cannot find next slash, then use the entire string
         String substringUpToNextSlash =
                 (slashIndex == -1) ? remaining : remaining.substring(0, slashIndex);
 
-        debug(String.format("     =>substringUpToNextSlash=%s",
-                substringUpToNextSlash));
+        debug("     =>substringUpToNextSlash=%s",
+                substringUpToNextSlash);
 
         // upToSlash substring is good enough, so use it as Next node
         next.value = substringUpToNextSlash;
@@ -155,19 +213,20 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
             next.remaining = remaining.substring(next.index + 1, remaining.length());
         }
 
-        debug(String.format("  %s", next));
+        debug("  %s", next);
         return next;
     }
 
     /**
      * Helper method to debug
      *
-     * @param s debug statement
+     * @param format debug statement, formatted with args only if debug is
+     *               enabled
+     * @param args   arguments referenced by format
      */
-    private static void debug(String s) {
-        // System.out.println(s);
+    private static void debug(String format, Object... args) {
         if (logger.isDebugEnabled()) {
-            logger.debug(s);
+            logger.debug((args.length == 0) ? format : String.format(format, args));
         }
     }
 
@@ -202,7 +261,104 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
      * @param templateValue New template value
      */
     public void addTemplate(String templateValue) {
-        debug(String.format("IN: addTemplate(), value=%s", templateValue));
+        addTemplate(templateValue, null);
+    }
+
+    /**
+     * Remove a template from this Trie. Branches that no template uses any
+     * more are pruned. A complete wildcard node that was named after the
+     * removed template, such as {b} merged with {a}, is renamed after a
+     * remaining template.
+     *
+     * Matching continues on the previous snapshot until the change is
+     * complete, then switches to the new one in a single step.
+     *
+     * @param templateValue template, as added
+     * @return true if template was in this Trie; false otherwise
+     */
+    public synchronized boolean removeTemplate(String templateValue) {
+        if (!remove(templateValue)) {
+            return false;
+        }
+        publish();
+        return true;
+    }
+
+    /**
+     * Replace all templates of this Trie. Templates not in the new collection
+     * are removed, new ones are added, and the result is published as a
+     * single change.
+     *
+     * @param templateValues new templates
+     */
+    public void replaceTemplates(Collection<String> templateValues) {
+        Map<String, Object> templates = new LinkedHashMap<>();
+        for (String templateValue : templateValues) {
+            templates.put(templateValue, null);
+        }
+        replaceTemplates(templates);
+    }
+
+    /**
+     * Replace all templates of this Trie, with values attached
+     *
+     * @param templates new templates, and value of each
+     * @see RoutingTrie
+     */
+    synchronized void replaceTemplates(Map<String, ?> templates) {
+        Map<String, Object> current = new LinkedHashMap<>();
+        root.collectTemplates(current);
+
+        for (String templateValue : current.keySet()) {
+            if (!templates.containsKey(templateValue)) {
+                remove(templateValue);
+            }
+        }
+        for (Map.Entry<String, ?> entry : templates.entrySet()) {
+            if (!current.containsKey(entry.getKey())
+                    || current.get(entry.getKey()) != entry.getValue()) {
+                add(entry.getKey(), entry.getValue());
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Add new templates to this Trie, and publish them as a single change.
+     * Each change compiles the nodes on its path again, including the index
+     * of children of each node, so adding many siblings one by one costs
+     * O(n x fan-out); adding them here compiles once.
+     *
+     * @param templateValues new templates
+     */
+    public synchronized void addTemplates(Collection<String> templateValues) {
+        for (String templateValue : templateValues) {
+            add(templateValue, null);
+        }
+        publish();
+    }
+
+    /**
+     * Add a new template to this Trie, and attach a value to its leaf node.
+     * Adding the same template again replaces the value.
+     *
+     * @param templateValue New template value
+     * @param payload       value attached to template; may be null
+     * @see RoutingTrie
+     */
+    synchronized void addTemplate(String templateValue, Object payload) {
+        add(templateValue, payload);
+        publish();
+    }
+
+    /**
+     * Insert template into nodes, without publishing a new snapshot
+     *
+     * @param templateValue New template value
+     * @param payload       value attached to template; may be null
+     */
+    private void add(String templateValue, Object payload) {
+        debug("IN: addTemplate(), value=%s", templateValue);
 
         Node rootNode = root;
 
@@ -214,17 +370,21 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
 
         Node parentNode = rootNode;
 
+        // template without slash is a single leaf node
+        if (walker.isLeaf) {
+            insertChildNode(parentNode, walker.value, true, walker.rightEdge)
+                    .addLeafTemplate(templateValue, payload);
+        }
+
         // extract substring from template, then insert it to trie
         while (walker.index != -1) {
-            debug(String
-                    .format(" ->chunk is %s, previousIndex is %s, nextIndex is %s",
-                            walker.remaining, walker.previous, walker.index));
+            debug(" ->chunk is %s, previousIndex is %s, nextIndex is %s",
+                    walker.remaining, walker.previous, walker.index);
 
             String newValue = walker.value;
 
-            debug(String
-                    .format("  => adding child node under parentNode=%s, and edge=%s",
-                            parentNode, walker.rightEdge));
+            debug("  => adding child node under parentNode=%s, and edge=%s",
+                    parentNode, walker.rightEdge);
 
             // add new child node
             Node childNode =
@@ -233,9 +393,8 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
             // create new node walker for next loop
             walker = walk(walker.rightEdge, walker.remaining);
 
-            debug(String
-                    .format("  -> finding next parentNode with edge=%s, value=%s",
-                            walker.leftEdge, childNode.value()));
+            debug("  -> finding next parentNode with edge=%s, value=%s",
+                    walker.leftEdge, childNode.value());
 
             // For the next level deeper, childNode is now parentNode
             parentNode =
@@ -245,7 +404,8 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
             if (walker.isLeaf) {
                 debug("  ->insert last child node to trie...");
 
-                insertChildNode(parentNode, walker.value, true, walker.rightEdge);
+                insertChildNode(parentNode, walker.value, true, walker.rightEdge)
+                        .addLeafTemplate(templateValue, payload);
                 // insertChildNode(parentNode, walker.value, true, Edge.LAST);
             }
         }
@@ -259,87 +419,519 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
      * @return true if url matches a template; false otherwise
      */
     public boolean matches(String url) {
-        try {
-            debug("IN: matches()*************************************************************");
-
-            // first, remove http host and port from url
-            String urlWithoutHostPort = removeHttpHostAndPort(url);
-
-            // initialize
-            NodeWalker next = walk(Edge.FORWARD_SLASH, urlWithoutHostPort);
-
-            Node parentUrlNode = root;
-            Node currentUrlNode = null;
-
-            // loop until a match is found or not found
-            while (next.index != -1) {
-                debug("::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::");
-                debug(String.format("Remaining: %s", next.remaining));
-
-                currentUrlNode = new Node(next.value, next.rightEdge);
-
-                debug(String.format(" Find if childNode: %s a child of parent: %s",
-                        currentUrlNode, parentUrlNode));
-
-                // if not a match, then return right away
-                if (!parentUrlNode.isAChild(currentUrlNode, next.rightEdge)) {
-                    debug(String.format("  =>parentNode has %s, children: %s",
-                            parentUrlNode.getChildren(next.rightEdge).size(),
-                            parentUrlNode.getChildren(next.rightEdge)));
-                    debug(String
-                            .format("  =>childNode:[%s] is not child of parent:[%s], returning false!",
-                                    currentUrlNode.value(), parentUrlNode.value()));
-                    return false;
-                } else {
-                    debug(String.format("  =>childNode:[%s] is child of parent:[%s]",
-                            currentUrlNode.value(), parentUrlNode.value()));
-                }
-
-                next = walk(next.rightEdge, next.remaining);
-
-                parentUrlNode =
-                        parentUrlNode.getChildUrlNodeOrNull(currentUrlNode.value(),
-                                next.leftEdge);
-
-                if (parentUrlNode == null) {
-                    debug("   =>parentUrlNode is null. Returning false");
-                    return false;
-                }
-
-                // last one (leaf), just create node
-                if (next.isLeaf) {
-                    debug(" Find last child (leaf) node...");
-
-                    debug(String.format("  =>parentUrlNode=%s", parentUrlNode));
-                    debug(String
-                            .format("  =>next.value=%s, next.leftEdge=%s, next.rightEdge=%s",
-                                    next.value, next.leftEdge, next.rightEdge));
-
-                    currentUrlNode =
-                            parentUrlNode.getChildUrlNodeOrNull(next.value, Edge.ANY);
-
-                    debug(String.format("  =>parentNode: %s, childNode: %s",
-                            parentUrlNode, currentUrlNode));
-                    if (currentUrlNode == null) {
-                        debug("   =>Cannot find child under parent; returning false");
-                        return false;
-                    } else if (!currentUrlNode.isLeaf()) {
-                        debug("   =>childNode not last but should be; returning false");
-                        return false;
-                    } else {
-                        debug("   =>match!");
-                    }
-                }
+        return matches((CharSequence) url);
+    }
+
+    /**
+     * Is url matching template(s)? Url is walked down the Trie by index, so
+     * any CharSequence works directly. For example, the StringBuffer returned
+     * by <code>request.getRequestURL()</code>.
+     *
+     * Matching is done against the immutable snapshot from
+     * <code>compile()</code>. No substring, NodeWalker or throwaway Node is
+     * created per call.
+     *
+     * @param url incoming url for comparison
+     * @return true if url matches a template; false otherwise
+     */
+    public boolean matches(CharSequence url) {
+        return find(url) != null;
+    }
+
+    /**
+     * Match url, and find out which template matched and the value of each
+     * variable, in a single walk down the Trie. There is no need to run
+     * <code>UriTemplateValidator.matches()</code> afterwards.
+     *
+     * @param url    incoming url for comparison
+     * @param result reusable holder that receives template and variables
+     * @return true if url matches a template; false otherwise
+     * @see MatchResult
+     */
+    public boolean match(CharSequence url, MatchResult result) {
+        return find(url, result) != null;
+    }
+
+    /**
+     * Is url matching template(s)? Listener is told about each step, instead
+     * of the listener of this Trie, if any. Metrics of this Trie still count
+     * it. The result cache is not used.
+     *
+     * @param url      incoming url for comparison
+     * @param listener told about each step; may be null
+     * @return true if url matches a template; false otherwise
+     * @see MatchListener
+     */
+    public boolean matches(CharSequence url, MatchListener listener) {
+        return find(compile(), url, null, CompositeMatchListener.of(metrics, listener)) != null;
+    }
+
+    /**
+     * Match url, and find out which template matched and the value of each
+     * variable. Listener is told about each step, instead of the listener of
+     * this Trie, if any. Metrics of this Trie still count it.
+     *
+     * @param url      incoming url for comparison
+     * @param result   reusable holder that receives template and variables
+     * @param listener told about each step; may be null
+     * @return true if url matches a template; false otherwise
+     * @see MatchListener
+     */
+    public boolean match(CharSequence url, MatchResult result, MatchListener listener) {
+        return find(compile(), url, result, CompositeMatchListener.of(metrics, listener)) != null;
+    }
+
+    /**
+     * Tell listener about each step of every match against this Trie, for
+     * example a SlowMatchTracer. With no listener, matching does no tracing
+     * work at all.
+     *
+     * @param listener told about each step; null for none
+     * @see MatchListener
+     */
+    public synchronized void setMatchListener(MatchListener listener) {
+        this.matchListener = listener;
+        this.walkListener = CompositeMatchListener.of(metrics, listener);
+    }
+
+    /**
+     * @return listener told about each step of every match; null if none
+     */
+    public MatchListener getMatchListener() {
+        return matchListener;
+    }
+
+    /**
+     * Count calls, hits, misses, segments walked and wildcard evaluations of
+     * every match against this Trie, and time each walk. With no metrics,
+     * matching does no counting at all.
+     *
+     * @param metrics counters of this Trie; null for none
+     * @see MatchMetrics
+     */
+    public synchronized void setMetrics(MatchMetrics metrics) {
+        this.metrics = metrics;
+        this.walkListener = CompositeMatchListener.of(metrics, matchListener);
+    }
+
+    /**
+     * @return counters of every match; null if none
+     */
+    public MatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Count the urls that match each template, to find hot templates and
+     * templates no url ever matches. Each leaf node has its own striped
+     * counter, so counting costs an increment per matched url and no lock.
+     * Urls of <code>matchAll()</code> are not counted.
+     *
+     * @param enabled true to count; false to stop counting and keep counts
+     * @see #getTemplateHits()
+     */
+    public void setTemplateHitCounting(boolean enabled) {
+        this.countTemplateHits = enabled;
+    }
+
+    /**
+     * @return true if urls that match each template are counted
+     */
+    public boolean isTemplateHitCounting() {
+        return countTemplateHits;
+    }
+
+    /**
+     * Number of urls that matched each template while counting was on. When
+     * templates differ only by complete wildcard names, such as /{a} and
+     * /{b}, urls match the one added first, and the other counts 0.
+     *
+     * @return Map of template to number of urls that matched it
+     * @see #setTemplateHitCounting(boolean)
+     */
+    public synchronized Map<String, Long> getTemplateHits() {
+        Map<String, Long> hits = new LinkedHashMap<>();
+        root.collectTemplateHits(hits);
+        return hits;
+    }
+
+    /**
+     * @param n maximum number of templates
+     * @return up to n templates that matched the most urls, most first, with
+     *         the number of urls; templates that matched none are left out
+     */
+    public Map<String, Long> getMostHitTemplates(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n cannot be negative");
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(getTemplateHits().entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            if (top.size() == n || entry.getValue() == 0) {
+                break;
             }
-        } catch (Throwable throwable) {
-            logger.error("Exception occured while matching Uri in Trie : "
-                    + throwable.getMessage());
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+
+    /**
+     * @return templates that no url matched while counting was on
+     */
+    public List<String> getNeverHitTemplates() {
+        List<String> never = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : getTemplateHits().entrySet()) {
+            if (entry.getValue() == 0) {
+                never.add(entry.getKey());
+            }
+        }
+        return never;
+    }
+
+    /**
+     * Set the count of every template back to 0
+     */
+    public synchronized void resetTemplateHits() {
+        root.resetTemplateHits();
+    }
+
+    /**
+     * Keep results of <code>matches()</code> for up to maxEntries urls, so a
+     * repeated url does not walk down the Trie again. Results are dropped
+     * automatically by any change to this Trie.
+     *
+     * <code>match(url, result)</code> does not use the cache, because it
+     * records variable values of each url.
+     *
+     * @param maxEntries maximum number of urls cached; 0 for no cache
+     * @see ResultCache
+     */
+    public void setResultCache(int maxEntries) {
+        this.resultCache = (maxEntries == 0) ? null : new ResultCache(maxEntries);
+    }
+
+    /**
+     * Reject urls that cannot match with a Bloom filter over the literal path
+     * prefixes of the first 3 levels of this Trie
+     *
+     * @param falsePositiveRate rate of urls that cannot match, yet get
+     *                          through the filter; for example 0.01
+     * @see #setPrefixFilter(int, double)
+     */
+    public void setPrefixFilter(double falsePositiveRate) {
+        setPrefixFilter(PrefixFilter.DEFAULT_DEPTH, falsePositiveRate);
+    }
+
+    /**
+     * Reject urls that cannot match with a Bloom filter over the literal path
+     * prefixes of this Trie, before walking down the Trie. The filter is part
+     * of each snapshot, so it is built again by every change to this Trie.
+     *
+     * The filter only helps when the first levels of this Trie are mostly
+     * literal. Below a node with wildcard children, it lets every url through.
+     *
+     * @param depth             path levels checked; 0 for no filter
+     * @param falsePositiveRate rate of urls that cannot match, yet get
+     *                          through the filter; for example 0.01
+     * @see PrefixFilter
+     */
+    public synchronized void setPrefixFilter(int depth, double falsePositiveRate) {
+        if (depth != 0) {
+            PrefixFilter.checkArguments(depth, falsePositiveRate);
+        }
+        this.filterDepth = depth;
+        this.filterFpp = falsePositiveRate;
+        publish();
+    }
+
+    /**
+     * Set characters allowed in variable values, of all variables without a
+     * policy of their own. Values are checked while each segment is matched,
+     * and a value with any other character means no match.
+     *
+     * For example:
+     * <code>
+     *   trie.setCharPolicy(CharPolicy.UNRESERVED.allow(",:"));
+     * </code>
+     *
+     * @param policy characters allowed; CharPolicy.DEFAULT unless set
+     * @see CharPolicy
+     */
+    public synchronized void setCharPolicy(CharPolicy policy) {
+        this.charPolicies = charPolicies.with(policy);
+        publish();
+    }
+
+    /**
+     * Set characters allowed in values of variables named variableName, in
+     * any template.
+     *
+     * For example:
+     * <code>
+     *   trie.addTemplate("http://prodigi.com/search/{query}");
+     *   trie.setCharPolicy("query", CharPolicy.UNRESERVED.allowPercentEncoded());
+     * </code>
+     *
+     * @param variableName name of variable, without braces
+     * @param policy       characters allowed; null to use the policy of all
+     *                     variables again
+     */
+    public synchronized void setCharPolicy(String variableName, CharPolicy policy) {
+        this.charPolicies = charPolicies.with(variableName, policy);
+        publish();
+    }
+
+    /**
+     * @return characters allowed in values of variables without a policy of
+     *         their own
+     */
+    public synchronized CharPolicy getCharPolicy() {
+        return charPolicies.policy();
+    }
+
+    /**
+     * @param variableName name of variable, without braces
+     * @return characters allowed in values of variables named variableName
+     */
+    public synchronized CharPolicy getCharPolicy(String variableName) {
+        return charPolicies.policy(variableName);
+    }
+
+    /**
+     * @return cache of match results, with hit and miss counters; null if
+     *         none
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Find the leaf node of the template that url matches, in the result
+     * cache if there is one
+     *
+     * @param url incoming url for comparison
+     * @return leaf node; null if no match
+     */
+    CompiledNode find(CharSequence url) {
+        CompiledTrie snapshot = compiled;
+        ResultCache cache = resultCache;
+        MatchListener listener = walkListener;
+        if (!snapshot.mightMatch(url)) {
+            // cheaper than a cache lookup, or a walk
+            recordUnwalked(false);
+            return null;
+        }
+        if (cache == null) {
+            return recordHit(snapshot.find(url, null, listener, false));
+        }
+
+        String key = url.toString();
+        Object cached = cache.get(key, snapshot.generation());
+        if (cached != null) {
+            CompiledNode leaf = ResultCache.leaf(cached);
+            recordUnwalked(leaf != null);
+            return recordHit(leaf);
+        }
+        CompiledNode leaf = snapshot.find(key, null, listener, false);
+        cache.put(key, snapshot.generation(), leaf);
+        return recordHit(leaf);
+    }
+
+    /**
+     * Find the leaf node of the template that url matches, and record which
+     * template matched and the value of each variable
+     *
+     * @param url    incoming url for comparison
+     * @param result reusable holder that receives template and variables
+     * @return leaf node; null if no match
+     */
+    CompiledNode find(CharSequence url, MatchResult result) {
+        return find(compile(), url, result, walkListener);
+    }
+
+    /**
+     * Find the leaf node of the template that url matches, without the
+     * result cache. A url rejected by the PrefixFilter is not walked, and
+     * counts as unwalked.
+     */
+    private CompiledNode find(CompiledTrie snapshot, CharSequence url, MatchResult result,
+                              MatchListener listener) {
+        if (!snapshot.mightMatch(url)) {
+            if (result != null) {
+                result.reset(url);
+            }
+            recordUnwalked(false);
+            return null;
+        }
+        return recordHit(snapshot.find(url, result, listener, false));
+    }
+
+    private CompiledNode recordHit(CompiledNode leaf) {
+        if (leaf != null && countTemplateHits) {
+            leaf.recordHit();
+        }
+        return leaf;
+    }
+
+    /**
+     * Match many urls in one call
+     *
+     * @param urls incoming urls for comparison
+     * @return bit i set if urls.get(i) matches a template
+     * @see CompiledTrie#matchAll(List)
+     */
+    public BitSet matchAll(List<? extends CharSequence> urls) {
+        BitSet out = compile().matchAll(urls);
+        recordBatch(urls.size(), out);
+        return out;
+    }
+
+    /**
+     * Match many urls in one call
+     *
+     * @param urls incoming urls for comparison
+     * @param out  bit i set if urls[i] matches a template, cleared otherwise
+     * @see CompiledTrie#matchAll(CharSequence[], BitSet)
+     */
+    public void matchAll(CharSequence[] urls, BitSet out) {
+        compile().matchAll(urls, out);
+        recordBatch(urls.length, out);
+    }
+
+    private void recordUnwalked(boolean matched) {
+        MatchMetrics counters = metrics;
+        if (counters != null) {
+            counters.recordUnwalked(matched);
+        }
+    }
+
+    private void recordBatch(int count, BitSet out) {
+        MatchMetrics counters = metrics;
+        if (counters != null) {
+            counters.recordBatch(count, out.get(0, count).cardinality());
+        }
+    }
+
+    /**
+     * Freeze this Trie into an immutable snapshot. Each change to this Trie
+     * publishes a new snapshot before it returns, still under lock, so this
+     * method only reads a volatile field, and never waits for a change in
+     * progress. Matching against the returned CompiledTrie takes no locks and
+     * never writes, so it is safe to share across threads.
+     *
+     * @return CompiledTrie that contains all templates added so far
+     */
+    public CompiledTrie compile() {
+        return compiled;
+    }
+
+    /**
+     * Build a new snapshot and publish it with a single volatile write.
+     * Matching goes on against the previous one until then. Only nodes
+     * changed since the previous snapshot are copied; the rest are shared
+     * with it. Caller holds lock.
+     */
+    private void publish() {
+        // every entry of resultCache is now for an older generation
+        compiled = new CompiledTrie(root, ++generation, filterDepth, filterFpp, charPolicies);
+    }
+
+    /**
+     * Remove template from nodes, without publishing a new snapshot
+     *
+     * @param templateValue template, as added
+     * @return true if template was in this Trie; false otherwise
+     */
+    private boolean remove(String templateValue) {
+        debug("IN: removeTemplate(), value=%s", templateValue);
+
+        // same segments as addTemplate(): host and port removed, split by slash
+        String[] segments = removeHttpHostAndPort(templateValue).split("/", -1);
+
+        // path[0] is root; path[i] is node of segments[i - 1]
+        List<Node> path = new ArrayList<>(segments.length + 1);
+        path.add(root);
+        Node node = root;
+        for (String segment : segments) {
+            node = node.getChildForSegmentOrNull(segment, Edge.FORWARD_SLASH);
+            if (node == null) {
+                return false;
+            }
+            path.add(node);
+        }
+
+        if (!node.removeLeafTemplate(templateValue)) {
             return false;
+        }
+        for (Node onPath : path) {
+            onPath.invalidateCompiled();
+        }
+
+        // prune nodes that are neither leaf nor parent any more, bottom up
+        int depth = path.size() - 1;
+        while (depth > 0 && !path.get(depth).isLeaf() && !path.get(depth).hasChildren()) {
+            path.get(depth - 1).removeChild(path.get(depth), Edge.FORWARD_SLASH);
+            depth--;
+        }
 
+        // complete wildcard nodes left on the path take the name that a
+        // remaining template gives them
+        for (int i = 1; i <= depth; i++) {
+            Node onPath = path.get(i);
+            if (onPath.nodeType() != Node.NodeType.COMPLETE_WILDCARD) {
+                continue;
+            }
+            String remaining = onPath.firstTemplateBelow();
+            String name = removeHttpHostAndPort(remaining).split("/", -1)[i - 1];
+            if (!name.equals(onPath.value())) {
+                debug("  ->renaming %s to %s", onPath.value(), name);
+                path.get(i - 1).renameChild(onPath, name, Edge.FORWARD_SLASH);
+            }
         }
         return true;
     }
 
+    /**
+     * Find where the path begins, that is, the index after scheme, host and
+     * port and the slash that follows. Same as
+     * <code>removeHttpHostAndPort()</code>, but without substring.
+     *
+     * @param url Incoming URL
+     * @return index of first character after host and port; 0 if not found
+     * @see UrlScanner#pathAfterAuthority(CharSequence)
+     */
+    static int pathStart(CharSequence url) {
+        return UrlScanner.pathAfterAuthority(url);
+    }
+
+    /**
+     * @return root node
+     */
+    Node root() {
+        return root;
+    }
+
+    /**
+     * Caller holds the lock of this
+     *
+     * @return characters allowed in variable values
+     */
+    CharPolicies charPolicies() {
+        return charPolicies;
+    }
+
+    /**
+     * Replace default Java serialization with the compact TrieCodec format.
+     *
+     * @return serialized form
+     * @see TrieCodec
+     */
+    private Object writeReplace() {
+        return TrieCodec.getDefault().serializedForm(this);
+    }
+
     /**
      * Insert a child node to parent node
      *
@@ -351,9 +943,8 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
      */
     private Node insertChildNode(Node parentNode, String childValue,
                                  boolean isLast, Edge edge) {
-        debug(String
-                .format("  =>Inserting child node with value: %s to parentNode: %s",
-                        childValue, parentNode.value()));
+        debug("  =>Inserting child node with value: %s to parentNode: %s",
+                childValue, parentNode.value());
         return parentNode.addChildToCurrentNode(childValue, isLast, edge);
     }
 
@@ -367,7 +958,7 @@ public class PatternMatchingTrie<E extends Node> implements Serializable {
         debug("***********************************************");
         int i = 1;
         for (String template : templates) {
-            debug(String.format("Template #%d: %s", i, template));
+            debug("Template #%d: %s", i, template);
             i++;
         }
         debug("***********************************************");
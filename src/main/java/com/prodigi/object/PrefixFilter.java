@@ -0,0 +1,260 @@
+package com.prodigi.object;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over the literal path prefixes of a Trie, for rejecting urls
+ * that cannot match before walking down the Trie.
+ *
+ * The filter holds every path prefix of the first few levels of the Trie,
+ * such as /image and /image/logo. A prefix whose node has wildcard or query
+ * children is also marked open: any segment may follow it. Checking a url
+ * hashes its segments one by one, and stops at the first prefix that is open
+ * or below the filter depth. If a prefix is not in the filter, no template can match
+ * the url, so it is rejected right away, without allocation.
+ *
+ * Like any Bloom filter, it may let through a url that cannot match (at about
+ * the false positive rate it was built for), but never rejects one that can.
+ * If the root node has wildcard or query children, every url gets through.
+ *
+ * @author Wilkin Cheung
+ * @see PatternMatchingTrie#setPrefixFilter(int, double)
+ */
+public final class PrefixFilter {
+
+    // path levels checked, by default
+    public static final int DEFAULT_DEPTH = 3;
+
+    // FNV-1a 64-bit
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    // marks a prefix as open, in the same bits
+    private static final long OPEN = 0x9e3779b97f4a7c15L;
+
+    private final long[] bits;
+
+    // bit index mask; number of bits is a power of two
+    private final long mask;
+
+    // probes per entry
+    private final int hashes;
+
+    // number of entries added
+    private final int entries;
+
+    // path levels checked
+    private final int depth;
+
+    // true if any segment may follow root; filter then lets every url through
+    private final boolean openRoot;
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param keys     hashes of prefixes, and of open prefixes
+     * @param depth    path levels checked
+     * @param openRoot true if root node has wildcard or query children
+     * @param fpp      false positive rate to size filter for
+     */
+    private PrefixFilter(List<Long> keys, int depth, boolean openRoot, double fpp) {
+        this.depth = depth;
+        this.openRoot = openRoot;
+        this.entries = keys.size();
+
+        // optimal size: m = -n ln(p) / ln(2)^2, rounded up to a power of two
+        int n = Math.max(entries, 1);
+        long optimal = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        long size = Long.highestOneBit(Math.max(64, optimal) - 1) << 1;
+        this.bits = new long[(int) Math.min(size >>> 6, 1 << 26)];
+        this.mask = bits.length * 64L - 1;
+        // optimal probes: k = m / n ln(2); more than 16 buys little
+        this.hashes = Math.max(1, Math.min(16,
+                (int) Math.round((double) bits.length * 64 / n * Math.log(2))));
+
+        for (long key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * Build the filter of a compiled Trie
+     *
+     * @param root  root node
+     * @param depth path levels checked; at least 1
+     * @param fpp   false positive rate, between 0 and 1 exclusive
+     * @return filter
+     */
+    static PrefixFilter build(CompiledNode root, int depth, double fpp) {
+        checkArguments(depth, fpp);
+        List<Long> keys = new ArrayList<>();
+        boolean openRoot = root.isOpen();
+        if (!openRoot) {
+            collect(root, OFFSET_BASIS, 0, depth, keys);
+        }
+        return new PrefixFilter(keys, depth, openRoot, fpp);
+    }
+
+    /**
+     * @throws IllegalArgumentException if depth or fpp is out of range
+     */
+    static void checkArguments(int depth, double fpp) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        if (!(fpp > 0 && fpp < 1)) {
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+        }
+    }
+
+    /**
+     * Add hash of the prefix of each child node, down to depth
+     */
+    private static void collect(CompiledNode node, long hash, int level, int depth,
+                                List<Long> keys) {
+        for (CompiledNode child : node.children()) {
+            String value = child.value();
+            long childHash = hashSegment(hash, value, 0, value.length());
+            keys.add(childHash);
+            if (child.isOpen()) {
+                keys.add(childHash ^ OPEN);
+            } else if (level + 1 < depth) {
+                collect(child, childHash, level + 1, depth, keys);
+            }
+        }
+    }
+
+    /**
+     * Could url match a template of the Trie? Host and port are skipped.
+     *
+     * @param url incoming url
+     * @return false if url surely matches no template; true if it might
+     */
+    public boolean mightMatch(CharSequence url) {
+        return mightMatch(url, PatternMatchingTrie.pathStart(url), url.length());
+    }
+
+    /**
+     * Could path of url match a template of the Trie?
+     *
+     * @param url  incoming url
+     * @param from index of first character of path
+     * @param end  index after last character of url
+     * @return false if url surely matches no template; true if it might
+     */
+    boolean mightMatch(CharSequence url, int from, int end) {
+        if (openRoot) {
+            return true;
+        }
+        long hash = OFFSET_BASIS;
+        int start = from;
+        for (int level = 0; level < depth; level++) {
+            int slashIndex = Node.indexOf(url, '/', start, end);
+            int segmentEnd = (slashIndex == -1) ? end : slashIndex;
+            hash = hashSegment(hash, url, start, segmentEnd);
+            if (!contains(hash)) {
+                rejected.increment();
+                return false;
+            }
+            if (slashIndex == -1 || contains(hash ^ OPEN)) {
+                return true;
+            }
+            start = slashIndex + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Hash of a prefix, extended by one segment and the slash before it
+     */
+    private static long hashSegment(long hash, CharSequence s, int start, int end) {
+        long h = (hash ^ '/') * PRIME;
+        for (int i = start; i < end; i++) {
+            h = (h ^ s.charAt(i)) * PRIME;
+        }
+        return h;
+    }
+
+    private void add(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long index = (h1 + i * h2) & mask;
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    private boolean contains(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long index = (h1 + i * h2) & mask;
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, so nearby FNV hashes spread over all bits
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return path levels checked
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * @return number of prefixes, and open prefixes, in filter
+     */
+    public int entries() {
+        return entries;
+    }
+
+    /**
+     * @return size of filter in bits
+     */
+    public long bitCount() {
+        return bits.length * 64L;
+    }
+
+    /**
+     * @return false positive rate expected from size of filter and number of
+     *         entries
+     */
+    public double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashes * entries / bitCount()), hashes);
+    }
+
+    /**
+     * @return number of urls rejected
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("PrefixFilter [depth=%d, entries=%d, bits=%d, hashes=%d, rejected=%d]",
+                depth, entries, bitCount(), hashes, getRejected());
+    }
+}
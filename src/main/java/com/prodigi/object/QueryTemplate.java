@@ -0,0 +1,228 @@
+package com.prodigi.object;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.prodigi.service.UriTemplateValidator;
+
+/**
+ * Last segment of a template that has a query string, split into path and
+ * query parameters. For example:
+ * <code>
+ *   first?by={by},{by2}&amp;in={in},{in2}
+ * </code>
+ * ...is path "first", and parameters "by" and "in".
+ *
+ * Parameters are indexed by name, so a url matches no matter the order of
+ * its parameters: each parameter of the url is looked up by name, and only
+ * its value is matched, against the value template of that parameter. Every
+ * parameter of the template must appear exactly once, and no other.
+ *
+ * A template is only split this way if every parameter has a literal name,
+ * such as by={by}, and no name appears twice. Others, such as ?{query}, are
+ * matched as a whole segment, as before.
+ *
+ * @author Wilkin Cheung
+ */
+final class QueryTemplate {
+
+    // a long has one bit per parameter
+    private static final int MAX_PARAMS = 64;
+
+    // path before '?'; null if pathTemplate has variables
+    private final String path;
+
+    // path before '?', if it has variables; null otherwise
+    private final UriTemplateValidator.UriTemplate pathTemplate;
+
+    private final String[] pathKeyNames;
+
+    // parameters by name
+    private final LiteralIndex<Param> params;
+
+    // bit of every parameter set
+    private final long allParams;
+
+    private QueryTemplate(String path, Map<String, Param> params) {
+        UriTemplateValidator.UriTemplate template = variables(path);
+        this.path = (template == null) ? path : null;
+        this.pathTemplate = template;
+        this.pathKeyNames = keyNames(template);
+        this.params = LiteralIndex.of(params);
+        this.allParams = (params.size() == MAX_PARAMS) ? -1L : (1L << params.size()) - 1;
+    }
+
+    /**
+     * Split last segment of a template into path and query parameters
+     *
+     * @param segment last segment of a template, such as first?by={by}
+     * @return QueryTemplate; null if segment has no query string, or a query
+     *         string that cannot be indexed by parameter name
+     */
+    static QueryTemplate parse(String segment) {
+        int question = indexOfOutsideBraces(segment, '?', 0, segment.length());
+        if (question == -1) {
+            return null;
+        }
+
+        Map<String, Param> params = new LinkedHashMap<>();
+        int start = question + 1;
+        while (start <= segment.length()) {
+            int ampersand = indexOfOutsideBraces(segment, '&', start, segment.length());
+            int end = (ampersand == -1) ? segment.length() : ampersand;
+            int equals = indexOfOutsideBraces(segment, '=', start, end);
+            String name = segment.substring(start, (equals == -1) ? end : equals);
+            if (name.isEmpty() || name.indexOf('{') != -1 || name.indexOf('}') != -1
+                    || params.containsKey(name) || params.size() == MAX_PARAMS) {
+                return null;
+            }
+            String value = (equals == -1) ? null : segment.substring(equals + 1, end);
+            params.put(name, new Param(params.size(), value));
+            start = end + 1;
+        }
+        return new QueryTemplate(segment.substring(0, question), params);
+    }
+
+    /**
+     * Match path and query of the last segment of url, and bind variables
+     *
+     * @param url      incoming url
+     * @param from     index of first character of segment
+     * @param question index of '?' in segment
+     * @param end      index after last character of url; query may contain
+     *                 slashes
+     * @param result   receives variables; may be null
+     * @param policies characters allowed in variable values
+     * @return true if match; false otherwise. Variables bound so far are left
+     *         in result either way.
+     */
+    boolean matches(CharSequence url, int from, int question, int end,
+                    MatchResult result, CharPolicies policies) {
+        if (pathTemplate == null) {
+            if (!Node.regionEquals(path, url, from, question)) {
+                return false;
+            }
+        } else if (!CompiledNode.matchesSegment(pathTemplate, pathKeyNames, url,
+                from, question, result, policies)) {
+            return false;
+        }
+
+        long seen = 0;
+        int start = question + 1;
+        while (start <= end) {
+            int ampersand = Node.indexOf(url, '&', start, end);
+            int paramEnd = (ampersand == -1) ? end : ampersand;
+            int equals = Node.indexOf(url, '=', start, paramEnd);
+            Param param = params.get(url, start, (equals == -1) ? paramEnd : equals);
+
+            // unknown or repeated parameter
+            if (param == null || (seen & param.bit) != 0) {
+                return false;
+            }
+            if (!param.matches(url, equals, paramEnd, result, policies)) {
+                return false;
+            }
+            seen |= param.bit;
+            start = paramEnd + 1;
+        }
+        return seen == allParams;
+    }
+
+    /**
+     * @return path before '?', if it has no variables; null otherwise
+     */
+    String literalPath() {
+        return path;
+    }
+
+    /**
+     * @return number of query parameters
+     */
+    int paramCount() {
+        return params.size();
+    }
+
+    /**
+     * Find c at or after start and before end, except between '{' and '}'
+     */
+    private static int indexOfOutsideBraces(String s, char c, int start, int end) {
+        boolean inBraces = false;
+        for (int i = start; i < end; i++) {
+            char current = s.charAt(i);
+            if (current == '{') {
+                inBraces = true;
+            } else if (current == '}') {
+                inBraces = false;
+            } else if (current == c && !inBraces) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return compiled template, if s has variables; null otherwise
+     */
+    private static UriTemplateValidator.UriTemplate variables(String s) {
+        if (s == null || s.indexOf('{') == -1) {
+            return null;
+        }
+        UriTemplateValidator.UriTemplate template = new UriTemplateValidator.UriTemplate(s);
+        return template.getKeyNames().isEmpty() ? null : template;
+    }
+
+    private static String[] keyNames(UriTemplateValidator.UriTemplate template) {
+        return (template == null) ? CompiledNode.NO_KEY_NAMES
+                : template.getKeyNames().toArray(CompiledNode.NO_KEY_NAMES);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("QueryTemplate [path=%s, params=%d]",
+                (pathTemplate == null) ? path : pathTemplate, paramCount());
+    }
+
+    /**
+     * One query parameter of template
+     */
+    private static final class Param {
+        final long bit;
+
+        // value after '='; null if neither value nor '='
+        final String value;
+
+        // value, if it has variables; null otherwise
+        final UriTemplateValidator.UriTemplate valueTemplate;
+
+        final String[] keyNames;
+
+        Param(int index, String value) {
+            this.bit = 1L << index;
+            this.value = value;
+            this.valueTemplate = variables(value);
+            this.keyNames = keyNames(valueTemplate);
+        }
+
+        /**
+         * Match value of url parameter
+         *
+         * @param equals index of '=' in url parameter; -1 if none
+         * @param end    index after last character of url parameter
+         */
+        boolean matches(CharSequence url, int equals, int end, MatchResult result,
+                        CharPolicies policies) {
+            if (value == null || equals == -1) {
+                return value == null && equals == -1;
+            }
+            if (valueTemplate == null) {
+                return Node.regionEquals(value, url, equals + 1, end);
+            }
+            return CompiledNode.matchesSegment(valueTemplate, keyNames, url,
+                    equals + 1, end, result, policies);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.prodigi.object;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of match results, by url, in front of the walk down a Trie.
+ * Both matches and misses are kept, so repeated urls that match no template
+ * are cheap too.
+ *
+ * Each entry is tagged with the generation of the snapshot it was matched
+ * against. After any change to the Trie, matching uses a snapshot of a new
+ * generation, so all older entries become misses at once, with no need to
+ * clear the cache. They are replaced as urls are matched again, or evicted.
+ *
+ * Lookups take no lock. When full, entries are evicted in approximate least
+ * recently used order (second chance): an entry read since it was last
+ * considered is kept, once.
+ *
+ * For example:
+ * <code>
+ *   trie.setResultCache(10000);
+ *   ...
+ *   ResultCache cache = trie.getResultCache();
+ *   logger.info(String.format("hits=%d, misses=%d", cache.getHits(), cache.getMisses()));
+ * </code>
+ *
+ * @author Wilkin Cheung
+ * @see PatternMatchingTrie#setResultCache(int)
+ */
+public final class ResultCache {
+
+    // leaf of urls that match no template
+    private static final Object NO_MATCH = new Object();
+
+    private final ConcurrentHashMap<String, Entry> map;
+
+    // maximum number of entries
+    private final int capacity;
+
+    // one thread evicts at a time; others carry on
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of urls
+     */
+    ResultCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap<>(Math.min(capacity, 1024));
+    }
+
+    /**
+     * Find the leaf node that url matched in snapshot of generation
+     *
+     * @param url        incoming url
+     * @param generation generation of snapshot being matched against
+     * @return leaf node; <code>null</code> if not cached, or cached for
+     *         another generation; <code>NO_MATCH</code> if url matches no
+     *         template
+     */
+    Object get(String url, long generation) {
+        Entry entry = map.get(url);
+        if (entry == null || entry.generation != generation) {
+            misses.increment();
+            return null;
+        }
+        // avoid writing a shared cache line on every read
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        hits.increment();
+        return entry.leaf;
+    }
+
+    /**
+     * Cache the leaf node that url matched
+     *
+     * @param url        incoming url
+     * @param generation generation of snapshot matched against
+     * @param leaf       leaf node; null if url matches no template
+     */
+    void put(String url, long generation, CompiledNode leaf) {
+        map.put(url, new Entry(generation, (leaf == null) ? NO_MATCH : leaf));
+        if (map.size() > capacity && evicting.compareAndSet(false, true)) {
+            try {
+                evict();
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Is cached value a match?
+     *
+     * @param cached value returned by <code>get()</code>; not null
+     * @return leaf node; null if no match
+     */
+    static CompiledNode leaf(Object cached) {
+        return (cached == NO_MATCH) ? null : (CompiledNode) cached;
+    }
+
+    /**
+     * Evict entries until within capacity. Entries read since last considered
+     * get a second chance.
+     */
+    private void evict() {
+        Iterator<Entry> iter = map.values().iterator();
+        while (map.size() > capacity) {
+            if (!iter.hasNext()) {
+                // every entry was read; go around once more
+                iter = map.values().iterator();
+            }
+            Entry entry = iter.next();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                iter.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Remove all entries. Counters are not reset.
+     */
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * @return number of urls cached
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return maximum number of urls cached
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of lookups found in cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups not in cache, or cached before the last
+     *         change to the Trie
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries evicted to stay within capacity
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("ResultCache [size=%d, capacity=%d, hits=%d, misses=%d, evictions=%d]",
+                size(), capacity, getHits(), getMisses(), getEvictions());
+    }
+
+    /**
+     * Cached result of one url
+     */
+    private static final class Entry {
+        final long generation;
+        // CompiledNode, or NO_MATCH
+        final Object leaf;
+
+        // read since last considered for eviction
+        volatile boolean referenced = false;
+
+        Entry(long generation, Object leaf) {
+            this.generation = generation;
+            this.leaf = leaf;
+        }
+    }
+}
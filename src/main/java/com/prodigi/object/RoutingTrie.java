@@ -0,0 +1,142 @@
+package com.prodigi.object;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PatternMatchingTrie that attaches a value to each template, so matching a
+ * url returns the value directly. For example, a request handler:
+ * <code>
+ *   RoutingTrie&lt;Handler&gt; router = new RoutingTrie&lt;&gt;();
+ *   router.addTemplate("http://prodigi.com/image/{imageId}", imageHandler);
+ *   router.addTemplate("http://prodigi.com/video/{videoId}", videoHandler);
+ *   router.match("http://prodigi.com/video/123.mp4");
+ * </code>
+ * ...returns videoHandler
+ *
+ * There is no need to keep a separate Map from template to value and look it
+ * up again after each match. Use <code>match(url, result)</code> to get the
+ * template and variable values from the same walk down the Trie.
+ *
+ * Templates that differ only by complete wildcard names, such as /{a} and
+ * /{b}, share one leaf node. Such a url returns the value of the first of
+ * these templates added.
+ *
+ * Values must be Serializable for the RoutingTrie to be serialized.
+ *
+ * @param <V> type of value attached to templates
+ * @author Wilkin Cheung
+ */
+public class RoutingTrie<V> implements Serializable {
+
+    // required for (de-)serialization
+    private static final long serialVersionUID = 1L;
+
+    // templates and their values live in the leaf nodes of this Trie
+    private final PatternMatchingTrie<Node> trie = new PatternMatchingTrie<>();
+
+    /**
+     * Add a new template to this Trie, with its value. Adding the same
+     * template again replaces the value.
+     *
+     * @param templateValue New template value
+     * @param value         value returned when a url matches template
+     */
+    public void addTemplate(String templateValue, V value) {
+        trie.addTemplate(templateValue, value);
+    }
+
+    /**
+     * Remove a template, and its value, from this Trie
+     *
+     * @param templateValue template, as added
+     * @return true if template was in this Trie; false otherwise
+     * @see PatternMatchingTrie#removeTemplate(String)
+     */
+    public boolean removeTemplate(String templateValue) {
+        return trie.removeTemplate(templateValue);
+    }
+
+    /**
+     * Replace all templates of this Trie, and their values, as a single
+     * change. Concurrent matching sees either all old or all new templates.
+     *
+     * @param templates new templates, and value of each
+     * @see PatternMatchingTrie#replaceTemplates(java.util.Collection)
+     */
+    public void replaceTemplates(Map<String, ? extends V> templates) {
+        trie.replaceTemplates(templates);
+    }
+
+    /**
+     * Find the value of the template that url matches
+     *
+     * @param url incoming url for comparison
+     * @return value attached to template; null if url matches no template
+     */
+    public V match(CharSequence url) {
+        return payload(trie.find(url));
+    }
+
+    /**
+     * Find the value of the template that url matches, and record which
+     * template matched and the value of each variable.
+     *
+     * @param url    incoming url for comparison
+     * @param result reusable holder that receives template and variables
+     * @return value attached to template; null if url matches no template
+     * @see MatchResult
+     */
+    public V match(CharSequence url, MatchResult result) {
+        return payload(trie.find(url, result));
+    }
+
+    /**
+     * Is url matching template(s)?
+     *
+     * @param url incoming url for comparison
+     * @return true if url matches a template; false otherwise
+     */
+    public boolean matches(CharSequence url) {
+        return trie.matches(url);
+    }
+
+    /**
+     * Keep results of <code>match(url)</code> for up to maxEntries urls
+     *
+     * @param maxEntries maximum number of urls cached; 0 for no cache
+     * @see PatternMatchingTrie#setResultCache(int)
+     */
+    public void setResultCache(int maxEntries) {
+        trie.setResultCache(maxEntries);
+    }
+
+    /**
+     * @return cache of match results; null if none
+     */
+    public ResultCache getResultCache() {
+        return trie.getResultCache();
+    }
+
+    /**
+     * Utility method to reconstruct all templates from trie. Original template
+     * ordering not maintained. This method is intended for debugging.
+     *
+     * @return List of templates reconstructed from Trie
+     */
+    public List<String> getAllTemplate() {
+        return trie.getAllTemplate();
+    }
+
+    /**
+     * Helper method to read value of leaf node
+     *
+     * @param leaf leaf node; may be null
+     * @return value attached to template of leaf node; null if no leaf
+     */
+    @SuppressWarnings("unchecked")
+    private V payload(CompiledNode leaf) {
+        return (leaf == null) ? null : (V) leaf.payload();
+    }
+}
@@ -0,0 +1,182 @@
+package com.prodigi.object;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * MatchListener that traces a sample of urls, and reports the trace of the
+ * ones that took longer than a threshold to match. Meant to stay installed
+ * in production:
+ * <code>
+ *   // trace 1 in 100 urls; log the ones slower than 5 ms
+ *   trie.setMatchListener(new SlowMatchTracer(5, TimeUnit.MILLISECONDS, 100));
+ * </code>
+ *
+ * Urls that are not sampled get no events at all. A sampled url records each
+ * node entered and each candidate rejected into a buffer of its thread, which
+ * is reused, so only slow urls create a String. By default, traces are logged
+ * as warnings.
+ *
+ * @author Wilkin Cheung
+ */
+public final class SlowMatchTracer implements MatchListener {
+
+    private static Logger logger = Logger.getLogger(SlowMatchTracer.class);
+
+    // longest trace kept; the rest of a very long walk is cut
+    private static final int MAX_TRACE_LENGTH = 16 * 1024;
+
+    /**
+     * Receives traces of slow urls
+     */
+    @FunctionalInterface
+    public interface Reporter {
+
+        /**
+         * @param url      incoming url
+         * @param template template that matched; null if none
+         * @param nanos    time to match
+         * @param trace    nodes entered and candidates rejected, one per line
+         */
+        void report(CharSequence url, String template, long nanos, String trace);
+    }
+
+    // report urls that took at least this long
+    private final long thresholdNanos;
+
+    // trace 1 in sampleEvery urls
+    private final int sampleEvery;
+
+    private final Reporter reporter;
+
+    // trace of url being matched by each thread
+    private final ThreadLocal<StringBuilder> traces = ThreadLocal.withInitial(StringBuilder::new);
+
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder reported = new LongAdder();
+
+    /**
+     * Constructor. Traces are logged as warnings.
+     *
+     * @param threshold   report urls that took at least this long
+     * @param unit        unit of threshold
+     * @param sampleEvery trace 1 in sampleEvery urls; 1 traces all
+     */
+    public SlowMatchTracer(long threshold, TimeUnit unit, int sampleEvery) {
+        this(threshold, unit, sampleEvery, (url, template, nanos, trace) ->
+                logger.warn(String.format("slow match of %s in %d us, template %s:%n%s", url,
+                        TimeUnit.NANOSECONDS.toMicros(nanos), template, trace)));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threshold   report urls that took at least this long
+     * @param unit        unit of threshold
+     * @param sampleEvery trace 1 in sampleEvery urls; 1 traces all
+     * @param reporter    receives traces of slow urls
+     */
+    public SlowMatchTracer(long threshold, TimeUnit unit, int sampleEvery, Reporter reporter) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold cannot be negative");
+        }
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be at least 1");
+        }
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.sampleEvery = sampleEvery;
+        this.reporter = reporter;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onStart(java.lang.CharSequence)
+     */
+    @Override
+    public MatchListener onStart(CharSequence url) {
+        if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return null;
+        }
+        sampled.increment();
+        traces.get().setLength(0);
+        return this;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onNodeEntered(java.lang.CharSequence, java.lang.String, int, int)
+     */
+    @Override
+    public void onNodeEntered(CharSequence url, String node, int start, int end) {
+        append("entered ", url, node, start, end);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onCandidateRejected(java.lang.CharSequence, java.lang.String, int, int)
+     */
+    @Override
+    public void onCandidateRejected(CharSequence url, String node, int start, int end) {
+        append("rejected ", url, node, start, end);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onMatched(java.lang.CharSequence, java.lang.String, long)
+     */
+    @Override
+    public void onMatched(CharSequence url, String template, long nanos) {
+        finish(url, template, nanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.object.MatchListener#onNoMatch(java.lang.CharSequence, long)
+     */
+    @Override
+    public void onNoMatch(CharSequence url, long nanos) {
+        finish(url, null, nanos);
+    }
+
+    private void append(String event, CharSequence url, String node, int start, int end) {
+        StringBuilder trace = traces.get();
+        if (trace.length() < MAX_TRACE_LENGTH) {
+            trace.append("  ").append(event).append(node).append(" <- ")
+                    .append(url, start, end).append('\n');
+        }
+    }
+
+    private void finish(CharSequence url, String template, long nanos) {
+        if (nanos >= thresholdNanos) {
+            reported.increment();
+            reporter.report(url, template, nanos, traces.get().toString());
+        }
+    }
+
+    /**
+     * @return number of urls traced
+     */
+    public long getSampled() {
+        return sampled.sum();
+    }
+
+    /**
+     * @return number of urls reported as slow
+     */
+    public long getReported() {
+        return reported.sum();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("SlowMatchTracer [thresholdNanos=%d, sampleEvery=%d, sampled=%d, reported=%d]",
+                thresholdNanos, sampleEvery, getSampled(), getReported());
+    }
+}
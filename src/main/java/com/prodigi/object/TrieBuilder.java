@@ -0,0 +1,298 @@
+package com.prodigi.object;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import com.prodigi.object.Node.Edge;
+
+/**
+ * Builds a PatternMatchingTrie from a whole set of templates at once.
+ *
+ * Calling <code>addTemplate()</code> in a loop strips host and port and walks
+ * down the Trie from root once per template. TrieBuilder does it once per
+ * node instead: templates are split into segments, de-duplicated and sorted,
+ * so that all templates below a node sit next to each other. Each node is
+ * then created exactly once, and large subtrees are built in parallel on a
+ * ForkJoinPool.
+ *
+ * For example:
+ * <code>
+ *   PatternMatchingTrie&lt;Node&gt; trie = TrieBuilder.build(templateDao.findByApiKey(apiKey));
+ * </code>
+ *
+ * Templates are read batch by batch, and each batch is added to the nodes of
+ * the batches before it, so only one batch is ever held besides the new
+ * nodes, however many templates there are.
+ *
+ * The result is identical to adding the same templates, in the same order,
+ * with <code>addTemplate()</code>: same nodes, same order of child nodes, and
+ * merged complete wildcard nodes named after the first template.
+ *
+ * @author Wilkin Cheung
+ */
+public final class TrieBuilder {
+
+    private static Logger logger = Logger.getLogger(TrieBuilder.class);
+
+    // default number of templates sorted and added at a time
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+    // subtrees of fewer templates are built in the current thread
+    private static final int FORK_THRESHOLD = 256;
+
+    // complete wildcards sort before literals, and equal to each other, so
+    // templates merged into the same complete wildcard node sit together
+    private static final Comparator<Template> ORDER = (a, b) -> {
+        int length = Math.min(a.segments.length, b.segments.length);
+        for (int i = 0; i < length; i++) {
+            int c = compareSegment(a.segments[i], b.segments[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        // template that ends first comes first
+        if (a.segments.length != b.segments.length) {
+            return a.segments.length - b.segments.length;
+        }
+        return Integer.compare(a.index, b.index);
+    };
+
+    /**
+     * Constructor. Use static methods.
+     */
+    private TrieBuilder() {
+    }
+
+    /**
+     * Build a Trie on the common ForkJoinPool
+     *
+     * @param templateValues templates; duplicates are ignored
+     * @return Trie that contains all templates
+     */
+    public static PatternMatchingTrie<Node> build(Iterable<String> templateValues) {
+        return build(templateValues, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Build a Trie on the common ForkJoinPool
+     *
+     * @param templateValues templates, in encounter order; duplicates are
+     *                       ignored
+     * @return Trie that contains all templates
+     */
+    public static PatternMatchingTrie<Node> build(Stream<String> templateValues) {
+        // consumed once, batch by batch, so the stream is never collected
+        return build(templateValues::iterator);
+    }
+
+    /**
+     * Build a Trie, DEFAULT_BATCH_SIZE templates at a time
+     *
+     * @param templateValues templates; duplicates are ignored
+     * @param pool           builds subtrees in parallel
+     * @return Trie that contains all templates
+     */
+    public static PatternMatchingTrie<Node> build(Iterable<String> templateValues, ForkJoinPool pool) {
+        return build(templateValues, pool, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Build a Trie, batchSize templates at a time. Each batch is split into
+     * segments, sorted and added to the nodes built so far. Besides the new
+     * nodes, only the batch is held: about 100 bytes per template and 50
+     * bytes per segment of the batch, whatever the number of templates.
+     * templateValues is only iterated, once, so a lazy Iterable, such as
+     * <code>TemplateFileLoader.read()</code>, need not hold all templates at
+     * once either.
+     *
+     * A larger batch means fewer walks from root, and larger subtrees to
+     * build in parallel.
+     *
+     * @param templateValues templates; duplicates are ignored
+     * @param pool           builds subtrees in parallel
+     * @param batchSize      number of templates sorted and added at a time
+     * @return Trie that contains all templates
+     */
+    public static PatternMatchingTrie<Node> build(Iterable<String> templateValues, ForkJoinPool pool,
+                                                  int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        long start = System.nanoTime();
+
+        Node root = new Node("root", Edge.FORWARD_SLASH);
+        Set<String> seen = new HashSet<>();
+        List<Template> batch = new ArrayList<>();
+        int count = 0;
+        for (String templateValue : templateValues) {
+            // de-duplicate within batch, keeping the first one; a template
+            // of an earlier batch is added again as addTemplate() would,
+            // which changes nothing
+            if (seen.add(templateValue)) {
+                batch.add(new Template(templateValue, batch.size()));
+            }
+            if (batch.size() == batchSize) {
+                count += add(root, batch, pool);
+                seen.clear();
+            }
+        }
+        count += add(root, batch, pool);
+        PatternMatchingTrie<Node> trie = new PatternMatchingTrie<>(root);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("built trie of %d templates in %d ms", count,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+        return trie;
+    }
+
+    /**
+     * Sort a batch and add it below root, then clear it
+     *
+     * @param root  root node, with nodes of earlier batches
+     * @param batch templates split into segments, in input order
+     * @param pool  builds subtrees in parallel
+     * @return number of templates added
+     */
+    private static int add(Node root, List<Template> batch, ForkJoinPool pool) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Template[] templates = batch.toArray(new Template[batch.size()]);
+        batch.clear();
+        // sequential: Arrays.parallelSort() would run on the common pool,
+        // not on pool
+        Arrays.sort(templates, ORDER);
+
+        BuildTask task = new BuildTask(root, templates, 0, templates.length, 0);
+        if (ForkJoinTask.getPool() == pool) {
+            // already a task of pool, for example one of many tries built
+            // at once; fork subtrees from here instead of blocking a worker
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+        return templates.length;
+    }
+
+    /**
+     * Compare segments for sorting. Complete wildcards are equal to each other.
+     */
+    private static int compareSegment(String a, String b) {
+        boolean aWildcard = Node.isCompleteWildcard(a);
+        boolean bWildcard = Node.isCompleteWildcard(b);
+        if (aWildcard || bWildcard) {
+            return (aWildcard == bWildcard) ? 0 : (aWildcard ? -1 : 1);
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Template, split into segments
+     */
+    private static final class Template {
+        final String value;
+        // position in batch, after duplicates are removed
+        final int index;
+        final String[] segments;
+
+        Template(String value, int index) {
+            this.value = value;
+            this.index = index;
+            this.segments = PatternMatchingTrie.removeHttpHostAndPort(value).split("/", -1);
+        }
+    }
+
+    /**
+     * Builds the children of a node, from a sorted range of templates that all
+     * go through that node. Children built by earlier batches are reused, the
+     * same way addTemplate() does. Only nodes below that node are changed, so
+     * tasks for different nodes run in parallel.
+     */
+    private static final class BuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final Template[] templates;
+        private final int from;
+        private final int to;
+        // segment of children
+        private final int depth;
+
+        BuildTask(Node node, Template[] templates, int from, int to, int depth) {
+            this.node = node;
+            this.templates = templates;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        @Override
+        protected void compute() {
+            // one group per child node: [start, end) of templates, and the
+            // first one added
+            List<int[]> groups = new ArrayList<>();
+            int start = from;
+            while (start < to) {
+                int first = start;
+                int end = start + 1;
+                while (end < to && compareSegment(templates[start].segments[depth],
+                        templates[end].segments[depth]) == 0) {
+                    if (templates[end].index < templates[first].index) {
+                        first = end;
+                    }
+                    end++;
+                }
+                groups.add(new int[]{start, end, first});
+                start = end;
+            }
+
+            // child nodes are added in the order addTemplate() would add them
+            groups.sort((a, b) -> Integer.compare(templates[a[2]].index, templates[b[2]].index));
+
+            List<BuildTask> forked = new ArrayList<>();
+            for (int[] group : groups) {
+                // templates that end at child sort first, in input order
+                int leafEnd = group[0];
+                while (leafEnd < group[1] && templates[leafEnd].segments.length == depth + 1) {
+                    leafEnd++;
+                }
+
+                Node child = Node.addChildToParentNode(node, templates[group[2]].segments[depth],
+                        leafEnd > group[0], Edge.FORWARD_SLASH);
+                for (int i = group[0]; i < leafEnd; i++) {
+                    child.addLeafTemplate(templates[i].value, null);
+                }
+
+                if (leafEnd < group[1]) {
+                    BuildTask task = new BuildTask(child, templates, leafEnd, group[1], depth + 1);
+                    if (group[1] - leafEnd >= FORK_THRESHOLD) {
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        task.compute();
+                    }
+                }
+            }
+            for (BuildTask task : forked) {
+                task.join();
+            }
+        }
+    }
+}
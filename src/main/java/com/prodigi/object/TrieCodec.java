@@ -0,0 +1,564 @@
+package com.prodigi.object;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.prodigi.exception.TrieException;
+import com.prodigi.object.Node.Edge;
+import com.prodigi.object.Node.NodeType;
+import com.prodigi.service.CharPolicy;
+
+/**
+ * Compact, versioned binary format for PatternMatchingTrie, in place of
+ * default Java serialization. Intended for tries cached in memcached/Redis.
+ *
+ * Default Java serialization writes class descriptors and HashMap internals
+ * for every node. This format writes each distinct string (node value, edge,
+ * template) once into a string table, and the tree structure as varints that
+ * refer to it. Uri templates of wildcard nodes are not written; they are
+ * built again from node value on first use.
+ *
+ * For example:
+ * <code>
+ *   TrieCodec codec = TrieCodec.getDefault();
+ *   byte[] bytes = codec.encode(trie);
+ *   PatternMatchingTrie&lt;Node&gt; copy = codec.decode(bytes);
+ * </code>
+ *
+ * Java serialization of a PatternMatchingTrie also uses this format, so a
+ * memcached client that serializes objects picks it up as-is.
+ *
+ * Format:
+ * <code>
+ *   int magic, varint version,
+ *   varint stringCount, stringCount x (varint length, UTF-8 bytes),
+ *   policy, varint variableCount, variableCount x (varint name, policy),
+ *   root node
+ *   policy: 8 bytes allowed ascii 00-3F, 8 bytes allowed ascii 40-7F,
+ *           byte flags (bits 0-1 NonAscii ordinal, bit 2 percentEncoded)
+ *   node:  varint 0 followed by a new node, or varint n for n-th node
+ *          already read (shared node)
+ *          varint value, byte flags (bit 0 leaf, bit 1 hasCompleteWildcardChild,
+ *          bits 2-3 NodeType ordinal),
+ *          varint templateCount, templateCount x (varint template, varint payload),
+ *          varint edgeCount, edgeCount x (varint edge, varint childCount, childCount x node)
+ * </code>
+ * Strings are referred to by index into the string table. Payload is 0 if
+ * template has no value, otherwise 1 + index of value in serialized form.
+ * The policies are those set by <code>setCharPolicy()</code>: of all
+ * variables, then of variables by name. Version 1, which has no policies, is
+ * still read, as CharPolicy.DEFAULT.
+ *
+ * Each codec keeps count, size and time of what it encoded and decoded, so
+ * they can be tracked. A TrieCodec is safe to share across threads.
+ *
+ * @author Wilkin Cheung
+ */
+public final class TrieCodec {
+
+    // "UTPC"
+    static final int MAGIC = 0x55545043;
+
+    // format version; bump on any change to the layout
+    static final int VERSION = 2;
+
+    // last version without CharPolicies
+    private static final int VERSION_1 = 1;
+
+    // deepest node accepted by decode(); far more segments than any url has
+    private static final int MAX_DEPTH = 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final TrieCodec DEFAULT = new TrieCodec();
+
+    private static Logger logger = Logger.getLogger(TrieCodec.class);
+
+    private final AtomicLong encodeCount = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong decodeCount = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    /**
+     * Codec used by Java serialization of PatternMatchingTrie
+     *
+     * @return shared TrieCodec
+     */
+    public static TrieCodec getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Encode trie
+     *
+     * @param trie trie to encode
+     * @return encoded bytes
+     * @throws TrieException if templates have values attached by RoutingTrie;
+     *                       use Java serialization for those
+     */
+    public byte[] encode(PatternMatchingTrie<?> trie) {
+        List<Object> payloads = new ArrayList<>();
+        byte[] bytes = encode(trie, payloads);
+        if (!payloads.isEmpty()) {
+            throw new TrieException("Trie has values attached to templates; use Java serialization instead");
+        }
+        return bytes;
+    }
+
+    /**
+     * Decode trie
+     *
+     * @param bytes encoded bytes
+     * @return trie
+     * @throws TrieException if bytes are not in a supported format
+     */
+    public PatternMatchingTrie<Node> decode(byte[] bytes) {
+        return decode(bytes, new Object[0]);
+    }
+
+    /**
+     * Encode trie, and collect values attached to templates
+     *
+     * @param trie     trie to encode
+     * @param payloads receives values attached to templates
+     * @return encoded bytes
+     */
+    byte[] encode(PatternMatchingTrie<?> trie, List<Object> payloads) {
+        long start = System.nanoTime();
+
+        // builder nodes change under addTemplate() and removeTemplate(),
+        // which hold the lock of trie; hold it too, so the bytes are of a
+        // single version of trie
+        Encoder encoder = new Encoder(payloads);
+        synchronized (trie) {
+            encoder.collectStrings(trie.root(), new IdentityHashMap<Node, Boolean>());
+            for (String variableName : trie.charPolicies().byVariable().keySet()) {
+                encoder.addString(variableName);
+            }
+            encoder.writeHeader();
+            encoder.writePolicies(trie.charPolicies());
+            encoder.writeNode(trie.root());
+        }
+        byte[] bytes = encoder.out.toByteArray();
+
+        long nanos = System.nanoTime() - start;
+        encodeCount.incrementAndGet();
+        encodedBytes.addAndGet(bytes.length);
+        encodeNanos.addAndGet(nanos);
+        debug(String.format("encoded trie into %d bytes in %d us", bytes.length,
+                nanos / 1000));
+        return bytes;
+    }
+
+    /**
+     * Decode trie, with values attached to templates
+     *
+     * @param bytes    encoded bytes
+     * @param payloads values attached to templates
+     * @return trie
+     */
+    PatternMatchingTrie<Node> decode(byte[] bytes, Object[] payloads) {
+        long start = System.nanoTime();
+
+        Decoder decoder = new Decoder(bytes, payloads);
+        Node root;
+        CharPolicies policies;
+        try {
+            decoder.readHeader();
+            policies = decoder.readPolicies();
+            root = decoder.readNode(0);
+        } catch (IndexOutOfBoundsException e) {
+            throw new TrieException("truncated or malformed trie encoding", e);
+        }
+        PatternMatchingTrie<Node> trie = new PatternMatchingTrie<>(root, policies);
+
+        long nanos = System.nanoTime() - start;
+        decodeCount.incrementAndGet();
+        decodedBytes.addAndGet(bytes.length);
+        decodeNanos.addAndGet(nanos);
+        debug(String.format("decoded trie from %d bytes in %d us", bytes.length,
+                nanos / 1000));
+        return trie;
+    }
+
+    /**
+     * Serialized form of trie, used by <code>PatternMatchingTrie.writeReplace()</code>
+     *
+     * @param trie trie to serialize
+     * @return serialized form
+     */
+    Serializable serializedForm(PatternMatchingTrie<?> trie) {
+        List<Object> payloads = new ArrayList<>();
+        byte[] bytes = encode(trie, payloads);
+        return new SerializedForm(bytes, payloads.toArray());
+    }
+
+    /**
+     * @return number of tries encoded
+     */
+    public long getEncodeCount() {
+        return encodeCount.get();
+    }
+
+    /**
+     * @return total size of tries encoded, in bytes
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    /**
+     * @return total time spent encoding, in nanoseconds
+     */
+    public long getEncodeNanos() {
+        return encodeNanos.get();
+    }
+
+    /**
+     * @return number of tries decoded
+     */
+    public long getDecodeCount() {
+        return decodeCount.get();
+    }
+
+    /**
+     * @return total size of tries decoded, in bytes
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    /**
+     * @return total time spent decoding, in nanoseconds
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("TrieCodec [encodeCount=%d, encodedBytes=%d, encodeNanos=%d, decodeCount=%d, decodedBytes=%d, decodeNanos=%d]",
+                getEncodeCount(), getEncodedBytes(), getEncodeNanos(),
+                getDecodeCount(), getDecodedBytes(), getDecodeNanos());
+    }
+
+    /**
+     * Helper method to debug
+     *
+     * @param s debug statement
+     */
+    private static void debug(String s) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(s);
+        }
+    }
+
+    /**
+     * Write trie into bytes
+     */
+    private static final class Encoder {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Map<String, Integer> strings = new HashMap<>();
+        final List<String> stringTable = new ArrayList<>();
+        final Map<Node, Integer> written = new IdentityHashMap<>();
+        final List<Object> payloads;
+
+        Encoder(List<Object> payloads) {
+            this.payloads = payloads;
+        }
+
+        /**
+         * First pass: number every distinct string
+         */
+        void collectStrings(Node node, Map<Node, Boolean> seen) {
+            if (seen.put(node, Boolean.TRUE) != null) {
+                return;
+            }
+            addString(node.value());
+            for (String template : node.leafTemplates().keySet()) {
+                addString(template);
+            }
+            for (Edge edge : node.getAllEdges()) {
+                addString(edge.value());
+                for (Node child : node.getChildrenOrEmpty(edge).all()) {
+                    collectStrings(child, seen);
+                }
+            }
+        }
+
+        void addString(String s) {
+            if (!strings.containsKey(s)) {
+                strings.put(s, stringTable.size());
+                stringTable.add(s);
+            }
+        }
+
+        void writeHeader() {
+            writeInt(MAGIC);
+            writeVarint(VERSION);
+            writeVarint(stringTable.size());
+            for (String s : stringTable) {
+                byte[] utf8 = s.getBytes(UTF_8);
+                writeVarint(utf8.length);
+                out.write(utf8, 0, utf8.length);
+            }
+        }
+
+        void writePolicies(CharPolicies policies) {
+            writePolicy(policies.policy());
+            writeVarint(policies.byVariable().size());
+            for (Map.Entry<String, CharPolicy> entry : policies.byVariable().entrySet()) {
+                writeVarint(strings.get(entry.getKey()));
+                writePolicy(entry.getValue());
+            }
+        }
+
+        void writePolicy(CharPolicy policy) {
+            writeLong(CharPolicies.asciiBits(policy, 0));
+            writeLong(CharPolicies.asciiBits(policy, 64));
+            out.write(policy.getNonAscii().ordinal()
+                    | (policy.isPercentEncodedAllowed() ? 4 : 0));
+        }
+
+        void writeNode(Node node) {
+            Integer id = written.get(node);
+            if (id != null) {
+                writeVarint(id + 1);
+                return;
+            }
+            written.put(node, written.size());
+            writeVarint(0);
+
+            writeVarint(strings.get(node.value()));
+            out.write((node.isLeaf() ? 1 : 0)
+                    | (node.hasCompleteWildcardChild() ? 2 : 0)
+                    | (node.nodeType().ordinal() << 2));
+
+            writeVarint(node.leafTemplates().size());
+            for (Map.Entry<String, Object> entry : node.leafTemplates().entrySet()) {
+                writeVarint(strings.get(entry.getKey()));
+                if (entry.getValue() == null) {
+                    writeVarint(0);
+                } else {
+                    payloads.add(entry.getValue());
+                    writeVarint(payloads.size());
+                }
+            }
+
+            writeVarint(node.getAllEdges().size());
+            for (Edge edge : node.getAllEdges()) {
+                Node.Children children = node.getChildrenOrEmpty(edge);
+                writeVarint(strings.get(edge.value()));
+                writeVarint(children.size());
+                for (Node child : children.all()) {
+                    writeNode(child);
+                }
+            }
+        }
+
+        void writeInt(int v) {
+            out.write(v >>> 24);
+            out.write(v >>> 16);
+            out.write(v >>> 8);
+            out.write(v);
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        /**
+         * Unsigned LEB128: 7 bits per byte, high bit set if more bytes follow
+         */
+        void writeVarint(int v) {
+            while ((v & ~0x7F) != 0) {
+                out.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+    }
+
+    /**
+     * Read trie from bytes
+     */
+    private static final class Decoder {
+        final byte[] bytes;
+        final Object[] payloads;
+        final List<Node> read = new ArrayList<>();
+        // nodes read in full, by id; the others are still being read, so
+        // are ancestors of the current node
+        final BitSet complete = new BitSet();
+        String[] stringTable;
+        int version;
+        int position = 0;
+
+        Decoder(byte[] bytes, Object[] payloads) {
+            this.bytes = bytes;
+            this.payloads = payloads;
+        }
+
+        void readHeader() {
+            if (bytes.length < 4 || readInt() != MAGIC) {
+                throw new TrieException("not a trie encoding");
+            }
+            version = readVarint();
+            if (version != VERSION && version != VERSION_1) {
+                throw new TrieException(String.format(
+                        "unsupported trie encoding version %d", version));
+            }
+            stringTable = new String[readVarint()];
+            for (int i = 0; i < stringTable.length; i++) {
+                int length = readVarint();
+                if (length > bytes.length - position) {
+                    throw new TrieException("truncated trie encoding");
+                }
+                stringTable[i] = new String(bytes, position, length, UTF_8);
+                position += length;
+            }
+        }
+
+        CharPolicies readPolicies() {
+            if (version == VERSION_1) {
+                return CharPolicies.DEFAULT;
+            }
+            CharPolicies policies = CharPolicies.DEFAULT.with(readPolicy());
+            int variableCount = readVarint();
+            for (int i = 0; i < variableCount; i++) {
+                String variableName = stringTable[readVarint()];
+                policies = policies.with(variableName, readPolicy());
+            }
+            return policies;
+        }
+
+        CharPolicy readPolicy() {
+            long low = readLong();
+            long high = readLong();
+            int flags = bytes[position++];
+            return CharPolicies.restore(low, high,
+                    CharPolicy.NonAscii.values()[flags & 3], (flags & 4) != 0);
+        }
+
+        /**
+         * Read node, and all nodes below it. A shared node must have been
+         * read in full before; a reference to an ancestor would make a cycle,
+         * which compiling or matching would follow forever.
+         *
+         * @param depth number of ancestors of node
+         */
+        Node readNode(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new TrieException(String.format(
+                        "trie encoding nested deeper than %d nodes", MAX_DEPTH));
+            }
+            int id = readVarint();
+            if (id != 0) {
+                if (!complete.get(id - 1)) {
+                    throw new TrieException(String.format(
+                            "malformed trie encoding: node %d refers to unread node or ancestor %d",
+                            read.size(), id - 1));
+                }
+                return read.get(id - 1);
+            }
+            int self = read.size();
+
+            String value = stringTable[readVarint()];
+            int flags = bytes[position++];
+            Node node = Node.restore(value, NodeType.values()[(flags >> 2) & 3],
+                    (flags & 1) != 0, (flags & 2) != 0);
+            read.add(node);
+
+            int templateCount = readVarint();
+            for (int i = 0; i < templateCount; i++) {
+                String template = stringTable[readVarint()];
+                int payload = readVarint();
+                node.addLeafTemplate(template,
+                        (payload == 0) ? null : payloads[payload - 1]);
+            }
+
+            int edgeCount = readVarint();
+            for (int i = 0; i < edgeCount; i++) {
+                String edgeValue = stringTable[readVarint()];
+                Edge edge = Edge.FORWARD_SLASH.value().equals(edgeValue)
+                        ? Edge.FORWARD_SLASH : new Edge(edgeValue);
+                Node.Children children = node.getChildren(edge);
+                int childCount = readVarint();
+                for (int j = 0; j < childCount; j++) {
+                    children.add(readNode(depth + 1));
+                }
+            }
+            complete.set(self);
+            return node;
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (bytes[position++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long high = readInt();
+            return (high << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        int readVarint() {
+            int v = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = bytes[position++];
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new TrieException("malformed varint in trie encoding");
+        }
+    }
+
+    /**
+     * What Java serialization writes for a PatternMatchingTrie: encoded bytes,
+     * and values attached to templates, if any, by default serialization.
+     */
+    private static final class SerializedForm implements Serializable {
+
+        // required for (de-)serialization
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] bytes;
+
+        private final Object[] payloads;
+
+        SerializedForm(byte[] bytes, Object[] payloads) {
+            this.bytes = bytes;
+            this.payloads = payloads;
+        }
+
+        /**
+         * Replace with decoded trie
+         *
+         * @return PatternMatchingTrie
+         */
+        private Object readResolve() {
+            return DEFAULT.decode(bytes, payloads);
+        }
+    }
+}
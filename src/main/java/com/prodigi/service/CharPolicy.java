@@ -0,0 +1,302 @@
+package com.prodigi.service;
+
+/**
+ * Characters allowed in a variable value, checked with a lookup table
+ * instead of a regex. Each character of a value is looked at exactly once.
+ *
+ * An ascii character is allowed if its bit is set in a 128-bit bitmap (two
+ * longs). Any other character is allowed or not by a single NonAscii rule.
+ * Optionally, '%' is allowed only as the start of a percent-encoded triplet,
+ * such as %2F.
+ *
+ * A CharPolicy is immutable. Methods that change it return a new one, so
+ * predefined policies can be shared and refined. For example:
+ * <code>
+ *   // RFC 3986 unreserved characters, plus , and :
+ *   CharPolicy ids = CharPolicy.UNRESERVED.allow(",:");
+ *
+ *   // RFC 3986 unreserved characters, and percent-encoded octets
+ *   CharPolicy names = CharPolicy.UNRESERVED.allowPercentEncoded();
+ *
+ *   trie.setCharPolicy("name", names);
+ * </code>
+ *
+ * A CharPolicy is a VariableFilter, so it can be passed to
+ * <code>UriTemplate.match()</code> directly, and values are checked while the
+ * template is being matched.
+ *
+ * @author Wilkin Cheung
+ * @see http://tools.ietf.org/html/rfc3986#section-2
+ */
+public final class CharPolicy implements VariableFilter {
+
+    /**
+     * What to do with characters above ascii
+     */
+    public enum NonAscii {
+        // allow all of them
+        ALLOW,
+        // reject all of them
+        REJECT,
+        // reject 80-FF, as single octets of an unknown charset; allow the rest
+        REJECT_LATIN1
+    }
+
+    /**
+     * Reserved, unsafe, whitespace, non-ascii (80-FF) and ascii control
+     * characters are not allowed. This is the policy of a Trie, unless set
+     * otherwise. Note 7F has always been allowed.
+     */
+    public static final CharPolicy DEFAULT = new CharPolicy(0, 0, NonAscii.REJECT_LATIN1, false)
+            .allowRange(0x21, 0x7F)
+            // reserved characters
+            .reject("&,/:;=?@")
+            // unsafe characters
+            .reject("\"<>#{}|\\^[]`");
+
+    /**
+     * Only RFC 3986 unreserved characters: letters, digits, - . _ and ~
+     */
+    public static final CharPolicy UNRESERVED = new CharPolicy(0, 0, NonAscii.REJECT, false)
+            .allowRange('a', 'z')
+            .allowRange('A', 'Z')
+            .allowRange('0', '9')
+            .allow("-._~");
+
+    // bit c set if ascii character c is allowed; 00-3F
+    private final long low;
+
+    // bit c - 64 set if ascii character c is allowed; 40-7F
+    private final long high;
+
+    private final NonAscii nonAscii;
+
+    // NonAscii rule, as flags for the hot loop
+    private final boolean latin1Allowed;
+    private final boolean wideAllowed;
+
+    // '%' followed by two hex digits is allowed, even if '%' is not
+    private final boolean percentEncoded;
+
+    private CharPolicy(long low, long high, NonAscii nonAscii, boolean percentEncoded) {
+        this.low = low;
+        this.high = high;
+        this.nonAscii = nonAscii;
+        this.latin1Allowed = nonAscii == NonAscii.ALLOW;
+        this.wideAllowed = nonAscii != NonAscii.REJECT;
+        this.percentEncoded = percentEncoded;
+    }
+
+    /**
+     * Check a region of input, in place
+     *
+     * @param s     input
+     * @param start index of first character
+     * @param end   index after last character
+     * @return true if every character is allowed; false otherwise
+     */
+    public boolean isValid(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 64) {
+                // shift distance of a long is taken mod 64
+                if ((low & (1L << c)) == 0) {
+                    if (c != '%' || !percentEncoded || !isTriplet(s, i, end)) {
+                        return false;
+                    }
+                    i += 2;
+                }
+            } else if (c < 128) {
+                if ((high & (1L << c)) == 0) {
+                    return false;
+                }
+            } else if (!(c <= 0xFF ? latin1Allowed : wideAllowed)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check a whole value
+     *
+     * @param s value
+     * @return true if every character is allowed; false otherwise
+     */
+    public boolean isValid(CharSequence s) {
+        return isValid(s, 0, s.length());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.service.VariableFilter#accept(int, java.lang.CharSequence, int, int)
+     */
+    @Override
+    public boolean accept(int index, CharSequence s, int start, int end) {
+        return isValid(s, start, end);
+    }
+
+    /**
+     * Is character allowed on its own? A '%' of a percent-encoded triplet is
+     * not, unless allowed explicitly.
+     *
+     * @param c character
+     * @return true if allowed; false otherwise
+     */
+    public boolean isAllowed(char c) {
+        if (c < 64) {
+            return (low & (1L << c)) != 0;
+        }
+        if (c < 128) {
+            return (high & (1L << c)) != 0;
+        }
+        return c <= 0xFF ? latin1Allowed : wideAllowed;
+    }
+
+    /**
+     * Allow more ascii characters
+     *
+     * @param chars ascii characters to allow, for example ",:"
+     * @return new policy
+     * @throws IllegalArgumentException if a character is not ascii
+     */
+    public CharPolicy allow(String chars) {
+        long[] bits = bits(chars);
+        return new CharPolicy(low | bits[0], high | bits[1], nonAscii, percentEncoded);
+    }
+
+    /**
+     * Stop allowing some ascii characters
+     *
+     * @param chars ascii characters to reject, for example "~"
+     * @return new policy
+     * @throws IllegalArgumentException if a character is not ascii
+     */
+    public CharPolicy reject(String chars) {
+        long[] bits = bits(chars);
+        return new CharPolicy(low & ~bits[0], high & ~bits[1], nonAscii, percentEncoded);
+    }
+
+    /**
+     * Allow percent-encoded octets, that is, '%' followed by two hex digits.
+     * A '%' that is not followed by two hex digits is still rejected, unless
+     * '%' itself is allowed.
+     *
+     * @return new policy
+     */
+    public CharPolicy allowPercentEncoded() {
+        return new CharPolicy(low, high, nonAscii, true);
+    }
+
+    /**
+     * Set the rule for characters above ascii
+     *
+     * @param rule rule
+     * @return new policy
+     */
+    public CharPolicy nonAscii(NonAscii rule) {
+        if (rule == null) {
+            throw new IllegalArgumentException("rule cannot be null");
+        }
+        return new CharPolicy(low, high, rule, percentEncoded);
+    }
+
+    /**
+     * @return rule for characters above ascii
+     */
+    public NonAscii getNonAscii() {
+        return nonAscii;
+    }
+
+    /**
+     * @return true if percent-encoded octets are allowed
+     */
+    public boolean isPercentEncodedAllowed() {
+        return percentEncoded;
+    }
+
+    private CharPolicy allowRange(int from, int to) {
+        long lowBits = low;
+        long highBits = high;
+        for (int c = from; c <= to; c++) {
+            if (c < 64) {
+                lowBits |= 1L << c;
+            } else {
+                highBits |= 1L << c;
+            }
+        }
+        return new CharPolicy(lowBits, highBits, nonAscii, percentEncoded);
+    }
+
+    /**
+     * Bitmap of ascii characters
+     *
+     * @return low and high long
+     */
+    private static long[] bits(String chars) {
+        long[] bits = new long[2];
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c >= 128) {
+                throw new IllegalArgumentException(String.format(
+                        "%s is not an ascii character; use nonAscii() instead", c));
+            }
+            bits[c >>> 6] |= 1L << c;
+        }
+        return bits;
+    }
+
+    private static boolean isTriplet(CharSequence s, int percent, int end) {
+        return percent + 2 < end && isHexDigit(s.charAt(percent + 1))
+                && isHexDigit(s.charAt(percent + 2));
+    }
+
+    private static boolean isHexDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CharPolicy)) {
+            return false;
+        }
+        CharPolicy other = (CharPolicy) o;
+        return low == other.low && high == other.high && nonAscii == other.nonAscii
+                && percentEncoded == other.percentEncoded;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(low);
+        result = 31 * result + Long.hashCode(high);
+        result = 31 * result + nonAscii.hashCode();
+        return 31 * result + (percentEncoded ? 1 : 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder allowed = new StringBuilder();
+        for (char c = 0x21; c < 0x7F; c++) {
+            if (isAllowed(c)) {
+                allowed.append(c);
+            }
+        }
+        return String.format("CharPolicy [allowed=%s, nonAscii=%s, percentEncoded=%s]",
+                allowed, nonAscii, percentEncoded);
+    }
+}
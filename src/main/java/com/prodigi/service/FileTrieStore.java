@@ -0,0 +1,85 @@
+package com.prodigi.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * TrieStore with one file per apiKey in a directory. Survives restart, so a
+ * cold node reads encoded tries from local disk instead of rebuilding them.
+ *
+ * Each file is written to a temporary file first, then renamed, so readers
+ * never see a partly written trie.
+ *
+ * @author Wilkin Cheung
+ */
+public class FileTrieStore implements TrieStore {
+
+    private static final String SUFFIX = ".trie";
+
+    // directory of trie files
+    private final Path directory;
+
+    /**
+     * Constructor. Directory is created if it does not exist.
+     *
+     * @param directory directory of trie files
+     * @throws IOException if directory cannot be created
+     */
+    public FileTrieStore(File directory) throws IOException {
+        this.directory = Files.createDirectories(directory.toPath());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.service.TrieStore#get(java.lang.String)
+     */
+    @Override
+    public byte[] get(String apiKey) throws IOException {
+        try {
+            return Files.readAllBytes(path(apiKey));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.service.TrieStore#put(java.lang.String, byte[])
+     */
+    @Override
+    public void put(String apiKey, byte[] bytes) throws IOException {
+        Path temp = Files.createTempFile(directory, "put", ".tmp");
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, path(apiKey), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.service.TrieStore#remove(java.lang.String)
+     */
+    @Override
+    public void remove(String apiKey) throws IOException {
+        Files.deleteIfExists(path(apiKey));
+    }
+
+    /**
+     * File of apiKey. apiKey is URL-encoded, so any apiKey is a safe file name.
+     *
+     * @param apiKey apiKey
+     * @return path of file
+     */
+    private Path path(String apiKey) throws UnsupportedEncodingException {
+        return directory.resolve(URLEncoder.encode(apiKey, "UTF-8") + SUFFIX);
+    }
+}
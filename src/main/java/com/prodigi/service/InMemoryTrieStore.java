@@ -0,0 +1,47 @@
+package com.prodigi.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TrieStore kept in a ConcurrentHashMap, for tests and single-process use
+ *
+ * @author Wilkin Cheung
+ */
+public class InMemoryTrieStore implements TrieStore {
+
+    private final ConcurrentHashMap<String, byte[]> map = new ConcurrentHashMap<>();
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.service.TrieStore#get(java.lang.String)
+     */
+    @Override
+    public byte[] get(String apiKey) {
+        return map.get(apiKey);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.service.TrieStore#put(java.lang.String, byte[])
+     */
+    @Override
+    public void put(String apiKey, byte[] bytes) {
+        map.put(apiKey, bytes);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.prodigi.service.TrieStore#remove(java.lang.String)
+     */
+    @Override
+    public void remove(String apiKey) {
+        map.remove(apiKey);
+    }
+
+    /**
+     * @return number of tries stored
+     */
+    public int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,299 @@
+package com.prodigi.service;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Compiled matcher for RFC 6570 Level 1 template. Replaces the regular
+ * expression that used to be generated for each template.
+ *
+ * A template is a sequence of literals and variables:
+ * <code>
+ *   L0 {v1} L1 {v2} L2 ... {vn} Ln
+ * </code>
+ *
+ * Matching gives the same result as the former regular expression
+ * <code>\QL0\E(.*)\QL1\E(.*)...(.*)\QLn\E</code> with <code>find()</code>:
+ * the first occurrence of L0 starts the match, and each variable is greedy,
+ * that is, each of L1..Ln is placed at its last possible occurrence.
+ * Unlike the regular expression, variables may span line terminators.
+ *
+ * Instead of backtracking, L0 is searched forward once, then Ln..L1 are
+ * searched backward once each, with KMP tables built at compile time. Each
+ * character of input is examined a bounded number of times, so matching
+ * takes linear time. Inputs whose worst-case work exceeds the work budget are
+ * rejected before scanning.
+ *
+ * A LevelOneMatcher is immutable and safe to share across threads. None of
+ * the match methods allocate.
+ *
+ * @author Wilkin Cheung
+ */
+public final class LevelOneMatcher implements Serializable {
+
+    // Default work budget; with the linear scan, roughly twice the input length
+    public static final int DEFAULT_WORK_BUDGET = 1 << 17;
+
+    // required for (de-)serialization
+    protected static final long serialVersionUID = 1L;
+
+    // literals around variables; one more literal than there are variables
+    private final String[] literals;
+
+    // KMP failure tables: forward for literals[0], backward (on reversed
+    // literal) for the others
+    private final int[][] failures;
+
+    // total length of all literals
+    private final int literalLength;
+
+    // maximum work allowed for one match
+    private final int workBudget;
+
+    /**
+     * Constructor
+     *
+     * @param literals   literals around variables, from left to right. There
+     *                   must be one more literal than there are variables;
+     *                   literals may be empty.
+     * @param workBudget maximum work allowed for one match
+     */
+    public LevelOneMatcher(List<String> literals, int workBudget) {
+        if (literals.isEmpty()) {
+            throw new IllegalArgumentException("at least one literal is required");
+        }
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.failures = new int[this.literals.length][];
+        this.workBudget = workBudget;
+
+        int length = 0;
+        for (int i = 0; i < this.literals.length; i++) {
+            failures[i] = failureTable(this.literals[i], i > 0);
+            length += this.literals[i].length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * @return number of variables in template
+     */
+    public int variableCount() {
+        return literals.length - 1;
+    }
+
+    /**
+     * Boolean-only match; variable values are neither captured nor checked.
+     *
+     * @param s     input
+     * @param start index of first character of input
+     * @param end   index after last character of input
+     * @return true if template has one or more variables and matches input
+     */
+    public boolean matches(CharSequence s, int start, int end) {
+        return scan(s, start, end, null, 0, null);
+    }
+
+    /**
+     * Match, and pass each variable value to filter as soon as its position
+     * is known. If filter rejects a value, then there is no match.
+     *
+     * @param s      input
+     * @param start  index of first character of input
+     * @param end    index after last character of input
+     * @param filter check for each variable value; may be null
+     * @return true if template has one or more variables, matches input, and
+     *         all variable values are accepted
+     */
+    public boolean matches(CharSequence s, int start, int end,
+                           VariableFilter filter) {
+        return scan(s, start, end, null, 0, filter);
+    }
+
+    /**
+     * Match, and capture start and end index of each variable value.
+     *
+     * @param s       input
+     * @param start   index of first character of input
+     * @param end     index after last character of input
+     * @param offsets receives start index of variable i at [2 * i], and end
+     *                index at [2 * i + 1]. Length must be at least
+     *                <code>2 * variableCount()</code>.
+     * @param filter  check for each variable value; may be null
+     * @return true if template has one or more variables, matches input, and
+     *         all variable values are accepted
+     */
+    public boolean match(CharSequence s, int start, int end, int[] offsets,
+                         VariableFilter filter) {
+        return scan(s, start, end, offsets, 0, filter);
+    }
+
+    /**
+     * Match, and capture start and end index of each variable value into
+     * offsets, starting at index base.
+     *
+     * @param s       input
+     * @param start   index of first character of input
+     * @param end     index after last character of input
+     * @param offsets receives start index of variable i at [base + 2 * i], and
+     *                end index at [base + 2 * i + 1]
+     * @param base    index of offsets where variable 0 goes
+     * @param filter  check for each variable value; may be null
+     * @return true if template has one or more variables, matches input, and
+     *         all variable values are accepted
+     */
+    public boolean match(CharSequence s, int start, int end, int[] offsets,
+                         int base, VariableFilter filter) {
+        return scan(s, start, end, offsets, base, filter);
+    }
+
+    /**
+     * Worst-case work for matching input of given length
+     *
+     * @param inputLength length of input
+     * @return work units
+     */
+    private long work(int inputLength) {
+        return 2L * inputLength + literalLength;
+    }
+
+    /**
+     * Find L0 forward, then Ln..L1 backward. Variable i lies between end of
+     * L(i-1) and start of Li.
+     */
+    private boolean scan(CharSequence s, int start, int end, int[] offsets,
+                         int base, VariableFilter filter) {
+        // a template without variable never matches as a pattern
+        int n = literals.length - 1;
+        if (n == 0 || work(end - start) > workBudget) {
+            return false;
+        }
+
+        // first occurrence of L0 starts the match
+        int first = indexOf(s, start, end, literals[0], failures[0]);
+        if (first == -1) {
+            return false;
+        }
+        int floor = first + literals[0].length();
+
+        // greedy: last possible occurrence of each of Ln..L1
+        int bound = end;
+        for (int i = n; i >= 1; i--) {
+            int found = lastIndexOf(s, floor, bound, literals[i], failures[i]);
+            if (found == -1) {
+                return false;
+            }
+            // value of the variable right after Li is now known
+            if (i < n && !accept(i, s, found + literals[i].length(), bound,
+                    offsets, base, filter)) {
+                return false;
+            }
+            bound = found;
+        }
+        return accept(0, s, floor, bound, offsets, base, filter);
+    }
+
+    /**
+     * Record and check one variable value
+     */
+    private static boolean accept(int index, CharSequence s, int start, int end,
+                                  int[] offsets, int base, VariableFilter filter) {
+        if (offsets != null) {
+            offsets[base + 2 * index] = start;
+            offsets[base + 2 * index + 1] = end;
+        }
+        return filter == null || filter.accept(index, s, start, end);
+    }
+
+    /**
+     * Find first occurrence of literal in region, using KMP
+     *
+     * @param s       input
+     * @param from    index to start from
+     * @param to      index after last character of region
+     * @param literal literal to find
+     * @param failure forward failure table of literal
+     * @return start index of occurrence; -1 if not found
+     */
+    private static int indexOf(CharSequence s, int from, int to, String literal,
+                               int[] failure) {
+        int m = literal.length();
+        if (m == 0) {
+            return from;
+        }
+        int k = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            while (k > 0 && literal.charAt(k) != c) {
+                k = failure[k - 1];
+            }
+            if (literal.charAt(k) == c) {
+                k++;
+            }
+            if (k == m) {
+                return i - m + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find last occurrence of literal in region, using KMP on the reversed
+     * literal while scanning backward
+     *
+     * @param s       input
+     * @param from    occurrence must start at or after this index
+     * @param to      occurrence must end at or before this index
+     * @param literal literal to find
+     * @param failure failure table of reversed literal
+     * @return start index of occurrence; -1 if not found
+     */
+    private static int lastIndexOf(CharSequence s, int from, int to,
+                                   String literal, int[] failure) {
+        int m = literal.length();
+        if (m == 0) {
+            return to;
+        }
+        int k = 0;
+        for (int i = to - 1; i >= from; i--) {
+            char c = s.charAt(i);
+            while (k > 0 && literal.charAt(m - 1 - k) != c) {
+                k = failure[k - 1];
+            }
+            if (literal.charAt(m - 1 - k) == c) {
+                k++;
+            }
+            if (k == m) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Build KMP failure table
+     *
+     * @param literal  literal
+     * @param reversed build table for reversed literal?
+     * @return failure table
+     */
+    private static int[] failureTable(String literal, boolean reversed) {
+        int m = literal.length();
+        int[] failure = new int[m];
+        int k = 0;
+        for (int i = 1; i < m; i++) {
+            char c = charAt(literal, i, reversed);
+            while (k > 0 && charAt(literal, k, reversed) != c) {
+                k = failure[k - 1];
+            }
+            if (charAt(literal, k, reversed) == c) {
+                k++;
+            }
+            failure[i] = k;
+        }
+        return failure;
+    }
+
+    private static char charAt(String literal, int i, boolean reversed) {
+        return reversed ? literal.charAt(literal.length() - 1 - i) : literal.charAt(i);
+    }
+}
@@ -0,0 +1,259 @@
+package com.prodigi.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.prodigi.exception.TrieException;
+import com.prodigi.object.Node;
+import com.prodigi.object.PatternMatchingTrie;
+import com.prodigi.object.TrieBuilder;
+
+/**
+ * Loads a .templates file, one template per line, into a Trie.
+ *
+ * The file is mapped read-only, cut into chunks at line boundaries, and the
+ * chunks are parsed in parallel straight out of the mapped buffer, so the
+ * file is never decoded into one large String. Chunks are parsed a few ahead
+ * of TrieBuilder, which adds templates to the tree batch by batch as they
+ * come in, so the templates of the file are never all held at once: besides
+ * the tree, peak memory is one batch of TrieBuilder and a few chunks. See
+ * TrieBuilder.build().
+ *
+ * For example:
+ * <code>
+ *   PatternMatchingTrie&lt;Node&gt; trie = new TemplateFileLoader().load(new File("whale.a.templates"));
+ * </code>
+ *
+ * The file is UTF-8, with or without byte order mark. Lines end with LF or
+ * CRLF. Blank lines are skipped.
+ *
+ * @author Wilkin Cheung
+ */
+public class TemplateFileLoader {
+
+    private static Logger logger = Logger.getLogger(TemplateFileLoader.class);
+
+    // default bytes per chunk
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    // UTF-8 byte order mark
+    private static final byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    // approximate bytes per chunk; a chunk always ends at a line boundary
+    private final int chunkSize;
+
+    // parses chunks, and builds Trie
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor. 1 MB chunks, parsed on the common ForkJoinPool.
+     */
+    public TemplateFileLoader() {
+        this(DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param chunkSize approximate bytes per chunk
+     * @param pool      parses chunks, and builds Trie
+     */
+    public TemplateFileLoader(int chunkSize, ForkJoinPool pool) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Load file into a new Trie
+     *
+     * @param file .templates file
+     * @return Trie that contains all templates of file
+     * @throws IOException if file cannot be read
+     * @see TrieBuilder
+     */
+    public PatternMatchingTrie<Node> load(File file) throws IOException {
+        long start = System.nanoTime();
+        PatternMatchingTrie<Node> trie = TrieBuilder.build(read(file), pool);
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("loaded %s in %d ms", file,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+        return trie;
+    }
+
+    /**
+     * Read templates of file, in file order. Chunks are parsed in parallel as
+     * the result is iterated, up to the parallelism of pool ahead of the
+     * iterator, and each one is dropped once iterated past. Each iteration
+     * parses the file again.
+     *
+     * @param file .templates file
+     * @return templates of file
+     * @throws IOException if file cannot be read
+     */
+    public Iterable<String> read(File file) throws IOException {
+        final ByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new TrieException(String.format("%s is too large: %d bytes",
+                        file, channel.size()));
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        final List<int[]> chunks = chunks(buffer);
+        final int lookahead = Math.max(2, pool.getParallelism());
+        return () -> new ChunkIterator(buffer, chunks, lookahead, pool);
+    }
+
+    /**
+     * Cut buffer into chunks of about chunkSize bytes that end at a line
+     * boundary
+     *
+     * @param buffer whole file
+     * @return [from, to) of each chunk
+     */
+    private List<int[]> chunks(ByteBuffer buffer) {
+        int size = buffer.limit();
+        int start = hasBom(buffer) ? BOM.length : 0;
+        if (start == size) {
+            return Collections.emptyList();
+        }
+
+        List<int[]> chunks = new ArrayList<>();
+        while (start < size) {
+            int end = (int) Math.min((long) start + chunkSize, size);
+            while (end < size && buffer.get(end - 1) != '\n') {
+                end++;
+            }
+            chunks.add(new int[]{start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Parse lines of a chunk. LF never occurs inside a multi-byte UTF-8
+     * character, so lines are found byte by byte, and only decoded once found.
+     *
+     * @param buffer own view of the file
+     * @param from   first byte of chunk
+     * @param to     one past last byte of chunk
+     * @return templates of chunk, in file order
+     */
+    private static String[] parse(ByteBuffer buffer, int from, int to) {
+        List<String> templates = new ArrayList<>();
+        byte[] line = new byte[256];
+
+        int lineStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i < to && buffer.get(i) != '\n') {
+                continue;
+            }
+            int lineEnd = i;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            int length = lineEnd - lineStart;
+            if (length > 0) {
+                if (length > line.length) {
+                    line = new byte[Math.max(length, line.length * 2)];
+                }
+                buffer.position(lineStart);
+                buffer.get(line, 0, length);
+                templates.add(new String(line, 0, length, StandardCharsets.UTF_8));
+            }
+            lineStart = i + 1;
+        }
+        return templates.toArray(new String[templates.size()]);
+    }
+
+    private static boolean hasBom(ByteBuffer buffer) {
+        if (buffer.limit() < BOM.length) {
+            return false;
+        }
+        for (int i = 0; i < BOM.length; i++) {
+            if (buffer.get(i) != BOM[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Iterates over templates of all chunks, in order. Keeps up to lookahead
+     * chunks being parsed on pool ahead of the one iterated. A parse task is
+     * joined rather than waited on, so a worker of pool that iterates runs
+     * other tasks meanwhile instead of blocking.
+     */
+    private static final class ChunkIterator implements Iterator<String> {
+        private final ByteBuffer buffer;
+        private final Iterator<int[]> chunks;
+        private final int lookahead;
+        private final ForkJoinPool pool;
+
+        // chunks being parsed, in file order
+        private final Deque<ForkJoinTask<String[]>> parsing = new ArrayDeque<>();
+
+        private Iterator<String> current = Collections.emptyIterator();
+
+        ChunkIterator(ByteBuffer buffer, List<int[]> chunks, int lookahead, ForkJoinPool pool) {
+            this.buffer = buffer;
+            this.chunks = chunks.iterator();
+            this.lookahead = lookahead;
+            this.pool = pool;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                while (parsing.size() < lookahead && chunks.hasNext()) {
+                    final int[] chunk = chunks.next();
+                    parsing.add(pool.submit(() -> parse(buffer.duplicate(), chunk[0], chunk[1])));
+                }
+                if (parsing.isEmpty()) {
+                    return false;
+                }
+                current = Arrays.asList(parsing.poll().join()).iterator();
+            }
+            return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+    }
+}
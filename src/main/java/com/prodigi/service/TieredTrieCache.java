@@ -0,0 +1,274 @@
+package com.prodigi.service;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.prodigi.exception.TrieException;
+import com.prodigi.object.CompiledTrie;
+import com.prodigi.object.PatternMatchingTrie;
+import com.prodigi.object.TrieCodec;
+
+/**
+ * Two-tier cache of tries: compiled tries on-heap in a TrieRegistry (L1), and
+ * encoded tries in a byte-oriented TrieStore (L2), for example memcached or
+ * Redis.
+ *
+ * A trie missing from L1 is read from L2, decoded, compiled, and promoted to
+ * L1. A new trie is written through to both tiers, so a trie evicted from L1
+ * is still in L2 and is demoted without being encoded again. A cold node then
+ * decodes tries instead of rebuilding them from template lists.
+ *
+ * For example, with TrieLoader for single-flight loading:
+ * <code>
+ *   TrieRegistry registry = new TrieRegistry(1000, TrieRegistry.Unit.ENTRIES);
+ *   TieredTrieCache cache = new TieredTrieCache(registry, new FileTrieStore(dir));
+ *   TrieLoader loader = new TrieLoader(registry, cache.loaderSource(apiKey -&gt; {
+ *       PatternMatchingTrie trie = new PatternMatchingTrie();
+ *       for (String template : templateDao.findByApiKey(apiKey)) {
+ *           trie.addTemplate(template);
+ *       }
+ *       return trie;
+ *   }));
+ * </code>
+ *
+ * L2 failures are logged and counted, then treated as a miss. L1 hits, L2
+ * hits, misses and L2 load time are counted for monitoring.
+ *
+ * @author Wilkin Cheung
+ */
+public class TieredTrieCache {
+
+    private static Logger logger = Logger.getLogger(TieredTrieCache.class);
+
+    /**
+     * Builds the trie of an apiKey from its templates, when neither tier has
+     * it
+     */
+    @FunctionalInterface
+    public interface TemplateSource {
+
+        /**
+         * Build trie
+         *
+         * @param apiKey apiKey
+         * @return trie with all templates of apiKey; never null
+         * @throws Exception if trie cannot be built
+         */
+        PatternMatchingTrie<?> build(String apiKey) throws Exception;
+    }
+
+    // L1: compiled tries
+    private final TrieRegistry registry;
+
+    // L2: encoded tries
+    private final TrieStore store;
+
+    // encodes tries for L2
+    private final TrieCodec codec;
+
+    private final LongAdder l1Hits = new LongAdder();
+    private final LongAdder l2Hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder l2Errors = new LongAdder();
+    private final LongAdder l2LoadNanos = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param registry L1, compiled tries
+     * @param store    L2, encoded tries
+     */
+    public TieredTrieCache(TrieRegistry registry, TrieStore store) {
+        this(registry, store, TrieCodec.getDefault());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param registry L1, compiled tries
+     * @param store    L2, encoded tries
+     * @param codec    encodes tries for L2
+     */
+    public TieredTrieCache(TrieRegistry registry, TrieStore store, TrieCodec codec) {
+        this.registry = registry;
+        this.store = store;
+        this.codec = codec;
+    }
+
+    /**
+     * Find trie of apiKey in L1, then in L2. A trie found in L2 is promoted to
+     * L1.
+     *
+     * @param apiKey apiKey
+     * @return compiled trie; null if in neither tier
+     */
+    public CompiledTrie get(String apiKey) {
+        CompiledTrie trie = registry.get(apiKey);
+        if (trie != null) {
+            l1Hits.increment();
+            return trie;
+        }
+
+        trie = loadFromStore(apiKey);
+        if (trie != null) {
+            registry.put(apiKey, trie);
+            return trie;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Put trie of apiKey in both tiers. L2 failure is logged; the trie is
+     * still put in L1.
+     *
+     * @param apiKey apiKey
+     * @param trie   trie with all templates of apiKey
+     * @return compiled trie, as put in L1
+     */
+    public CompiledTrie put(String apiKey, PatternMatchingTrie<?> trie) {
+        writeToStore(apiKey, trie);
+        CompiledTrie compiled = trie.compile();
+        registry.put(apiKey, compiled);
+        return compiled;
+    }
+
+    /**
+     * Remove trie of apiKey from both tiers
+     *
+     * @param apiKey apiKey
+     */
+    public void invalidate(String apiKey) {
+        registry.remove(apiKey);
+        try {
+            store.remove(apiKey);
+        } catch (IOException e) {
+            l2Errors.increment();
+            logger.error(String.format("Exception occured while removing trie of apiKey %s from store : %s",
+                    apiKey, e.getMessage()));
+        }
+    }
+
+    /**
+     * TrieSource for TrieLoader: read trie from L2 if there, otherwise build
+     * it from templates and write it to L2. TrieLoader puts the result in L1.
+     *
+     * A refresh, by <code>TrieLoader.refresh()</code> or
+     * <code>setRefreshAfter()</code>, does not read L2: the trie is built
+     * from templates again, and overwrites the copy in L2.
+     *
+     * @param templates builds trie when L2 does not have it, or on refresh
+     * @return TrieSource
+     */
+    public TrieLoader.TrieSource loaderSource(final TemplateSource templates) {
+        return new TrieLoader.TrieSource() {
+            @Override
+            public CompiledTrie load(String apiKey) throws Exception {
+                return load(apiKey, false);
+            }
+
+            @Override
+            public CompiledTrie load(String apiKey, boolean refresh) throws Exception {
+                if (!refresh) {
+                    CompiledTrie trie = loadFromStore(apiKey);
+                    if (trie != null) {
+                        return trie;
+                    }
+                    misses.increment();
+                }
+                PatternMatchingTrie<?> built = templates.build(apiKey);
+                writeToStore(apiKey, built);
+                return built.compile();
+            }
+        };
+    }
+
+    /**
+     * @return number of tries found in L1
+     */
+    public long getL1Hits() {
+        return l1Hits.sum();
+    }
+
+    /**
+     * @return number of tries found in L2, and promoted
+     */
+    public long getL2Hits() {
+        return l2Hits.sum();
+    }
+
+    /**
+     * @return number of tries found in neither tier
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of L2 reads and writes that failed
+     */
+    public long getL2Errors() {
+        return l2Errors.sum();
+    }
+
+    /**
+     * @return total time spent reading and decoding L2 hits, in nanoseconds
+     */
+    public long getL2LoadNanos() {
+        return l2LoadNanos.sum();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("TieredTrieCache [l1Hits=%d, l2Hits=%d, misses=%d, l2Errors=%d, l2LoadNanos=%d]",
+                getL1Hits(), getL2Hits(), getMisses(), getL2Errors(), getL2LoadNanos());
+    }
+
+    /**
+     * Read, decode and compile trie from L2
+     *
+     * @param apiKey apiKey
+     * @return compiled trie; null if not in L2, or L2 failed
+     */
+    private CompiledTrie loadFromStore(String apiKey) {
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = store.get(apiKey);
+            if (bytes == null) {
+                return null;
+            }
+            CompiledTrie trie = codec.decode(bytes).compile();
+            l2Hits.increment();
+            l2LoadNanos.add(System.nanoTime() - start);
+            return trie;
+        } catch (IOException | TrieException e) {
+            // unreadable entry is the same as missing one; it is rebuilt
+            l2Errors.increment();
+            logger.error(String.format("Exception occured while loading trie of apiKey %s from store : %s",
+                    apiKey, e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Encode and write trie to L2
+     *
+     * @param apiKey apiKey
+     * @param trie   trie
+     */
+    private void writeToStore(String apiKey, PatternMatchingTrie<?> trie) {
+        try {
+            store.put(apiKey, codec.encode(trie));
+        } catch (IOException | TrieException e) {
+            l2Errors.increment();
+            logger.error(String.format("Exception occured while writing trie of apiKey %s to store : %s",
+                    apiKey, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.prodigi.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.prodigi.object.CompiledTrie;
+
+/**
+ * Loads compiled tries into a TrieRegistry, one build per apiKey at a time.
+ *
+ * Building a trie is fairly expensive and slow. When the trie of a popular
+ * apiKey is missing, many concurrent requests ask for it at once. TrieLoader
+ * coalesces them: the first request starts the build on the executor, and
+ * every request for the same apiKey gets the same CompletableFuture until the
+ * build is done and the trie is in the registry.
+ *
+ * For example:
+ * <code>
+ *   TrieLoader loader = new TrieLoader(registry, apiKey -&gt; {
+ *       PatternMatchingTrie trie = new PatternMatchingTrie();
+ *       for (String template : templateDao.findByApiKey(apiKey)) {
+ *           trie.addTemplate(template);
+ *       }
+ *       return trie.compile();
+ *   });
+ *   loader.get(apiKey).thenApply(compiled -&gt; compiled.matches(url));
+ * </code>
+ *
+ * With <code>setRefreshAfter()</code>, a trie older than the given time is
+ * still returned right away, while a new one is built in the background. If
+ * the build fails, the old trie stays in the registry. A failed build is not
+ * cached; the next request tries again.
+ *
+ * @author Wilkin Cheung
+ */
+public class TrieLoader {
+
+    private static Logger logger = Logger.getLogger(TrieLoader.class);
+
+    /**
+     * Builds the trie of an apiKey
+     */
+    @FunctionalInterface
+    public interface TrieSource {
+
+        /**
+         * Build trie
+         *
+         * @param apiKey apiKey
+         * @return compiled trie; never null
+         * @throws Exception if trie cannot be built
+         */
+        CompiledTrie load(String apiKey) throws Exception;
+
+        /**
+         * Build trie, for a refresh or for a first load. A source with a
+         * cache of its own, such as TieredTrieCache, skips it on a refresh,
+         * so the trie is built again from its templates.
+         *
+         * @param apiKey  apiKey
+         * @param refresh true if the trie is built again, by
+         *                <code>refresh()</code> or <code>setRefreshAfter()</code>
+         * @return compiled trie; never null
+         * @throws Exception if trie cannot be built
+         */
+        default CompiledTrie load(String apiKey, boolean refresh) throws Exception {
+            return load(apiKey);
+        }
+    }
+
+    // loaded tries
+    private final TrieRegistry registry;
+
+    // builds tries
+    private final TrieSource source;
+
+    // runs builds
+    private final Executor executor;
+
+    // builds in progress, by apiKey
+    private final ConcurrentHashMap<String, CompletableFuture<CompiledTrie>> inFlight =
+            new ConcurrentHashMap<>();
+
+    // 0 if tries are not refreshed
+    private volatile long refreshAfterNanos = 0;
+
+    /**
+     * Constructor. Builds run on the common ForkJoinPool.
+     *
+     * @param registry registry that keeps loaded tries
+     * @param source   builds tries
+     */
+    public TrieLoader(TrieRegistry registry, TrieSource source) {
+        this(registry, source, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param registry registry that keeps loaded tries
+     * @param source   builds tries
+     * @param executor runs builds
+     */
+    public TrieLoader(TrieRegistry registry, TrieSource source, Executor executor) {
+        this.registry = registry;
+        this.source = source;
+        this.executor = executor;
+    }
+
+    /**
+     * Build a new trie in the background once a trie is older than duration.
+     * Until then, the old trie is returned.
+     *
+     * @param duration age that triggers a refresh; 0 for never
+     * @param timeUnit unit of duration
+     */
+    public void setRefreshAfter(long duration, TimeUnit timeUnit) {
+        this.refreshAfterNanos = timeUnit.toNanos(duration);
+    }
+
+    /**
+     * Find trie of apiKey, building it if not in registry. Concurrent calls
+     * for the same apiKey share one build.
+     *
+     * @param apiKey apiKey
+     * @return future of trie; completed right away if trie is in registry,
+     *         completed exceptionally if build fails
+     */
+    public CompletableFuture<CompiledTrie> get(String apiKey) {
+        CompiledTrie trie = registry.get(apiKey);
+        if (trie != null) {
+            long refreshAfter = refreshAfterNanos;
+            if (refreshAfter != 0 && registry.getAgeNanos(apiKey) > refreshAfter) {
+                // serve old trie; build new one in background
+                load(apiKey, true);
+            }
+            return CompletableFuture.completedFuture(trie);
+        }
+        return load(apiKey, false);
+    }
+
+    /**
+     * Build trie of apiKey again, even if in registry. The old trie, if any,
+     * stays in registry until the new one is built.
+     *
+     * @param apiKey apiKey
+     * @return future of new trie; shared with a build already in progress
+     */
+    public CompletableFuture<CompiledTrie> refresh(String apiKey) {
+        return load(apiKey, true);
+    }
+
+    /**
+     * @return number of builds in progress
+     */
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Start build of apiKey, unless one is in progress
+     *
+     * @param apiKey apiKey
+     * @param force  build even if trie is in registry?
+     * @return future of trie
+     */
+    private CompletableFuture<CompiledTrie> load(final String apiKey, boolean force) {
+        CompletableFuture<CompiledTrie> future = inFlight.get(apiKey);
+        if (future != null) {
+            return future;
+        }
+
+        final CompletableFuture<CompiledTrie> created = new CompletableFuture<>();
+        future = inFlight.putIfAbsent(apiKey, created);
+        if (future != null) {
+            return future;
+        }
+
+        // a build may have finished since registry was checked
+        CompiledTrie trie = force ? null : registry.get(apiKey);
+        if (trie != null) {
+            inFlight.remove(apiKey, created);
+            created.complete(trie);
+            return created;
+        }
+
+        try {
+            executor.execute(() -> build(apiKey, force, created));
+        } catch (RuntimeException e) {
+            // for example, executor rejects task
+            inFlight.remove(apiKey, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    /**
+     * Build trie, put it in registry, then complete future. Trie is in
+     * registry before the build is removed from inFlight, so no request in
+     * between starts another build.
+     */
+    private void build(String apiKey, boolean force, CompletableFuture<CompiledTrie> future) {
+        long start = System.nanoTime();
+        try {
+            CompiledTrie trie = source.load(apiKey, force);
+            if (trie == null) {
+                throw new IllegalStateException("TrieSource returned null for apiKey " + apiKey);
+            }
+            registry.put(apiKey, trie);
+            inFlight.remove(apiKey, future);
+            future.complete(trie);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("built trie of apiKey %s in %d ms", apiKey,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Exception occured while building trie of apiKey %s : %s",
+                    apiKey, e.getMessage()));
+            inFlight.remove(apiKey, future);
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.prodigi.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.prodigi.object.CompiledTrie;
+
+/**
+ * Registry of compiled tries, one per apiKey, bounded by number of entries or
+ * by estimated bytes.
+ *
+ * For example:
+ * <code>
+ *   TrieRegistry registry = new TrieRegistry(64 * 1024 * 1024, TrieRegistry.Unit.BYTES);
+ *   registry.setTimeToLive(1, TimeUnit.HOURS);
+ *   registry.put(apiKey, trie.compile());
+ *   ...
+ *   CompiledTrie compiled = registry.get(apiKey);
+ *   if (compiled != null &amp;&amp; compiled.matches(request.getRequestURL())) {
+ *       ...
+ *   }
+ * </code>
+ *
+ * <code>get()</code> takes no lock: it is a ConcurrentHashMap lookup that
+ * marks the entry as recently used. Writes are serialized by a lock. When
+ * capacity is exceeded, entries are evicted in approximate least recently
+ * used order (second chance): the oldest entry is evicted unless it was read
+ * since it was last considered, in which case it moves to the back of the
+ * queue.
+ *
+ * Entries can also expire a fixed time after they were put (time to live), or
+ * after they were last read (idle timeout). Expired entries are removed when
+ * read, and by <code>cleanUp()</code>.
+ *
+ * Listeners are told about every entry removed, with the cause. They are
+ * called after the registry lock is released.
+ *
+ * @author Wilkin Cheung
+ */
+public class TrieRegistry {
+
+    private static Logger logger = Logger.getLogger(TrieRegistry.class);
+
+    /**
+     * What capacity is measured in
+     */
+    public enum Unit {
+        // each trie counts as one
+        ENTRIES,
+        // each trie counts as <code>CompiledTrie.estimatedBytes()</code>
+        BYTES
+    }
+
+    /**
+     * Why an entry was removed
+     */
+    public enum RemovalCause {
+        // evicted to stay within capacity
+        SIZE,
+        // time to live or idle timeout passed
+        EXPIRED,
+        // another trie was put for the same apiKey
+        REPLACED,
+        // removed by <code>remove()</code> or <code>clear()</code>
+        EXPLICIT
+    }
+
+    /**
+     * Told about each entry removed from registry
+     */
+    public interface EvictionListener {
+
+        /**
+         * Called after an entry is removed
+         *
+         * @param apiKey apiKey of entry
+         * @param trie   trie of entry
+         * @param cause  why entry was removed
+         */
+        void onRemoval(String apiKey, CompiledTrie trie, RemovalCause cause);
+    }
+
+    // all entries, for lock-free get
+    private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+
+    // all entries, oldest first, for eviction; guarded by lock
+    private final LinkedHashMap<String, Entry> queue = new LinkedHashMap<>();
+
+    // serializes writes
+    private final Object lock = new Object();
+
+    // maximum total weight
+    private final long capacity;
+
+    // what capacity is measured in
+    private final Unit unit;
+
+    // total weight of all entries; guarded by lock
+    private long weight = 0;
+
+    // 0 if entries do not expire
+    private volatile long timeToLiveNanos = 0;
+
+    // 0 if entries do not expire
+    private volatile long idleTimeoutNanos = 0;
+
+    private final List<EvictionListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum total weight of entries
+     * @param unit     what capacity is measured in
+     */
+    public TrieRegistry(long capacity, Unit unit) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.unit = unit;
+    }
+
+    /**
+     * Expire entries a fixed time after they were put
+     *
+     * @param duration time to live; 0 for no expiry
+     * @param timeUnit unit of duration
+     */
+    public void setTimeToLive(long duration, TimeUnit timeUnit) {
+        this.timeToLiveNanos = timeUnit.toNanos(duration);
+    }
+
+    /**
+     * Expire entries a fixed time after they were last read. The time of the
+     * last read is kept to within 1/16 of duration, or 1 second if less, so
+     * an entry may expire that much early.
+     *
+     * @param duration idle timeout; 0 for no expiry
+     * @param timeUnit unit of duration
+     */
+    public void setIdleTimeout(long duration, TimeUnit timeUnit) {
+        this.idleTimeoutNanos = timeUnit.toNanos(duration);
+    }
+
+    /**
+     * Add a listener for removed entries
+     *
+     * @param listener listener
+     */
+    public void addListener(EvictionListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Find trie of apiKey. Takes no lock.
+     *
+     * @param apiKey apiKey
+     * @return trie; null if not found or expired
+     */
+    public CompiledTrie get(String apiKey) {
+        Entry entry = map.get(apiKey);
+        if (entry == null) {
+            return null;
+        }
+
+        long idleTimeout = idleTimeoutNanos;
+        if (timeToLiveNanos != 0 || idleTimeout != 0) {
+            long now = System.nanoTime();
+            if (isExpired(entry, now)) {
+                removeEntry(apiKey, entry, RemovalCause.EXPIRED);
+                return null;
+            }
+            // read time only matters for idle timeout, and only to within a
+            // tick of it; a hot entry is written once per tick, not per read
+            if (idleTimeout != 0 && now - entry.accessNanos > accessTick(idleTimeout)) {
+                entry.accessNanos = now;
+            }
+        }
+
+        // avoid writing a shared cache line on every read
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.trie;
+    }
+
+    /**
+     * Time since trie of apiKey was put. Does not count as a read.
+     *
+     * @param apiKey apiKey
+     * @return age in nanoseconds; -1 if not found
+     */
+    public long getAgeNanos(String apiKey) {
+        Entry entry = map.get(apiKey);
+        return (entry == null) ? -1 : System.nanoTime() - entry.createdNanos;
+    }
+
+    /**
+     * Put trie of apiKey, replacing the previous one. Other entries are
+     * evicted if capacity is exceeded. A trie heavier than the entire capacity
+     * is evicted right away.
+     *
+     * @param apiKey apiKey
+     * @param trie   trie
+     */
+    public void put(String apiKey, CompiledTrie trie) {
+        Entry entry = new Entry(apiKey, trie,
+                (unit == Unit.BYTES) ? trie.estimatedBytes() : 1, System.nanoTime());
+        List<Entry> removed = new ArrayList<>();
+        List<RemovalCause> causes = new ArrayList<>();
+
+        synchronized (lock) {
+            Entry previous = map.put(apiKey, entry);
+            if (previous != null) {
+                queue.remove(apiKey);
+                weight -= previous.weight;
+                removed.add(previous);
+                causes.add(RemovalCause.REPLACED);
+            }
+            queue.put(apiKey, entry);
+            weight += entry.weight;
+            evict(removed, causes);
+        }
+        notifyListeners(removed, causes);
+    }
+
+    /**
+     * Remove trie of apiKey
+     *
+     * @param apiKey apiKey
+     * @return trie removed; null if not found
+     */
+    public CompiledTrie remove(String apiKey) {
+        Entry entry = map.get(apiKey);
+        if (entry != null && removeEntry(apiKey, entry, RemovalCause.EXPLICIT)) {
+            return entry.trie;
+        }
+        return null;
+    }
+
+    /**
+     * Remove all tries
+     */
+    public void clear() {
+        for (Map.Entry<String, Entry> entry : map.entrySet()) {
+            removeEntry(entry.getKey(), entry.getValue(), RemovalCause.EXPLICIT);
+        }
+    }
+
+    /**
+     * Remove all expired entries. Expired entries are also removed when read,
+     * so calling this method is only needed to release memory of entries that
+     * are no longer read.
+     */
+    public void cleanUp() {
+        if (timeToLiveNanos == 0 && idleTimeoutNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<String, Entry> entry : map.entrySet()) {
+            if (isExpired(entry.getValue(), now)) {
+                removeEntry(entry.getKey(), entry.getValue(), RemovalCause.EXPIRED);
+            }
+        }
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return total weight of entries, in unit of capacity
+     */
+    public long weight() {
+        synchronized (lock) {
+            return weight;
+        }
+    }
+
+    /**
+     * @return maximum total weight of entries
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Evict entries, oldest first, until within capacity. Entries read since
+     * last considered get a second chance. Caller holds lock.
+     */
+    private void evict(List<Entry> removed, List<RemovalCause> causes) {
+        Iterator<Entry> iter = queue.values().iterator();
+        List<Entry> secondChance = new ArrayList<>();
+
+        while (weight > capacity) {
+            if (!iter.hasNext()) {
+                // every entry was read; go around once more, in the same order
+                for (Entry entry : secondChance) {
+                    queue.put(entry.apiKey, entry);
+                }
+                secondChance.clear();
+                iter = queue.values().iterator();
+            }
+            Entry entry = iter.next();
+            iter.remove();
+            if (entry.referenced) {
+                entry.referenced = false;
+                secondChance.add(entry);
+            } else {
+                map.remove(entry.apiKey, entry);
+                weight -= entry.weight;
+                removed.add(entry);
+                causes.add(RemovalCause.SIZE);
+            }
+        }
+
+        // back of the queue
+        for (Entry entry : secondChance) {
+            queue.put(entry.apiKey, entry);
+        }
+    }
+
+    /**
+     * Remove entry, if it is still the one of apiKey
+     *
+     * @return true if removed
+     */
+    private boolean removeEntry(String apiKey, Entry entry, RemovalCause cause) {
+        synchronized (lock) {
+            if (!map.remove(apiKey, entry)) {
+                return false;
+            }
+            queue.remove(apiKey);
+            weight -= entry.weight;
+        }
+        notifyListener(entry, cause);
+        return true;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return (timeToLiveNanos != 0 && now - entry.createdNanos > timeToLiveNanos)
+                || (idleTimeoutNanos != 0 && now - entry.accessNanos > idleTimeoutNanos);
+    }
+
+    private void notifyListeners(List<Entry> removed, List<RemovalCause> causes) {
+        for (int i = 0; i < removed.size(); i++) {
+            notifyListener(removed.get(i), causes.get(i));
+        }
+    }
+
+    private void notifyListener(Entry entry, RemovalCause cause) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("removed trie of apiKey %s: %s",
+                    entry.apiKey, cause));
+        }
+        for (EvictionListener listener : listeners) {
+            try {
+                listener.onRemoval(entry.apiKey, entry.trie, cause);
+            } catch (RuntimeException e) {
+                logger.error("Exception occured in eviction listener : "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param idleTimeout idle timeout, in nanoseconds
+     * @return how stale the time of the last read of an entry may get
+     */
+    private static long accessTick(long idleTimeout) {
+        return Math.min(idleTimeout >>> 4, TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Trie of one apiKey, with its weight and times
+     */
+    private static final class Entry {
+        final String apiKey;
+        final CompiledTrie trie;
+        final long weight;
+        final long createdNanos;
+
+        // last read, to within accessTick(); only kept up to date if entries
+        // expire when idle
+        volatile long accessNanos;
+
+        // read since last considered for eviction
+        volatile boolean referenced = false;
+
+        Entry(String apiKey, CompiledTrie trie, long weight, long now) {
+            this.apiKey = apiKey;
+            this.trie = trie;
+            this.weight = weight;
+            this.createdNanos = now;
+            this.accessNanos = now;
+        }
+    }
+}
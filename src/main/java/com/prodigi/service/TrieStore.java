@@ -0,0 +1,43 @@
+package com.prodigi.service;
+
+import java.io.IOException;
+
+/**
+ * Byte-oriented store for encoded tries, used as second tier of
+ * TieredTrieCache. Typical implementations wrap memcached or Redis.
+ *
+ * Implementations must be safe to call from many threads.
+ *
+ * @author Wilkin Cheung
+ * @see TieredTrieCache
+ * @see InMemoryTrieStore
+ * @see FileTrieStore
+ */
+public interface TrieStore {
+
+    /**
+     * Read encoded trie of apiKey
+     *
+     * @param apiKey apiKey
+     * @return encoded trie; null if not found
+     * @throws IOException if store cannot be read
+     */
+    byte[] get(String apiKey) throws IOException;
+
+    /**
+     * Write encoded trie of apiKey, replacing previous one
+     *
+     * @param apiKey apiKey
+     * @param bytes  encoded trie
+     * @throws IOException if store cannot be written
+     */
+    void put(String apiKey, byte[] bytes) throws IOException;
+
+    /**
+     * Remove encoded trie of apiKey, if any
+     *
+     * @param apiKey apiKey
+     * @throws IOException if store cannot be written
+     */
+    void remove(String apiKey) throws IOException;
+}
@@ -0,0 +1,328 @@
+package com.prodigi.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.prodigi.object.CompiledTrie;
+import com.prodigi.object.TrieBuilder;
+
+/**
+ * Builds the tries of many apiKeys at once, for example at startup, and puts
+ * each one in a TrieRegistry as soon as it is built.
+ *
+ * Tries are built concurrently on a bounded ForkJoinPool, and each trie is
+ * itself built in parallel by TrieBuilder on the same pool. ApiKeys start in
+ * the iteration order of the map, so a LinkedHashMap ordered by traffic warms
+ * the busiest apiKeys first. The service can take traffic for an apiKey as
+ * soon as its trie is in the registry, without waiting for the others.
+ *
+ * For example:
+ * <code>
+ *   Map&lt;String, TrieWarmer.TemplateSource&gt; sources = new LinkedHashMap&lt;&gt;();
+ *   for (String apiKey : apiKeyDao.findAllByTraffic()) {
+ *       sources.put(apiKey, () -&gt; templateDao.findByApiKey(apiKey));
+ *   }
+ *   TrieWarmer.Warmup warmup = new TrieWarmer(registry).warm(sources);
+ *   ...
+ *   warmup.await(5, TimeUnit.MINUTES);
+ * </code>
+ *
+ * A failed apiKey does not stop the others. Failures and build time of each
+ * apiKey are kept in the returned Warmup, and reported to listeners. An
+ * Error, such as OutOfMemoryError, also counts as a failure, so the Warmup
+ * still completes; it is then rethrown.
+ *
+ * A TrieWarmer that made its own pool shuts it down on <code>close()</code>.
+ *
+ * @author Wilkin Cheung
+ */
+public class TrieWarmer implements AutoCloseable {
+
+    private static Logger logger = Logger.getLogger(TrieWarmer.class);
+
+    /**
+     * Templates of one apiKey
+     */
+    @FunctionalInterface
+    public interface TemplateSource {
+
+        /**
+         * Read templates
+         *
+         * @return templates of apiKey; never null
+         * @throws Exception if templates cannot be read
+         */
+        Iterable<String> templates() throws Exception;
+    }
+
+    /**
+     * Told about each apiKey as it finishes. Called on the thread that built
+     * the trie.
+     */
+    public interface Listener {
+
+        /**
+         * Called after trie of apiKey is built and put in registry
+         *
+         * @param apiKey     apiKey
+         * @param buildNanos time to read templates and build trie
+         * @param warmup     progress so far
+         */
+        void onBuilt(String apiKey, long buildNanos, Warmup warmup);
+
+        /**
+         * Called after trie of apiKey failed to build
+         *
+         * @param apiKey apiKey
+         * @param cause  exception thrown by TemplateSource or TrieBuilder; an
+         *               Error is wrapped in an ExecutionException
+         * @param warmup progress so far
+         */
+        void onFailed(String apiKey, Exception cause, Warmup warmup);
+    }
+
+    // receives built tries
+    private final TrieRegistry registry;
+
+    // builds tries
+    private final ForkJoinPool pool;
+
+    // pool was made by this TrieWarmer, and is shut down by close()?
+    private final boolean ownsPool;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor. Tries are built on a new ForkJoinPool with one thread per
+     * available processor, shut down by <code>close()</code>.
+     *
+     * @param registry receives built tries
+     */
+    public TrieWarmer(TrieRegistry registry) {
+        this(registry, new ForkJoinPool(Runtime.getRuntime().availableProcessors()), true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param registry receives built tries
+     * @param pool     builds tries; its parallelism bounds concurrent builds
+     */
+    public TrieWarmer(TrieRegistry registry, ForkJoinPool pool) {
+        this(registry, pool, false);
+    }
+
+    private TrieWarmer(TrieRegistry registry, ForkJoinPool pool, boolean ownsPool) {
+        this.registry = registry;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Add a listener for finished apiKeys
+     *
+     * @param listener listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Start building tries of all apiKeys. Returns right away.
+     *
+     * @param sources templates of each apiKey
+     * @return progress of builds
+     */
+    public Warmup warm(Map<String, ? extends TemplateSource> sources) {
+        final Warmup warmup = new Warmup(sources.size());
+        if (sources.isEmpty()) {
+            warmup.future.complete(warmup);
+        }
+        for (Map.Entry<String, ? extends TemplateSource> entry : sources.entrySet()) {
+            final String apiKey = entry.getKey();
+            final TemplateSource source = entry.getValue();
+            pool.execute(() -> build(apiKey, source, warmup));
+        }
+        return warmup;
+    }
+
+    /**
+     * Shut down the pool, if this TrieWarmer made it. Builds already started
+     * still finish; no more can be started. A pool passed to the constructor
+     * is left to its owner.
+     */
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Build trie, put it in registry, and record outcome. The apiKey counts
+     * as finished whatever happens, so the Warmup always completes.
+     */
+    private void build(String apiKey, TemplateSource source, Warmup warmup) {
+        long start = System.nanoTime();
+        try {
+            try {
+                CompiledTrie trie = TrieBuilder.build(source.templates(), pool).compile();
+                registry.put(apiKey, trie);
+            } catch (Exception e) {
+                failed(apiKey, e, warmup);
+                return;
+            } catch (Error e) {
+                // for example OutOfMemoryError or StackOverflowError
+                failed(apiKey, new ExecutionException(e), warmup);
+                throw e;
+            }
+
+            long buildNanos = System.nanoTime() - start;
+            warmup.buildNanos.put(apiKey, buildNanos);
+            warmup.built.incrementAndGet();
+            for (Listener listener : listeners) {
+                try {
+                    listener.onBuilt(apiKey, buildNanos, warmup);
+                } catch (RuntimeException e) {
+                    logger.error("Exception occured in warmup listener : " + e.getMessage());
+                }
+            }
+        } finally {
+            if (warmup.finished.incrementAndGet() == warmup.total) {
+                logger.info(String.format("warmed up tries of %d apiKeys: %d built, %d failed, in %d ms",
+                        warmup.total, warmup.built(), warmup.failed(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmup.startNanos)));
+                warmup.future.complete(warmup);
+            }
+        }
+    }
+
+    /**
+     * Record failure of apiKey, and tell listeners
+     */
+    private void failed(String apiKey, Exception cause, Warmup warmup) {
+        warmup.failures.put(apiKey, cause);
+        warmup.failed.incrementAndGet();
+        logger.error(String.format("Exception occured while building trie of apiKey %s : %s",
+                apiKey, cause.getMessage()));
+        for (Listener listener : listeners) {
+            try {
+                listener.onFailed(apiKey, cause, warmup);
+            } catch (RuntimeException e) {
+                logger.error("Exception occured in warmup listener : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Progress of one call to <code>warm()</code>. Safe to read while builds
+     * are in progress.
+     */
+    public static final class Warmup {
+        private final int total;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger built = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        // built or failed; the last one completes future
+        private final AtomicInteger finished = new AtomicInteger();
+        private final Map<String, Long> buildNanos = new ConcurrentHashMap<>();
+        private final Map<String, Exception> failures = new ConcurrentHashMap<>();
+        private final CompletableFuture<Warmup> future = new CompletableFuture<>();
+
+        Warmup(int total) {
+            this.total = total;
+        }
+
+        /**
+         * @return number of apiKeys to build
+         */
+        public int total() {
+            return total;
+        }
+
+        /**
+         * @return number of tries built and put in registry so far
+         */
+        public int built() {
+            return built.get();
+        }
+
+        /**
+         * @return number of apiKeys failed so far
+         */
+        public int failed() {
+            return failed.get();
+        }
+
+        /**
+         * @return true if every apiKey is built or failed
+         */
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /**
+         * @return build time of each apiKey built so far, in nanoseconds
+         */
+        public Map<String, Long> buildNanos() {
+            return Collections.unmodifiableMap(buildNanos);
+        }
+
+        /**
+         * @return exception of each apiKey failed so far; an Error is wrapped
+         *         in an ExecutionException
+         */
+        public Map<String, Exception> failures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * @return future completed when every apiKey is built or failed; never
+         *         completed exceptionally
+         */
+        public CompletableFuture<Warmup> future() {
+            return future;
+        }
+
+        /**
+         * Wait until every apiKey is built or failed
+         *
+         * @param timeout  maximum time to wait
+         * @param timeUnit unit of timeout
+         * @return true if done; false if timed out
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public boolean await(long timeout, TimeUnit timeUnit) throws InterruptedException {
+            try {
+                future.get(timeout, timeUnit);
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException e) {
+                // never completed exceptionally
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format("Warmup [built=%d, failed=%d, total=%d]",
+                    built(), failed(), total);
+        }
+    }
+}
@@ -2,11 +2,12 @@ package com.prodigi.service;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -27,6 +28,90 @@ public class UriTemplateValidator {
 
     private static Logger logger = Logger.getLogger(UriTemplateValidator.class);
 
+    // compiled templates kept, unless set otherwise
+    public static final int DEFAULT_CACHE_CAPACITY = 1024;
+
+    // compiled templates, by uriTemplate as given
+    private final ConcurrentHashMap<String, UriTemplate> templates;
+
+    // maximum number of compiled templates kept
+    private final int cacheCapacity;
+
+    /**
+     * Constructor. Keeps up to DEFAULT_CACHE_CAPACITY compiled templates.
+     */
+    public UriTemplateValidator() {
+        this(DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cacheCapacity maximum number of compiled templates kept; 0 to
+     *                      compile on every call
+     */
+    public UriTemplateValidator(int cacheCapacity) {
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("cacheCapacity cannot be negative");
+        }
+        this.cacheCapacity = cacheCapacity;
+        this.templates = new ConcurrentHashMap<>(Math.min(cacheCapacity, 1024));
+    }
+
+    /**
+     * Compile uriTemplate, or take the compiled copy from cache. Host and
+     * port are removed first. Callers that match against the same template
+     * many times can hold on to the returned UriTemplate, which is immutable
+     * and safe to share across threads.
+     *
+     * For example:
+     * <code>
+     *   UriTemplate template = uriTemplateValidator.compile("http://prodigi.com/image/{imageId}");
+     *   template.match("/image/123.jpg");
+     * </code>
+     * ...returns {imageId=123.jpg}
+     *
+     * Lookups take no lock. When the cache is full, arbitrary templates are
+     * dropped to make room.
+     *
+     * @param uriTemplate uriTemplate
+     * @return compiled uriTemplate
+     */
+    public UriTemplate compile(String uriTemplate) {
+        UriTemplate compiled = templates.get(uriTemplate);
+        if (compiled != null) {
+            return compiled;
+        }
+        compiled = new UriTemplate(removeHttpHostAndPort(uriTemplate));
+        if (cacheCapacity > 0) {
+            Iterator<String> iter = templates.keySet().iterator();
+            while (templates.size() >= cacheCapacity && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+            // another thread may have compiled it meanwhile; keep one copy
+            UriTemplate previous = templates.putIfAbsent(uriTemplate, compiled);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * @return number of compiled templates in cache
+     */
+    public int getCacheSize() {
+        return templates.size();
+    }
+
+    /**
+     * Drop all compiled templates from cache
+     */
+    public void clearCache() {
+        templates.clear();
+    }
+
     /**
      * Check if uri matches uriTemplate
      * <p/>
@@ -48,8 +133,7 @@ public class UriTemplateValidator {
      * @return true if there is url matches one or more uriTemplate; false otherwise.
      */
     public Map<String, String> matches(String uri, String uriTemplate) {
-        return new UriTemplate(removeHttpHostAndPort(uriTemplate))
-                .match(removeHttpHostAndPort(uri));
+        return compile(uriTemplate).match(removeHttpHostAndPort(uri));
     }
 
     /**
@@ -69,8 +153,7 @@ public class UriTemplateValidator {
      * @return true if there is url matches one or more uriTemplate; false otherwise.
      */
     public boolean isMatch(String uri, String uriTemplate) {
-        return (new UriTemplate(removeHttpHostAndPort(uriTemplate)).match(uri)
-                .size() > 0)
+        return (compile(uriTemplate).match(uri).size() > 0)
                 || (matchesDirectly(removeHttpHostAndPort(uri),
                 removeHttpHostAndPort(uriTemplate)));
     }
@@ -104,13 +187,7 @@ public class UriTemplateValidator {
      * @return remaining portion of
      */
     public String removeHttpHostAndPort(String original) {
-        Pattern pattern = Pattern.compile("^https?://(.*?)\\/(.*)$");
-        Matcher matcher = pattern.matcher(original);
-
-        if (matcher.find()) {
-            return matcher.group(2);
-        }
-        return original;
+        return original.substring(UrlScanner.pathAfterAuthority(original));
     }
 
     /**
@@ -119,7 +196,7 @@ public class UriTemplateValidator {
     public static class UriTemplate implements Serializable {
 
         // required for (de-)serialization
-        protected static final long serialVersionUID = 1L;
+        protected static final long serialVersionUID = 2L;
 
         /**
          * uriTemplate as String
@@ -132,18 +209,29 @@ public class UriTemplateValidator {
         private final List<String> keys;
 
         /**
-         * Pattern
+         * Compiled matcher
          */
-        private final Pattern pattern;
+        private final LevelOneMatcher matcher;
 
         /**
-         * UriTemplate for internal parsing to regular expression
+         * UriTemplate for internal parsing to compiled matcher
          *
          * @param uriTemplate uriTemplate to be parsed
          */
         public UriTemplate(String uriTemplate) {
+            this(uriTemplate, LevelOneMatcher.DEFAULT_WORK_BUDGET);
+        }
+
+        /**
+         * UriTemplate for internal parsing to compiled matcher
+         *
+         * @param uriTemplate uriTemplate to be parsed
+         * @param workBudget  maximum work allowed for one match
+         * @see LevelOneMatcher
+         */
+        public UriTemplate(String uriTemplate, int workBudget) {
             LevelOneParser parser = new LevelOneParser(uriTemplate);
-            this.pattern = parser.getPattern();
+            this.matcher = new LevelOneMatcher(parser.getLiterals(), workBudget);
             this.uriTemplate = uriTemplate;
             this.keys = parser.getKeyNames();
         }
@@ -169,13 +257,13 @@ public class UriTemplateValidator {
             Map<String, String> result =
                     new LinkedHashMap<>(keys.size());
 
-            Matcher matcher = pattern.matcher(uri);
+            int[] offsets = new int[2 * keys.size()];
 
-            // find next part in uri that matches the pattern
-            if (matcher.find()) {
-                for (int i = 0; i < matcher.groupCount(); i++) {
+            // find next part in uri that matches the template
+            if (matcher.match(uri, 0, uri.length(), offsets, null)) {
+                for (int i = 0; i < keys.size(); i++) {
                     String name = keys.get(i);
-                    String value = matcher.group(i + 1);
+                    String value = uri.substring(offsets[2 * i], offsets[2 * i + 1]);
                     result.put(name, value);
                 }
             }
@@ -189,7 +277,68 @@ public class UriTemplateValidator {
          * @return true if there is one or more matches; false otherwise
          */
         public boolean matches(String uri) {
-            return match(uri).size() > 0;
+            return matcher.matches(uri, 0, uri.length());
+        }
+
+        /**
+         * See if a region of input matches the pattern, without capturing
+         * variable values. Nothing is allocated.
+         *
+         * @param s      input
+         * @param start  index of first character of region
+         * @param end    index after last character of region
+         * @param filter check for each variable value; may be null
+         * @return true if there is a match and filter accepts all variable
+         *         values; false otherwise
+         */
+        public boolean matches(CharSequence s, int start, int end,
+                               VariableFilter filter) {
+            return matcher.matches(s, start, end, filter);
+        }
+
+        /**
+         * Match a region of input, and capture start and end index of each
+         * variable value into offsets, starting at index base. Nothing is
+         * allocated.
+         *
+         * @param s       input
+         * @param start   index of first character of region
+         * @param end     index after last character of region
+         * @param offsets receives start and end index of each variable value
+         * @param base    index of offsets where first variable goes
+         * @param filter  check for each variable value; may be null
+         * @return true if there is a match and filter accepts all variable
+         *         values; false otherwise
+         * @see LevelOneMatcher#match(CharSequence, int, int, int[], int, VariableFilter)
+         */
+        public boolean match(CharSequence s, int start, int end, int[] offsets,
+                             int base, VariableFilter filter) {
+            return matcher.match(s, start, end, offsets, base, filter);
+        }
+
+        /**
+         * Check if this template is a single variable and nothing else, for
+         * example "{id}". Such template matches any input as-is.
+         *
+         * @return true if template is exactly one {keyName}; false otherwise
+         */
+        public boolean isSingleVariable() {
+            return keys.size() == 1
+                    && uriTemplate.length() == keys.get(0).length() + 2;
+        }
+
+        /**
+         * @return ordered key names
+         */
+        public List<String> getKeyNames() {
+            return Collections.unmodifiableList(keys);
+        }
+
+        /**
+         * @return compiled matcher of this template
+         */
+        public LevelOneMatcher getMatcher() {
+            return matcher;
         }
 
         /**
@@ -203,22 +352,16 @@ public class UriTemplateValidator {
     }
 
     /**
-     * Inner class for parsing RFE 6570 Level 1 Template into a RegEx.
+     * Inner class for parsing RFE 6570 Level 1 Template into literals and
+     * key names, for LevelOneMatcher.
      */
     public static class LevelOneParser implements Serializable {
 
         // required for (de-)serialization
-        protected static final long serialVersionUID = 1L;
-
-        // For each pattern {keyName} replaces it with (.*)
-        private static final Pattern LEVEL_ONE_PATTERN = Pattern
-                .compile("\\{([^/]+?)\\}");
-
-        // Replaces each {keyName} with (.*)
-        private static final String REPLACES_WITH = "(.*)";
+        protected static final long serialVersionUID = 2L;
 
-        // pattern builder
-        private StringBuilder patternBuilder = new StringBuilder();
+        // List of literals around {keyName}
+        private List<String> literals = new ArrayList<String>();
 
         // List of key names
         private List<String> keyNames = new ArrayList<String>();
@@ -229,37 +372,52 @@ public class UriTemplateValidator {
          * @param uriTemplate uriTemplate to be parsed
          */
         private LevelOneParser(String uriTemplate) {
-            Matcher m = LEVEL_ONE_PATTERN.matcher(uriTemplate);
-            int start;
-            int end = 0;
-
-            // In each loop, find next pattern in URI that is "{keyName}"
-            // If found, then add "keyName" to keyNames, and append the substring to
-            // patternBuilder.
-            while (m.find()) {
-
-                // move start pointer to last match
-                start = m.start();
-
-                // Mark the pattern as escaped
-                String escaped = Pattern.quote(uriTemplate.substring(end, start));
+            int literalStart = 0;
+            int i = 0;
+
+            // In each loop, find next "{keyName}" in URI. keyName is one or more
+            // characters except '/', up to the first '}' after that.
+            // If found, then add "keyName" to keyNames, and the substring before it
+            // to literals.
+            while (i < uriTemplate.length()) {
+                int close = (uriTemplate.charAt(i) == '{')
+                        ? findClosingBrace(uriTemplate, i) : -1;
+
+                if (close == -1) {
+                    i++;
+                    continue;
+                }
 
-                patternBuilder.append(escaped);
+                literals.add(uriTemplate.substring(literalStart, i));
+                keyNames.add(uriTemplate.substring(i + 1, close));
 
-                patternBuilder.append(REPLACES_WITH);
+                // move pointers to the end of matched string
+                i = close + 1;
+                literalStart = i;
+            }
 
-                // save the previously matched sequence (that is, keyName)
-                // group(1) means the substring within (.*)
-                keyNames.add(m.group(1));
+            literals.add(uriTemplate.substring(literalStart));
+        }
 
-                // move end pointer to the end of matched string
-                end = m.end();
+        /**
+         * Find '}' that closes '{' at index open
+         *
+         * @param uriTemplate uriTemplate
+         * @param open        index of '{'
+         * @return index of '}'; -1 if no keyName starts at open
+         */
+        private static int findClosingBrace(String uriTemplate, int open) {
+            for (int j = open + 1; j < uriTemplate.length(); j++) {
+                char c = uriTemplate.charAt(j);
+                if (c == '/') {
+                    return -1;
+                }
+                // keyName has at least one character
+                if (c == '}' && j > open + 1) {
+                    return j;
+                }
             }
-
-            // Mark the pattern as escaped
-            patternBuilder.append(Pattern.quote(uriTemplate.substring(end,
-                    uriTemplate
-                            .length())));
+            return -1;
         }
 
         /**
@@ -272,12 +430,13 @@ public class UriTemplateValidator {
         }
 
         /**
-         * Get match pattern
+         * Return List of literals around keyNames. There is always one more
+         * literal than keyNames.
          *
-         * @return compiled pattern
+         * @return literals as List
          */
-        Pattern getPattern() {
-            return Pattern.compile(patternBuilder.toString());
+        List<String> getLiterals() {
+            return literals;
         }
     }
 }
@@ -0,0 +1,315 @@
+package com.prodigi.service;
+
+/**
+ * Hand-written scanner that finds the parts of a url, as offsets, without
+ * regex and without creating substrings. Follows the generic syntax of
+ * RFC 3986:
+ * <code>
+ *   scheme://userinfo@host:port/path?query#fragment
+ * </code>
+ * Every part is optional. Host may be an IPv6 literal in brackets, such as
+ * [::1]. A url may be only a path, such as /image/123.jpg, and a path may be
+ * empty, such as in http://prodigi.com?q=1.
+ *
+ * A UrlScanner is reusable, but not thread-safe. For example:
+ * <code>
+ *   UrlScanner scanner = new UrlScanner();
+ *   scanner.scan("http://user@[::1]:8080/image/123.jpg?size=2#top");
+ *   url.subSequence(scanner.hostStart(), scanner.hostEnd());
+ * </code>
+ * ...returns [::1]
+ *
+ * End offsets are exclusive. Start and end of a missing part are both -1.
+ * Delimiters (://, @, :, ?, #) are not part of any part, except the slash
+ * that starts a path.
+ *
+ * @author Wilkin Cheung
+ * @see http://tools.ietf.org/html/rfc3986#section-3
+ */
+public final class UrlScanner {
+
+    private CharSequence url;
+    private int schemeEnd;
+    private int authorityStart;
+    private int authorityEnd;
+    private int userInfoEnd;
+    private int hostStart;
+    private int hostEnd;
+    private int portStart;
+    private int pathStart;
+    private int pathEnd;
+    private int queryStart;
+    private int queryEnd;
+    private int fragmentStart;
+
+    /**
+     * Find the parts of url
+     *
+     * @param url url, or path only
+     * @return this scanner, for chaining
+     */
+    public UrlScanner scan(CharSequence url) {
+        this.url = url;
+        int length = url.length();
+
+        schemeEnd = schemeEnd(url);
+        int index = (schemeEnd == -1) ? 0 : schemeEnd + 1;
+
+        // authority begins with //, and ends at the first / ? or #
+        if (startsWithSlashSlash(url, index)) {
+            authorityStart = index + 2;
+            authorityEnd = authorityEnd(url, authorityStart);
+            scanAuthority();
+            index = authorityEnd;
+        } else {
+            authorityStart = authorityEnd = -1;
+            userInfoEnd = hostStart = hostEnd = portStart = -1;
+        }
+
+        pathStart = index;
+        while (index < length && url.charAt(index) != '?' && url.charAt(index) != '#') {
+            index++;
+        }
+        pathEnd = index;
+
+        if (index < length && url.charAt(index) == '?') {
+            queryStart = ++index;
+            while (index < length && url.charAt(index) != '#') {
+                index++;
+            }
+            queryEnd = index;
+        } else {
+            queryStart = queryEnd = -1;
+        }
+
+        fragmentStart = (index < length) ? index + 1 : -1;
+        return this;
+    }
+
+    /**
+     * Index of the path of url relative to host, that is, after scheme,
+     * authority and the slash that follows. This is what PatternMatchingTrie
+     * walks down the Trie. For example, 10 for http://a/b/c, that is, b/c.
+     *
+     * Same as scanning, but stops once the authority is found. Only a url
+     * with both scheme and authority has its host removed; a url that is only
+     * a path, such as /b/c, is walked as it is.
+     *
+     * @param url url, or path only
+     * @return index after authority and slash; 0 if url has no scheme or no
+     *         authority
+     */
+    public static int pathAfterAuthority(CharSequence url) {
+        int schemeEnd = schemeEnd(url);
+        if (schemeEnd == -1 || !startsWithSlashSlash(url, schemeEnd + 1)) {
+            return 0;
+        }
+        int end = authorityEnd(url, schemeEnd + 3);
+        return (end < url.length() && url.charAt(end) == '/') ? end + 1 : end;
+    }
+
+    /**
+     * Find scheme: a letter, then letters, digits, + - or ., then a colon
+     *
+     * @return index of colon after scheme; -1 if no scheme
+     */
+    private static int schemeEnd(CharSequence url) {
+        int length = url.length();
+        if (length == 0 || !isAlpha(url.charAt(0))) {
+            return -1;
+        }
+        for (int i = 1; i < length; i++) {
+            char c = url.charAt(i);
+            if (c == ':') {
+                return i;
+            }
+            if (!isAlpha(c) && !(c >= '0' && c <= '9') && c != '+' && c != '-' && c != '.') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int authorityEnd(CharSequence url, int start) {
+        int index = start;
+        int length = url.length();
+        while (index < length) {
+            char c = url.charAt(index);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Split authority into userinfo, host and port
+     */
+    private void scanAuthority() {
+        // userinfo ends at the last @; it cannot contain one unencoded
+        userInfoEnd = -1;
+        for (int i = authorityEnd - 1; i >= authorityStart; i--) {
+            if (url.charAt(i) == '@') {
+                userInfoEnd = i;
+                break;
+            }
+        }
+
+        hostStart = (userInfoEnd == -1) ? authorityStart : userInfoEnd + 1;
+        int index = hostStart;
+        if (index < authorityEnd && url.charAt(index) == '[') {
+            // IPv6 literal; colons inside brackets are not a port
+            while (index < authorityEnd && url.charAt(index) != ']') {
+                index++;
+            }
+            if (index < authorityEnd) {
+                index++;
+            }
+        } else {
+            while (index < authorityEnd && url.charAt(index) != ':') {
+                index++;
+            }
+        }
+        hostEnd = index;
+        portStart = (index < authorityEnd && url.charAt(index) == ':') ? index + 1 : -1;
+    }
+
+    private static boolean startsWithSlashSlash(CharSequence url, int index) {
+        return index + 1 < url.length() && url.charAt(index) == '/'
+                && url.charAt(index + 1) == '/';
+    }
+
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * @return index of first character of scheme; -1 if none
+     */
+    public int schemeStart() {
+        return (schemeEnd == -1) ? -1 : 0;
+    }
+
+    /**
+     * @return index after scheme, that is, of colon; -1 if none
+     */
+    public int schemeEnd() {
+        return schemeEnd;
+    }
+
+    /**
+     * @return index of first character of authority; -1 if none
+     */
+    public int authorityStart() {
+        return authorityStart;
+    }
+
+    /**
+     * @return index after authority; -1 if none
+     */
+    public int authorityEnd() {
+        return authorityEnd;
+    }
+
+    /**
+     * @return index of first character of userinfo; -1 if none
+     */
+    public int userInfoStart() {
+        return (userInfoEnd == -1) ? -1 : authorityStart;
+    }
+
+    /**
+     * @return index after userinfo, that is, of @; -1 if none
+     */
+    public int userInfoEnd() {
+        return userInfoEnd;
+    }
+
+    /**
+     * @return index of first character of host, or of [ for IPv6; -1 if no
+     *         authority
+     */
+    public int hostStart() {
+        return hostStart;
+    }
+
+    /**
+     * @return index after host, or after ] for IPv6; -1 if no authority
+     */
+    public int hostEnd() {
+        return hostEnd;
+    }
+
+    /**
+     * @return index of first character of port; -1 if none
+     */
+    public int portStart() {
+        return portStart;
+    }
+
+    /**
+     * @return index after port; -1 if none
+     */
+    public int portEnd() {
+        return (portStart == -1) ? -1 : authorityEnd;
+    }
+
+    /**
+     * @return index of first character of path, which may be empty; never -1
+     */
+    public int pathStart() {
+        return pathStart;
+    }
+
+    /**
+     * @return index after path
+     */
+    public int pathEnd() {
+        return pathEnd;
+    }
+
+    /**
+     * @return index of first character of query; -1 if none
+     */
+    public int queryStart() {
+        return queryStart;
+    }
+
+    /**
+     * @return index after query; -1 if none
+     */
+    public int queryEnd() {
+        return queryEnd;
+    }
+
+    /**
+     * @return index of first character of fragment; -1 if none
+     */
+    public int fragmentStart() {
+        return fragmentStart;
+    }
+
+    /**
+     * @return index after fragment; -1 if none
+     */
+    public int fragmentEnd() {
+        return (fragmentStart == -1) ? -1 : url.length();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("UrlScanner [scheme=%s, userInfo=%s, host=%s, port=%s, path=%s, query=%s, fragment=%s]",
+                part(schemeStart(), schemeEnd), part(userInfoStart(), userInfoEnd),
+                part(hostStart, hostEnd), part(portStart, portEnd()), part(pathStart, pathEnd),
+                part(queryStart, queryEnd), part(fragmentStart, fragmentEnd()));
+    }
+
+    private String part(int start, int end) {
+        return (start == -1) ? null : url.subSequence(start, end).toString();
+    }
+}
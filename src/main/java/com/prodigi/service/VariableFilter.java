@@ -0,0 +1,23 @@
+package com.prodigi.service;
+
+/**
+ * Check applied to each variable value while a template is being matched.
+ * If the filter rejects any value, then the template does not match.
+ *
+ * The value is passed as a region of the input, so no substring is created.
+ *
+ * @author Wilkin Cheung
+ */
+public interface VariableFilter {
+
+    /**
+     * Accept or reject one variable value
+     *
+     * @param index index of variable in template, from left to right
+     * @param s     input being matched
+     * @param start index of first character of value
+     * @param end   index after last character of value
+     * @return true if value is acceptable; false otherwise
+     */
+    boolean accept(int index, CharSequence s, int start, int end);
+}
@@ -1,14 +1,50 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.prodigi.exception.TrieException;
+import com.prodigi.object.CompiledTrie;
+import com.prodigi.object.MappedTrie;
+import com.prodigi.object.MatchListener;
+import com.prodigi.object.MatchMetrics;
+import com.prodigi.object.MatchResult;
 import com.prodigi.object.Node;
 import com.prodigi.object.PatternMatchingTrie;
+import com.prodigi.object.PrefixFilter;
+import com.prodigi.object.ResultCache;
+import com.prodigi.object.RoutingTrie;
+import com.prodigi.object.SlowMatchTracer;
+import com.prodigi.object.TrieBuilder;
+import com.prodigi.object.TrieCodec;
+import com.prodigi.service.CharPolicy;
+import com.prodigi.service.TemplateFileLoader;
 import org.junit.Test;
 
 public class PatternMatchingTrieTest {
@@ -370,6 +406,738 @@ public class PatternMatchingTrieTest {
         matches(tree, "http://prodigisoftware.com/{namespace}?key=value&key={id}");
     }
 
+    @Test
+    public void string_buffer_url() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}");
+        tree.addTemplate("http://prodigi.com/image/{id}.png/info");
+
+        assertTrue(tree.matches(new StringBuffer("http://prodigi.com:8080/image/123.jpg")));
+        assertTrue(tree.matches(new StringBuilder("http://prodigi.com/image/123.png/info")));
+        assertFalse(tree.matches(new StringBuffer("http://prodigi.com/image/1<3.jpg")));
+        assertFalse(tree.matches(new StringBuffer("http://prodigi.com/image/123.jpg/info")));
+    }
+
+    @Test
+    public void single_segment_template() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        notMatches(tree, "http://prodigi.com/image");
+
+        tree.addTemplate("http://prodigi.com/image");
+        matches(tree, "http://prodigi.com/image");
+        notMatches(tree, "http://prodigi.com/images");
+
+        // a url must reach a leaf: a url that stops at a parent node, or
+        // at root, matches nothing
+        tree.addTemplate("http://prodigi.com/video/{videoId}");
+        matches(tree, "http://prodigi.com/video/123");
+        notMatches(tree, "http://prodigi.com/video");
+        notMatches(tree, "http://prodigi.com/");
+        notMatches(tree, "http://prodigi.com");
+        assertFalse(tree.compile().matches("http://prodigi.com/video"));
+        assertFalse(tree.compile().matches("http://prodigi.com/"));
+    }
+
+    @Test
+    public void compiled_snapshot() throws InterruptedException {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}");
+
+        final CompiledTrie compiled = tree.compile();
+        tree.addTemplate("http://prodigi.com/video/{videoId}");
+
+        // snapshot does not see templates added afterwards
+        assertTrue(compiled.matches("http://prodigi.com/image/123.jpg"));
+        assertFalse(compiled.matches("http://prodigi.com/video/123.mp4"));
+        matches(tree, "http://prodigi.com/video/123.mp4");
+
+        // many threads share one snapshot
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        if (!compiled.matches("http://prodigi.com/image/" + j)
+                                || compiled.matches("http://prodigi.com/image/" + j + "/x")) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    public void snapshot_published_by_each_change() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}");
+        CompiledTrie first = tree.compile();
+        assertTrue(first == tree.compile());
+
+        // a batch of siblings, compiled once
+        List<String> templates = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            templates.add("http://prodigi.com/browse/folder" + i);
+        }
+        long start = System.nanoTime();
+        tree.addTemplates(templates);
+        System.out.println("******Adding 20000 sibling templates takes "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        CompiledTrie second = tree.compile();
+        assertTrue(second != first);
+        assertTrue(second == tree.compile());
+
+        assertFalse(first.matches("http://prodigi.com/browse/folder0"));
+        matches(tree, "http://prodigi.com/browse/folder0");
+        matches(tree, "http://prodigi.com/browse/folder19999");
+
+        PatternMatchingTrie<Node> copy = new TrieCodec().decode(new TrieCodec().encode(tree));
+        matches(copy, "http://prodigi.com/image/123.jpg");
+        matches(copy, "http://prodigi.com/browse/folder7");
+    }
+
+    @Test
+    public void readers_do_not_wait_for_writer() throws InterruptedException {
+        final PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}");
+        final AtomicInteger matched = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (tree.matches("http://prodigi.com/image/1")
+                        && !tree.matches("http://prodigi.com/video/1")) {
+                    matched.incrementAndGet();
+                }
+            }
+        });
+
+        // a writer in the middle of a change holds the lock of tree
+        synchronized (tree) {
+            tree.addTemplate("http://prodigi.com/logo/{logoId}");
+            reader.start();
+            reader.join(TimeUnit.SECONDS.toMillis(10));
+            assertFalse(reader.isAlive());
+            matches(tree, "http://prodigi.com/logo/1");
+        }
+        assertEquals(1, matched.get());
+    }
+
+    @Test
+    public void many_literal_siblings() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        for (int i = 0; i < 500; i++) {
+            tree.addTemplate("http://prodigi.com/browse/folder" + i + "/items");
+        }
+        tree.addTemplate("http://prodigi.com/browse/{A}.{B}/items");
+
+        matches(tree, "http://prodigi.com/browse/folder0/items");
+        matches(tree, "http://prodigi.com/browse/folder499/items");
+        matches(tree, "http://prodigi.com/browse/folder.500/items");
+        notMatches(tree, "http://prodigi.com/browse/folder500/items");
+        notMatches(tree, "http://prodigi.com/browse/folder1/items/more");
+    }
+
+    @Test
+    public void match_result() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/human/v1/{type}/id/{id}.json");
+        tree.addTemplate("http://prodigi.com/human/v1/rec/id/{A}.{B}.xml");
+
+        MatchResult result = new MatchResult();
+        assertTrue(tree.match("http://prodigi.com:8080/human/v1/rec/id/123.json", result));
+        assertEquals("http://prodigi.com/human/v1/{type}/id/{id}.json", result.template());
+        assertEquals(2, result.variableCount());
+        assertEquals("rec", result.get("type"));
+        assertEquals("123", result.get("id"));
+
+        // same holder reused; literal "rec" tried first, then backtracked
+        assertTrue(tree.match(new StringBuilder("http://prodigi.com/human/v1/rec/id/1.2.3.xml"), result));
+        assertEquals("http://prodigi.com/human/v1/rec/id/{A}.{B}.xml", result.template());
+        assertEquals("{A=1.2, B=3}", result.toMap().toString());
+
+        assertFalse(tree.match("http://prodigi.com/human/v1/rec/id/123.png", result));
+        assertFalse(result.matched());
+        assertEquals(0, result.variableCount());
+    }
+
+    @Test
+    public void match_result_merged_and_literal_nodes() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{a}");
+        tree.addTemplate("http://prodigi.com/image/{b}");
+
+        // merged complete wildcards report the first template added
+        MatchResult result = new MatchResult();
+        assertTrue(tree.match("http://prodigi.com/image/123", result));
+        assertEquals("http://prodigi.com/image/{a}", result.template());
+        assertEquals("123", result.get("a"));
+        assertEquals(null, result.get("b"));
+
+        // segment equal to template is matched literally, variable not bound
+        assertTrue(tree.match("http://prodigi.com/image/{a}", result));
+        assertEquals(1, result.variableCount());
+        assertEquals(-1, result.start(0));
+        assertEquals(null, result.value(0));
+    }
+
+    @Test
+    public void routing_trie() {
+        RoutingTrie<String> router = new RoutingTrie<>();
+        router.addTemplate("http://prodigi.com/image/{imageId}", "image");
+        router.addTemplate("http://prodigi.com/image/{id}.png/info", "info");
+        router.addTemplate("http://prodigi.com/image/logo", "logo");
+
+        assertEquals("image", router.match("http://prodigi.com/image/123.jpg"));
+        assertEquals("logo", router.match("http://prodigi.com/image/logo"));
+        assertEquals(null, router.match("http://prodigi.com/video/123.mp4"));
+
+        MatchResult result = new MatchResult();
+        assertEquals("info", router.match("http://prodigi.com/image/123.png/info", result));
+        assertEquals("123", result.get("id"));
+
+        // adding same template again replaces value
+        router.addTemplate("http://prodigi.com/image/logo", "logo2");
+        assertEquals("logo2", router.match("http://prodigi.com/image/logo"));
+    }
+
+    @Test
+    public void remove_template() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}");
+        tree.addTemplate("http://prodigi.com/image/{id}/info");
+        tree.addTemplate("http://prodigi.com/video/{videoId}");
+        CompiledTrie before = tree.compile();
+
+        assertTrue(tree.removeTemplate("http://prodigi.com/video/{videoId}"));
+        assertFalse(tree.removeTemplate("http://prodigi.com/video/{videoId}"));
+        assertFalse(tree.removeTemplate("http://prodigi.com/audio/{audioId}"));
+        notMatches(tree, "http://prodigi.com/video/123.mp4");
+        matches(tree, "http://prodigi.com/image/123.jpg");
+        assertEquals(2, tree.getAllTemplate().size());
+
+        // snapshot taken before removal is unchanged
+        assertTrue(before.matches("http://prodigi.com/video/123.mp4"));
+
+        // leaf with children stays, no longer a leaf
+        assertTrue(tree.removeTemplate("http://prodigi.com/image/{imageId}"));
+        notMatches(tree, "http://prodigi.com/image/123.jpg");
+        matches(tree, "http://prodigi.com/image/123/info");
+
+        assertTrue(tree.removeTemplate("http://prodigi.com/image/{id}/info"));
+        assertEquals(0, tree.getAllTemplate().size());
+        notMatches(tree, "http://prodigi.com/image/123/info");
+    }
+
+    @Test
+    public void remove_template_unmerges_complete_wildcards() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{a}");
+        tree.addTemplate("http://prodigi.com/image/{b}");
+        tree.addTemplate("http://prodigi.com/user/{a}/photo");
+        tree.addTemplate("http://prodigi.com/user/{b}/album");
+
+        assertTrue(tree.removeTemplate("http://prodigi.com/image/{a}"));
+        assertTrue(tree.removeTemplate("http://prodigi.com/user/{a}/photo"));
+
+        MatchResult result = new MatchResult();
+        assertTrue(tree.match("http://prodigi.com/image/123", result));
+        assertEquals("http://prodigi.com/image/{b}", result.template());
+        assertEquals("123", result.get("b"));
+
+        assertTrue(tree.match("http://prodigi.com/user/7/album", result));
+        assertEquals("7", result.get("b"));
+        notMatches(tree, "http://prodigi.com/user/7/photo");
+        assertEquals(new HashSet<>(Arrays.asList("/image/{b}",
+                "/user/{b}/album")), new HashSet<>(tree.getAllTemplate()));
+    }
+
+    @Test
+    public void replace_templates() {
+        RoutingTrie<String> router = new RoutingTrie<>();
+        router.addTemplate("http://prodigi.com/image/{imageId}", "image");
+        router.addTemplate("http://prodigi.com/video/{videoId}", "video");
+
+        Map<String, String> templates = new LinkedHashMap<>();
+        templates.put("http://prodigi.com/image/{imageId}", "image2");
+        templates.put("http://prodigi.com/audio/{audioId}", "audio");
+        router.replaceTemplates(templates);
+
+        assertEquals("image2", router.match("http://prodigi.com/image/123.jpg"));
+        assertEquals("audio", router.match("http://prodigi.com/audio/123.mp3"));
+        assertEquals(null, router.match("http://prodigi.com/video/123.mp4"));
+        assertTrue(router.removeTemplate("http://prodigi.com/audio/{audioId}"));
+        assertEquals(1, router.getAllTemplate().size());
+    }
+
+    @Test
+    public void trie_builder() throws IOException {
+        List<List<String>> sets = new ArrayList<>();
+        for (String filename : Arrays.asList("/hamster.a.templates", "/hamster.b.templates",
+                "/hamster.c.templates", "/whale.a.templates")) {
+            sets.add(readTemplates(filename));
+        }
+        sets.add(Arrays.asList("http://prodigi.com/image/{a}", "http://prodigi.com/image/logo",
+                "http://prodigi.com/image/{b}/info", "http://prodigi.com/image/{b}",
+                "http://prodigi.com/image/{a}", "http://prodigi.com/image/{c}.png",
+                "http://prodigi.com/", "http://prodigi.com/image/{a}/"));
+
+        // large enough for subtrees to be built in parallel
+        List<String> synthetic = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            synthetic.add(String.format("http://prodigi.com/v%d/item%d/{id}/part%d/{p%d}",
+                    i % 3, i % 700, i % 11, i % 4));
+        }
+        Collections.shuffle(synthetic, new Random(7));
+        sets.add(synthetic);
+
+        for (List<String> templates : sets) {
+            PatternMatchingTrie<Node> expected = new PatternMatchingTrie<>();
+            for (String template : templates) {
+                expected.addTemplate(template);
+            }
+            PatternMatchingTrie<Node> actual = TrieBuilder.build(templates);
+            assertArrayEquals(new TrieCodec().encode(expected), new TrieCodec().encode(actual));
+            assertArrayEquals(new TrieCodec().encode(expected),
+                    new TrieCodec().encode(TrieBuilder.build(templates.stream())));
+
+            // many small batches, each added to the nodes of those before it
+            assertArrayEquals(new TrieCodec().encode(expected), new TrieCodec().encode(
+                    TrieBuilder.build(templates, ForkJoinPool.commonPool(), 7)));
+        }
+        assertEquals(0, TrieBuilder.build(new ArrayList<String>()).getAllTemplate().size());
+    }
+
+    @Test
+    public void template_file_loader() throws IOException {
+        // small chunks, so the file is parsed in many pieces
+        TemplateFileLoader loader = new TemplateFileLoader(512, ForkJoinPool.commonPool());
+
+        List<String> templates = readTemplates("/whale.a.templates");
+        File file = new File(getClass().getResource("/whale.a.templates").getFile());
+        List<String> read = new ArrayList<>();
+        for (String template : loader.read(file)) {
+            read.add(template);
+        }
+        assertEquals(templates, read);
+        assertArrayEquals(new TrieCodec().encode(TrieBuilder.build(templates)),
+                new TrieCodec().encode(loader.load(file)));
+
+        // byte order mark, CRLF, blank lines and non-ASCII characters
+        File other = File.createTempFile("other", ".templates");
+        other.deleteOnExit();
+        Files.write(other.toPath(), ("\uFEFFhttp://prodigi.com/caf\u00e9/{id}\r\n\r\n"
+                + "http://prodigi.com/image/{id}\n").getBytes(StandardCharsets.UTF_8));
+        read.clear();
+        for (String template : new TemplateFileLoader(4, ForkJoinPool.commonPool()).read(other)) {
+            read.add(template);
+        }
+        assertEquals(Arrays.asList("http://prodigi.com/caf\u00e9/{id}",
+                "http://prodigi.com/image/{id}"), read);
+    }
+
+    @Test
+    public void match_all() throws IOException {
+        PatternMatchingTrie<Node> tree = loadTemplates("/hamster.b.templates");
+        tree.addTemplate("http://prodigi.com/image/{a}");
+        tree.addTemplate("http://prodigi.com/image/{b}/info");
+        tree.addTemplate("http://prodigi.com/image/logo");
+
+        List<String> urls = new ArrayList<>();
+        for (String template : tree.getAllTemplate()) {
+            urls.add("http://www.prodigisoftware.com" + template);
+            urls.add("http://www.prodigisoftware.com" + template.replaceAll("\\{\\w+\\}", "123"));
+            urls.add("http://www.prodigisoftware.com" + template.replaceAll("\\{\\w+\\}", "1<2"));
+            urls.add(template.replaceAll("\\{\\w+\\}", "9") + "/extra");
+        }
+        urls.add("http://prodigi.com/image/logo");
+        urls.add("http://prodigi.com/image/logo/info");
+        urls.add("http://prodigi.com/image/");
+        urls.add("");
+        Collections.shuffle(urls, new Random(3));
+
+        BitSet expected = new BitSet();
+        for (int i = 0; i < urls.size(); i++) {
+            expected.set(i, tree.matches(urls.get(i)));
+        }
+        assertTrue(expected.cardinality() > 0);
+        assertEquals(expected, tree.matchAll(urls));
+
+        // out is cleared for urls that do not match, and split across threads
+        CharSequence[] many = new CharSequence[urls.size() * 4];
+        BitSet out = new BitSet();
+        out.set(0, many.length);
+        for (int i = 0; i < many.length; i++) {
+            many[i] = new StringBuilder(urls.get(i % urls.size()));
+        }
+        tree.compile().matchAll(many, out, ForkJoinPool.commonPool());
+        for (int i = 0; i < many.length; i++) {
+            assertEquals(expected.get(i % urls.size()), out.get(i));
+        }
+    }
+
+    @Test
+    public void result_cache() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.setResultCache(2);
+        tree.addTemplate("http://prodigi.com/image/{imageId}");
+        ResultCache cache = tree.getResultCache();
+
+        matches(tree, "http://prodigi.com/image/123.jpg");
+        matches(tree, "http://prodigi.com/image/123.jpg");
+        notMatches(tree, "http://prodigi.com/video/123.mp4");
+        notMatches(tree, "http://prodigi.com/video/123.mp4");
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        // cached miss is dropped by the next change
+        tree.addTemplate("http://prodigi.com/video/{videoId}");
+        matches(tree, "http://prodigi.com/video/123.mp4");
+        assertEquals(3, cache.getMisses());
+
+        // bounded
+        matches(tree, "http://prodigi.com/image/1.jpg");
+        matches(tree, "http://prodigi.com/image/2.jpg");
+        assertEquals(2, cache.size());
+        assertTrue(cache.getEvictions() > 0);
+
+        // RoutingTrie caches value of template too
+        RoutingTrie<String> router = new RoutingTrie<>();
+        router.setResultCache(100);
+        router.addTemplate("http://prodigi.com/image/{imageId}", "image");
+        assertEquals("image", router.match("http://prodigi.com/image/123.jpg"));
+        assertEquals("image", router.match(new StringBuilder("http://prodigi.com/image/123.jpg")));
+        assertEquals(1, router.getResultCache().getHits());
+        assertTrue(router.removeTemplate("http://prodigi.com/image/{imageId}"));
+        assertEquals(null, router.match("http://prodigi.com/image/123.jpg"));
+    }
+
+    @Test
+    public void prefix_filter() throws IOException {
+        PatternMatchingTrie<Node> tree = loadTemplates("/whale.a.templates");
+        List<String> urls = new ArrayList<>();
+        for (String template : tree.getAllTemplate()) {
+            urls.add("http://10.154.0.114:8080" + template.replaceAll("\\{\\w+\\}", "1"));
+            urls.add("http://10.154.0.114:8080" + template.replaceAll("\\{\\w+\\}", "1") + "/2");
+        }
+        urls.add("http://10.154.0.114:8080/whale/v9/0/browse");
+        urls.add("http://10.154.0.114:8080/cat/v2.b1/0/browse");
+        BitSet expected = tree.matchAll(urls);
+        assertTrue(expected.cardinality() > 0);
+
+        tree.setPrefixFilter(0.01);
+        PrefixFilter filter = tree.compile().prefixFilter();
+        assertTrue(filter.entries() > 0);
+        for (int i = 0; i < urls.size(); i++) {
+            assertEquals(urls.get(i), expected.get(i), tree.matches(urls.get(i)));
+        }
+        assertFalse(filter.mightMatch("http://10.154.0.114:8080/cat/v2.b1/0/browse"));
+        assertTrue(filter.getRejected() > 0);
+
+        // built again on change
+        tree.addTemplate("http://10.154.0.114:8080/cat/v2.b1/0/browse");
+        assertTrue(tree.compile().prefixFilter().mightMatch("http://10.154.0.114:8080/cat/v2.b1/0/browse"));
+        matches(tree, "http://10.154.0.114:8080/cat/v2.b1/0/browse");
+
+        // wildcard at root lets everything through
+        PatternMatchingTrie open = new PatternMatchingTrie();
+        open.setPrefixFilter(2, 0.01);
+        open.addTemplate("{a}/b");
+        assertTrue(open.compile().prefixFilter().mightMatch("x/b"));
+        matches(open, "x/b");
+
+        tree.setPrefixFilter(0, 0);
+        assertEquals(null, tree.compile().prefixFilter());
+    }
+
+    @Test
+    public void char_policy() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}");
+        tree.addTemplate("http://prodigi.com/search/{query}/{page}.json");
+        assertEquals(CharPolicy.DEFAULT, tree.getCharPolicy());
+
+        // default: reserved characters rejected, '%' and '~' allowed
+        notMatches(tree, "http://prodigi.com/image/1,2");
+        matches(tree, "http://prodigi.com/image/a%2");
+        matches(tree, "http://prodigi.com/search/a~b/1.json");
+
+        tree.setCharPolicy(CharPolicy.UNRESERVED.allow(","));
+        matches(tree, "http://prodigi.com/image/1,2");
+        notMatches(tree, "http://prodigi.com/image/a%2");
+        notMatches(tree, "http://prodigi.com/image/caf\u00e9");
+
+        // only query takes percent-encoded octets
+        tree.setCharPolicy("query", CharPolicy.UNRESERVED.allowPercentEncoded());
+        matches(tree, "http://prodigi.com/search/a%2Cb/1.json");
+        notMatches(tree, "http://prodigi.com/search/a%2/1.json");
+        notMatches(tree, "http://prodigi.com/search/a/1%2C2.json");
+        notMatches(tree, "http://prodigi.com/image/a%2C");
+
+        MatchResult result = new MatchResult();
+        assertTrue(tree.match("http://prodigi.com/search/a%20b/2.json", result));
+        assertEquals("a%20b", result.get("query"));
+
+        tree.setCharPolicy("query", null);
+        notMatches(tree, "http://prodigi.com/search/a%2Cb/1.json");
+        assertEquals(tree.getCharPolicy(), tree.getCharPolicy("query"));
+    }
+
+    @Test
+    public void query_parameters_in_any_order() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/{id},{id2}/logos/first?by={by},{by2}&in={in},{in2}");
+        tree.addTemplate("http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/{id},{id2}/logos/first?by={by}");
+        tree.addTemplate("http://prodigisoftware.com/puppy-ws/v2.b/0/search?w={w}&debug&lang=en");
+        tree.addTemplate("http://prodigisoftware.com/puppy-ws/v2.b/0/{type}?page={page}");
+
+        matches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/1,2/logos/first?by=3,4&in=5,6");
+        matches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/1,2/logos/first?in=5,6&by=3,4");
+        matches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/1,2/logos/first?by=3");
+        matches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/search?lang=en&w=panda&debug");
+        matches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/movies?page=2");
+
+        // every parameter exactly once, and no other
+        notMatches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/1,2/logos/first?in=5,6");
+        notMatches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/1,2/logos/first?by=3&by=4");
+        notMatches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/1,2/logos/first?by=3&x=1");
+        notMatches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/search?lang=fr&w=panda&debug");
+        notMatches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/search?lang=en&w=panda&debug=1");
+        notMatches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/search?lang=en&w=a/b&debug");
+        notMatches(tree, "http://prodigisoftware.com/puppy-ws/v2.b/0/movies?page=2&");
+
+        MatchResult result = new MatchResult();
+        assertTrue(tree.match("http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/1,2/logos/first?in=5,6&by=3,4", result));
+        assertEquals("3", result.get("by"));
+        assertEquals("6", result.get("in2"));
+        assertEquals("2", result.get("id2"));
+        assertTrue(tree.match("http://prodigisoftware.com/puppy-ws/v2.b/0/movies?page=2", result));
+        assertEquals("movies", result.get("type"));
+
+        // same in batches, and through the prefix filter
+        tree.setPrefixFilter(0.01);
+        List<String> urls = Arrays.asList(
+                "http://prodigisoftware.com/puppy-ws/v2.b/0/search?debug&w=1&lang=en",
+                "http://prodigisoftware.com/puppy-ws/v2.b/0/search?debug&w=1",
+                "http://prodigisoftware.com/puppy-ws/v2.b/0/batch/source/1,2/logos/first?in=5,6&by=3,4");
+        BitSet matched = tree.matchAll(urls);
+        assertEquals("{0, 2}", matched.toString());
+        matches(tree, urls.get(0));
+    }
+
+    @Test
+    public void match_listener() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}.jpg");
+        tree.addTemplate("http://prodigi.com/image/{imageId}/logo");
+
+        final List<String> events = new ArrayList<>();
+        MatchListener listener = new MatchListener() {
+            @Override
+            public void onNodeEntered(CharSequence url, String node, int start, int end) {
+                events.add("entered " + node + " " + url.subSequence(start, end));
+            }
+
+            @Override
+            public void onCandidateRejected(CharSequence url, String node, int start, int end) {
+                events.add("rejected " + node + " " + url.subSequence(start, end));
+            }
+
+            @Override
+            public void onMatched(CharSequence url, String template, long nanos) {
+                events.add("matched " + template);
+            }
+
+            @Override
+            public void onNoMatch(CharSequence url, long nanos) {
+                events.add("no match");
+            }
+        };
+
+        assertTrue(tree.matches("http://prodigi.com/image/123/logo", listener));
+        assertEquals(Arrays.asList("entered image image", "rejected {imageId}.jpg 123",
+                "entered {imageId} 123", "entered logo logo",
+                "matched http://prodigi.com/image/{imageId}/logo"), events);
+
+        events.clear();
+        tree.setMatchListener(listener);
+        notMatches(tree, "http://prodigi.com/video/123");
+        assertEquals(Arrays.asList("no match"), events);
+
+        // sampled, and only slow ones reported
+        final List<String> reports = new ArrayList<>();
+        SlowMatchTracer tracer = new SlowMatchTracer(0, TimeUnit.NANOSECONDS, 1,
+                (url, template, nanos, trace) -> reports.add(template + "\n" + trace));
+        tree.setMatchListener(tracer);
+        matches(tree, "http://prodigi.com/image/123.jpg");
+        assertEquals(1, tracer.getReported());
+        assertEquals("http://prodigi.com/image/{imageId}.jpg\n"
+                + "  entered image <- image\n"
+                + "  entered {imageId}.jpg <- 123.jpg\n", reports.get(0));
+
+        SlowMatchTracer never = new SlowMatchTracer(1, TimeUnit.HOURS, 1000000);
+        tree.setMatchListener(never);
+        for (int i = 0; i < 100; i++) {
+            matches(tree, "http://prodigi.com/image/123.jpg");
+        }
+        assertEquals(0, never.getReported());
+        assertTrue(never.getSampled() < 100);
+
+        tree.setMatchListener(null);
+        matches(tree, "http://prodigi.com/image/123.jpg");
+    }
+
+    @Test
+    public void match_metrics() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}.jpg");
+        tree.addTemplate("http://prodigi.com/image/{imageId}/logo");
+
+        MatchMetrics metrics = new MatchMetrics();
+        tree.setMetrics(metrics);
+        matches(tree, "http://prodigi.com/image/123/logo");
+        notMatches(tree, "http://prodigi.com/video/123");
+
+        MatchMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getCalls());
+        assertEquals(1, snapshot.getHits());
+        assertEquals(1, snapshot.getMisses());
+        assertEquals(0, snapshot.getUnwalked());
+        // image, {imageId}, logo
+        assertEquals(3, snapshot.getSegments());
+        // {imageId}.jpg rejected, {imageId} matched
+        assertEquals(2, snapshot.getWildcardEvaluations());
+        assertEquals(2, snapshot.getLatencyCount());
+        assertEquals(snapshot.getLatencyBounds().length + 1, snapshot.getLatencyCounts().length);
+
+        // counted along with the listener of the tree, and of a single call
+        final AtomicInteger traced = new AtomicInteger();
+        MatchListener listener = new MatchListener() {
+            @Override
+            public void onNodeEntered(CharSequence url, String node, int start, int end) {
+                traced.incrementAndGet();
+            }
+        };
+        tree.setMatchListener(listener);
+        matches(tree, "http://prodigi.com/image/123.jpg");
+        assertTrue(tree.matches("http://prodigi.com/image/123.jpg", (MatchListener) null));
+        assertEquals(2, traced.get());
+        assertEquals(4, metrics.snapshot().getCalls());
+        assertEquals(7, metrics.snapshot().getSegments());
+
+        // answered by the result cache, or in a batch: not walked
+        metrics.reset();
+        tree.setResultCache(16);
+        matches(tree, "http://prodigi.com/image/123.jpg");
+        matches(tree, "http://prodigi.com/image/123.jpg");
+        tree.matchAll(Arrays.asList("http://prodigi.com/image/1.jpg", "http://prodigi.com/video/1"));
+        snapshot = metrics.snapshot();
+        assertEquals(4, snapshot.getCalls());
+        assertEquals(3, snapshot.getHits());
+        assertEquals(1, snapshot.getMisses());
+        assertEquals(1, snapshot.getUnwalked());
+        assertEquals(1, snapshot.getLatencyCount());
+
+        Map<String, String> labels = new LinkedHashMap<>();
+        labels.put("apiKey", "a\"b");
+        String text = snapshot.toPrometheus("uri_trie", labels);
+        assertTrue(text.contains("# TYPE uri_trie_calls_total counter\n"
+                + "uri_trie_calls_total{apiKey=\"a\\\"b\"} 4\n"));
+        assertTrue(text.contains("uri_trie_match_duration_seconds_bucket{apiKey=\"a\\\"b\",le=\"0.000001\"} "));
+        assertTrue(text.contains("uri_trie_match_duration_seconds_bucket{apiKey=\"a\\\"b\",le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("uri_trie_match_duration_seconds_count{apiKey=\"a\\\"b\"} 1\n"));
+        assertTrue(snapshot.toPrometheus("uri_trie").contains("uri_trie_hits_total 3\n"));
+
+        // rejected by the prefix filter: not walked, with or without a cache
+        for (int cache : new int[]{0, 16}) {
+            tree.setResultCache(cache);
+            tree.setPrefixFilter(0.01);
+            metrics.reset();
+            notMatches(tree, "http://prodigi.com/audio/1");
+            assertFalse(tree.match("http://prodigi.com/audio/1", new MatchResult()));
+            snapshot = metrics.snapshot();
+            assertEquals(2, snapshot.getCalls());
+            assertEquals(2, snapshot.getMisses());
+            assertEquals(2, snapshot.getUnwalked());
+            assertEquals(0, snapshot.getLatencyCount());
+        }
+
+        tree.setMetrics(null);
+        matches(tree, "http://prodigi.com/image/123.jpg");
+        assertEquals(2, metrics.snapshot().getCalls());
+    }
+
+    @Test
+    public void template_hit_counters() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/image/{imageId}.jpg");
+        tree.addTemplate("http://prodigi.com/image/{imageId}/logo");
+        tree.addTemplate("http://prodigi.com/video/{videoId}");
+        tree.addTemplate("http://prodigi.com/video/{id}");
+
+        // not counted until enabled
+        matches(tree, "http://prodigi.com/image/1.jpg");
+        assertEquals(Long.valueOf(0), tree.getTemplateHits().get("http://prodigi.com/image/{imageId}.jpg"));
+
+        tree.setTemplateHitCounting(true);
+        tree.setResultCache(16);
+        for (int i = 0; i < 3; i++) {
+            matches(tree, "http://prodigi.com/image/1.jpg");
+        }
+        matches(tree, "http://prodigi.com/video/7");
+        notMatches(tree, "http://prodigi.com/audio/7");
+
+        // counts survive a change elsewhere in the tree
+        tree.addTemplate("http://prodigi.com/audio/{audioId}");
+        assertTrue(tree.match("http://prodigi.com/video/8", new MatchResult()));
+
+        Map<String, Long> top = tree.getMostHitTemplates(1);
+        assertEquals(Collections.singletonMap("http://prodigi.com/image/{imageId}.jpg", 3L), top);
+        assertEquals(Arrays.asList("http://prodigi.com/image/{imageId}.jpg",
+                "http://prodigi.com/video/{videoId}"),
+                new ArrayList<>(tree.getMostHitTemplates(10).keySet()));
+        assertEquals(Long.valueOf(2), tree.getTemplateHits().get("http://prodigi.com/video/{videoId}"));
+        // shadowed by {videoId}
+        assertEquals(new HashSet<>(Arrays.asList("http://prodigi.com/image/{imageId}/logo",
+                "http://prodigi.com/video/{id}", "http://prodigi.com/audio/{audioId}")),
+                new HashSet<>(tree.getNeverHitTemplates()));
+
+        tree.resetTemplateHits();
+        assertEquals(5, tree.getNeverHitTemplates().size());
+        tree.setTemplateHitCounting(false);
+        matches(tree, "http://prodigi.com/video/7");
+        assertTrue(tree.getMostHitTemplates(10).isEmpty());
+    }
+
+    @Test
+    public void template_hits_after_remove() {
+        PatternMatchingTrie tree = new PatternMatchingTrie();
+        tree.addTemplate("http://prodigi.com/video/{videoId}");
+        tree.addTemplate("http://prodigi.com/video/{id}");
+        tree.setTemplateHitCounting(true);
+        matches(tree, "http://prodigi.com/video/7");
+        assertEquals(Long.valueOf(1), tree.getTemplateHits().get("http://prodigi.com/video/{videoId}"));
+
+        // hits of the removed template are not passed on to {id}
+        assertTrue(tree.removeTemplate("http://prodigi.com/video/{videoId}"));
+        assertEquals(Collections.singletonMap("http://prodigi.com/video/{id}", 0L), tree.getTemplateHits());
+        assertEquals(Arrays.asList("http://prodigi.com/video/{id}"), tree.getNeverHitTemplates());
+        matches(tree, "http://prodigi.com/video/9");
+        assertEquals(Long.valueOf(1), tree.getTemplateHits().get("http://prodigi.com/video/{id}"));
+
+        // same through replaceTemplates()
+        tree.addTemplate("http://prodigi.com/video/{v}");
+        matches(tree, "http://prodigi.com/video/10");
+        tree.replaceTemplates(Arrays.asList("http://prodigi.com/video/{v}"));
+        assertEquals(Arrays.asList("http://prodigi.com/video/{v}"), tree.getNeverHitTemplates());
+    }
+
     @Test
     public void trie_partial_wildcard_no_match() {
         PatternMatchingTrie tree = new PatternMatchingTrie();
@@ -493,6 +1261,244 @@ public class PatternMatchingTrieTest {
                 "http://www.prodigisoftware.com/hamster/v2.b/0/lookup/airing/1127268189/synopses/first?by=length%3D1,length%3D2,length%3D3,length%3D4");
     }
 
+    @Test
+    public void mapped_trie() throws IOException {
+        PatternMatchingTrie<Node> tree = loadTemplates("/hamster.b.templates");
+        CompiledTrie compiled = tree.compile();
+
+        File file = File.createTempFile("hamster", ".trie");
+        file.deleteOnExit();
+        MappedTrie.write(compiled, file);
+        MappedTrie mapped = MappedTrie.open(file);
+        assertEquals(file.length(), mapped.size());
+
+        List<String> urls = new ArrayList<>(tree.getAllTemplate());
+        urls.add("http://www.prodigisoftware.com/hamster/v2.b/0/lookup/airing/1127268189");
+        urls.add("http://www.prodigisoftware.com/hamster/v2.b/0/lookup/airing/1127268189/synopses/first?by=length%3D1,length%3D2,length%3D3,length%3D4");
+        urls.add("http://www.prodigisoftware.com/hamster/v2.b/0/lookup/airing/11272<8189");
+        urls.add("http://www.prodigisoftware.com/hamster/v2.b/0/lookup/nothing/1");
+
+        MatchResult expected = new MatchResult();
+        MatchResult actual = new MatchResult();
+        for (String url : urls) {
+            assertEquals(url, compiled.match(url, expected), mapped.match(url, actual));
+            assertEquals(url, expected.toString(), actual.toString());
+            assertEquals(url, compiled.matches(url), mapped.matches(url));
+        }
+    }
+
+    @Test
+    public void mapped_trie_query_parameters_in_any_order() throws IOException {
+        for (String name : Arrays.asList("/hamster.a.templates", "/hamster.b.templates",
+                "/hamster.c.templates")) {
+            PatternMatchingTrie<Node> tree = loadTemplates(name);
+            CompiledTrie compiled = tree.compile();
+            MappedTrie mapped = MappedTrie.wrap(ByteBuffer.wrap(MappedTrie.toBytes(compiled)));
+
+            // parameters as in template, reversed, rotated, one left out, one twice
+            List<String> urls = new ArrayList<>();
+            for (String template : tree.getAllTemplate()) {
+                String url = "http://www.prodigisoftware.com" + template.replaceAll("\\{\\w+\\}", "7");
+                int question = url.indexOf('?');
+                if (question == -1) {
+                    continue;
+                }
+                String path = url.substring(0, question + 1);
+                List<String> params = Arrays.asList(url.substring(question + 1).split("&"));
+                List<String> reversed = new ArrayList<>(params);
+                Collections.reverse(reversed);
+                List<String> rotated = new ArrayList<>(params);
+                Collections.rotate(rotated, 1);
+                urls.add(url);
+                urls.add(path + String.join("&", reversed));
+                urls.add(path + String.join("&", rotated));
+                urls.add(path + String.join("&", params.subList(1, params.size())));
+                urls.add(url + "&" + params.get(0));
+            }
+
+            int matched = 0;
+            MatchResult expected = new MatchResult();
+            MatchResult actual = new MatchResult();
+            for (String url : urls) {
+                assertEquals(url, compiled.match(url, expected), mapped.match(url, actual));
+                assertEquals(url, expected.toString(), actual.toString());
+                matched += expected.matched() ? 1 : 0;
+            }
+            assertTrue(name, matched > urls.size() / 2);
+        }
+    }
+
+    @Test
+    public void mapped_trie_query_by_literal_path() {
+        PatternMatchingTrie<Node> tree = new PatternMatchingTrie<>();
+        tree.addTemplate("http://h/api/get?a={a}&b={b}");
+        tree.addTemplate("http://h/api/get?c={c}");
+        tree.addTemplate("http://h/api/put?a={a}");
+        tree.addTemplate("http://h/api/{op}?x={x}");
+        for (int i = 0; i < 100; i++) {
+            tree.addTemplate("http://h/api/op" + i + "?a={a}");
+        }
+        CompiledTrie compiled = tree.compile();
+        MappedTrie mapped = MappedTrie.wrap(ByteBuffer.wrap(MappedTrie.toBytes(compiled)));
+
+        // literal path first; then path with variables, if none of the
+        // literal path matches
+        Map<String, String> urls = new LinkedHashMap<>();
+        urls.put("http://h/api/get?b=1&a=2", "http://h/api/get?a={a}&b={b}");
+        urls.put("http://h/api/get?c=3", "http://h/api/get?c={c}");
+        urls.put("http://h/api/get?x=4", "http://h/api/{op}?x={x}");
+        urls.put("http://h/api/op42?a=5", "http://h/api/op42?a={a}");
+        urls.put("http://h/api/op42?x=6", "http://h/api/{op}?x={x}");
+        urls.put("http://h/api/del?x=7", "http://h/api/{op}?x={x}");
+        urls.put("http://h/api/put?b=8", null);
+        urls.put("http://h/api/op100?a=9", null);
+        MatchResult expected = new MatchResult();
+        MatchResult actual = new MatchResult();
+        for (Map.Entry<String, String> entry : urls.entrySet()) {
+            String url = entry.getKey();
+            assertEquals(url, compiled.match(url, expected), mapped.match(url, actual));
+            assertEquals(url, expected.toString(), actual.toString());
+            assertEquals(url, entry.getValue(), actual.template());
+        }
+    }
+
+    @Test(expected = TrieException.class)
+    public void mapped_trie_bad_format() {
+        MappedTrie.wrap(ByteBuffer.wrap(new byte[32]));
+    }
+
+    @Test
+    public void trie_codec() throws IOException, ClassNotFoundException {
+        PatternMatchingTrie<Node> tree = loadTemplates("/hamster.b.templates");
+        TrieCodec codec = new TrieCodec();
+
+        byte[] bytes = codec.encode(tree);
+        PatternMatchingTrie<Node> copy = codec.decode(bytes);
+        assertEquals(1, codec.getEncodeCount());
+        assertEquals(bytes.length, codec.getDecodedBytes());
+
+        assertEquals(new HashSet<>(tree.getAllTemplate()), new HashSet<>(copy.getAllTemplate()));
+        matches(copy, "http://www.prodigisoftware.com/hamster/v2.b/0/lookup/airing/1127268189");
+        notMatches(copy, "http://www.prodigisoftware.com/hamster/v2.b/0/lookup/airing/11272<8189");
+
+        // decoded trie takes new templates as usual
+        copy.addTemplate("http://www.prodigisoftware.com/hamster/v2.b/0/lookup/new/{id}");
+        matches(copy, "http://www.prodigisoftware.com/hamster/v2.b/0/lookup/new/1");
+
+        // Java serialization uses the same format, values included
+        RoutingTrie<String> router = new RoutingTrie<>();
+        router.addTemplate("http://prodigi.com/image/{imageId}", "image");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjectOutputStream(out).writeObject(router);
+        @SuppressWarnings("unchecked")
+        RoutingTrie<String> routerCopy = (RoutingTrie<String>) new ObjectInputStream(
+                new ByteArrayInputStream(out.toByteArray())).readObject();
+        assertEquals("image", routerCopy.match("http://prodigi.com/image/123.jpg"));
+    }
+
+    @Test(expected = TrieException.class)
+    public void trie_codec_bad_format() {
+        new TrieCodec().decode(new byte[]{0x55, 0x54, 0x50, 0x43, 1, 5});
+    }
+
+    @Test
+    public void trie_codec_back_references() {
+        // version 1, strings "" and "/"; root has edge "/" with a new child,
+        // then a reference to that child, read in full by then
+        byte[] header = {0x55, 0x54, 0x50, 0x43, 1, 2, 0, 1, '/'};
+        TrieCodec codec = new TrieCodec();
+        codec.decode(concat(header, new byte[]{0, 0, 0, 0, 1, 1, 2, 0, 0, 0, 0, 0, 2}));
+
+        // child of root is root
+        try {
+            codec.decode(concat(header, new byte[]{0, 0, 0, 0, 1, 1, 1, 1}));
+            fail("decoded a cycle");
+        } catch (TrieException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ancestor"));
+        }
+
+        // chain of nodes, each the child of the one before
+        ByteArrayOutputStream chain = new ByteArrayOutputStream();
+        chain.write(header, 0, header.length);
+        for (int i = 0; i < 2000; i++) {
+            chain.write(new byte[]{0, 0, 0, 0, 1, 1, 1}, 0, 7);
+        }
+        try {
+            codec.decode(chain.toByteArray());
+            fail("decoded past max depth");
+        } catch (TrieException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("deeper"));
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+
+    @Test
+    public void trie_codec_while_adding() throws InterruptedException {
+        final PatternMatchingTrie<Node> tree = new PatternMatchingTrie<>();
+        final int count = 2000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    tree.addTemplate("http://prodigi.com/image" + (i % 20) + "/" + i + "/{id}");
+                }
+            }
+        });
+        writer.start();
+
+        // each encoding is of one version of the trie: the first n templates
+        TrieCodec codec = new TrieCodec();
+        while (writer.isAlive()) {
+            List<String> templates = codec.decode(codec.encode(tree)).getAllTemplate();
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < templates.size(); i++) {
+                expected.add("/image" + (i % 20) + "/" + i + "/{id}");
+            }
+            assertEquals(expected, new HashSet<>(templates));
+        }
+        writer.join();
+        assertEquals(count, codec.decode(codec.encode(tree)).getAllTemplate().size());
+    }
+
+    @Test
+    public void char_policy_round_trip() throws IOException, ClassNotFoundException {
+        PatternMatchingTrie<Node> tree = new PatternMatchingTrie<>();
+        tree.addTemplate("http://h/name/{name}");
+        tree.addTemplate("http://h/id/{id}");
+        tree.setCharPolicy(CharPolicy.DEFAULT.allow("&").nonAscii(CharPolicy.NonAscii.ALLOW));
+        tree.setCharPolicy("name", CharPolicy.UNRESERVED.allow(","));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjectOutputStream(out).writeObject(tree);
+        @SuppressWarnings("unchecked")
+        PatternMatchingTrie<Node> serialized = (PatternMatchingTrie<Node>) new ObjectInputStream(
+                new ByteArrayInputStream(out.toByteArray())).readObject();
+        TrieCodec codec = new TrieCodec();
+        PatternMatchingTrie<Node> decoded = codec.decode(codec.encode(tree));
+        MappedTrie mapped = MappedTrie.wrap(ByteBuffer.wrap(MappedTrie.toBytes(tree.compile())));
+
+        for (PatternMatchingTrie<Node> copy : Arrays.asList(decoded, serialized)) {
+            assertEquals(tree.getCharPolicy(), copy.getCharPolicy());
+            assertEquals(tree.getCharPolicy("name"), copy.getCharPolicy("name"));
+            assertEquals(tree.getCharPolicy("id"), copy.getCharPolicy("id"));
+        }
+        for (String url : Arrays.asList("http://h/name/a,b", "http://h/name/a%20b",
+                "http://h/name/caf\u00e9", "http://h/id/a&b", "http://h/id/caf\u00e9",
+                "http://h/id/a,b")) {
+            boolean expected = tree.matches(url);
+            assertEquals(url, expected, decoded.matches(url));
+            assertEquals(url, expected, serialized.matches(url));
+            assertEquals(url, expected, mapped.matches(url));
+        }
+        matches(decoded, "http://h/name/a,b");
+        notMatches(decoded, "http://h/name/a%20b");
+    }
+
     @Test
     public void dataTemplate_Sonya_templates() throws IOException {
         PatternMatchingTrie<Node> tree = loadTemplates("/hamster.c.templates");
@@ -576,7 +1582,7 @@ public class PatternMatchingTrieTest {
      * @return com.prodigi.object.PatternMatchingTrie<com.prodigi.object.Node> a trie that contains templates from file
      * @throws IOException Cannot load file
      */
-    private PatternMatchingTrie<Node> loadTemplates(String filename) throws IOException {
+    private List<String> readTemplates(String filename) throws IOException {
         BufferedReader reader =
                 new BufferedReader(new FileReader(getClass().getResource(filename)
                         .getFile()));
@@ -584,11 +1590,16 @@ public class PatternMatchingTrieTest {
         String line = null;
 
         List<String> templates = new ArrayList<>();
-
-        // read into memory first
         while ((line = reader.readLine()) != null) {
             templates.add(line);
         }
+        reader.close();
+        return templates;
+    }
+
+    private PatternMatchingTrie<Node> loadTemplates(String filename) throws IOException {
+        // read into memory first
+        List<String> templates = readTemplates(filename);
 
         // Now calculate time for adding templates to tree
         long start = System.currentTimeMillis();
@@ -0,0 +1,356 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.prodigi.object.CompiledTrie;
+import com.prodigi.object.PatternMatchingTrie;
+import com.prodigi.service.FileTrieStore;
+import com.prodigi.service.InMemoryTrieStore;
+import com.prodigi.service.TieredTrieCache;
+import com.prodigi.service.TrieLoader;
+import com.prodigi.service.TrieRegistry;
+import com.prodigi.service.TrieRegistry.RemovalCause;
+import com.prodigi.service.TrieWarmer;
+import org.junit.Test;
+
+public class TrieRegistryTest {
+
+    @Test
+    public void lru_eviction_by_entries() {
+        TrieRegistry registry = new TrieRegistry(2, TrieRegistry.Unit.ENTRIES);
+        List<String> removed = recordRemovals(registry);
+
+        registry.put("a", trie("a"));
+        registry.put("b", trie("b"));
+
+        // "a" was read, so "b" is evicted first
+        assertNotNull(registry.get("a"));
+        registry.put("c", trie("c"));
+
+        assertEquals(2, registry.size());
+        assertNotNull(registry.get("a"));
+        assertNull(registry.get("b"));
+        assertNotNull(registry.get("c"));
+        assertEquals("[b SIZE]", removed.toString());
+    }
+
+    @Test
+    public void capacity_in_bytes() {
+        CompiledTrie trie = trie("a");
+        assertTrue(trie.estimatedBytes() > 0);
+
+        TrieRegistry registry = new TrieRegistry(trie.estimatedBytes() * 3,
+                TrieRegistry.Unit.BYTES);
+        for (int i = 0; i < 10; i++) {
+            registry.put("key" + i, trie("a"));
+        }
+        assertEquals(3, registry.size());
+        assertEquals(trie.estimatedBytes() * 3, registry.weight());
+    }
+
+    @Test
+    public void replace_and_remove() {
+        TrieRegistry registry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        List<String> removed = recordRemovals(registry);
+
+        CompiledTrie second = trie("b");
+        registry.put("a", trie("a"));
+        registry.put("a", second);
+        assertSame(second, registry.get("a"));
+
+        assertSame(second, registry.remove("a"));
+        assertNull(registry.remove("a"));
+        assertEquals("[a REPLACED, a EXPLICIT]", removed.toString());
+    }
+
+    @Test
+    public void time_to_live() throws InterruptedException {
+        TrieRegistry registry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        registry.setTimeToLive(50, TimeUnit.MILLISECONDS);
+        List<String> removed = recordRemovals(registry);
+
+        registry.put("a", trie("a"));
+        registry.put("b", trie("b"));
+        assertNotNull(registry.get("a"));
+
+        Thread.sleep(100);
+        assertNull(registry.get("a"));
+        registry.cleanUp();
+        assertEquals(0, registry.size());
+        assertEquals("[a EXPIRED, b EXPIRED]", removed.toString());
+    }
+
+    @Test
+    public void idle_timeout() throws InterruptedException {
+        TrieRegistry registry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        registry.setIdleTimeout(200, TimeUnit.MILLISECONDS);
+
+        registry.put("a", trie("a"));
+        registry.put("b", trie("b"));
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(60);
+            assertNotNull(registry.get("a"));
+        }
+        assertNull(registry.get("b"));
+    }
+
+    @Test
+    public void loader_single_flight() throws Exception {
+        TrieRegistry registry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        final AtomicInteger builds = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        TrieLoader loader = new TrieLoader(registry, apiKey -> {
+            builds.incrementAndGet();
+            release.await();
+            return trie(apiKey);
+        }, Executors.newCachedThreadPool());
+
+        List<CompletableFuture<CompiledTrie>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(loader.get("a"));
+        }
+        release.countDown();
+
+        CompiledTrie first = futures.get(0).get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<CompiledTrie> future : futures) {
+            assertSame(first, future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, builds.get());
+        assertSame(first, registry.get("a"));
+        assertSame(first, loader.get("a").getNow(null));
+        assertEquals(0, loader.inFlightCount());
+    }
+
+    @Test
+    public void loader_serves_stale_while_refreshing() throws Exception {
+        TrieRegistry registry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        final AtomicInteger builds = new AtomicInteger();
+        TrieLoader loader = new TrieLoader(registry, apiKey -> {
+            if (builds.incrementAndGet() == 3) {
+                throw new IllegalStateException("database down");
+            }
+            return trie(apiKey);
+        });
+        loader.setRefreshAfter(50, TimeUnit.MILLISECONDS);
+
+        CompiledTrie first = loader.get("a").get(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+
+        // old trie returned right away; new one built in background
+        assertSame(first, loader.get("a").getNow(null));
+        for (int i = 0; i < 500 && registry.get("a") == first; i++) {
+            Thread.sleep(10);
+        }
+        CompiledTrie second = registry.get("a");
+        assertNotSame(first, second);
+        assertEquals(2, builds.get());
+
+        // failed refresh keeps old trie
+        try {
+            loader.refresh("a").get(5, TimeUnit.SECONDS);
+            fail("refresh should fail");
+        } catch (ExecutionException e) {
+            assertEquals("database down", e.getCause().getMessage());
+        }
+        assertSame(second, registry.get("a"));
+    }
+
+    @Test
+    public void tiered_cache_promotes_from_store() throws IOException {
+        File directory = Files.createTempDirectory("tries").toFile();
+        FileTrieStore store = new FileTrieStore(directory);
+
+        // first node builds trie, and writes it through to store
+        TieredTrieCache warm = new TieredTrieCache(
+                new TrieRegistry(10, TrieRegistry.Unit.ENTRIES), store);
+        PatternMatchingTrie trie = new PatternMatchingTrie();
+        trie.addTemplate("http://prodigi.com/image/{imageId}");
+        warm.put("apiKey/1", trie);
+
+        // cold node reads it from store, then from registry
+        TieredTrieCache cold = new TieredTrieCache(
+                new TrieRegistry(10, TrieRegistry.Unit.ENTRIES), store);
+        assertTrue(cold.get("apiKey/1").matches("http://prodigi.com/image/123.jpg"));
+        assertNotNull(cold.get("apiKey/1"));
+        assertNull(cold.get("apiKey/2"));
+        assertEquals(1, cold.getL1Hits());
+        assertEquals(1, cold.getL2Hits());
+        assertEquals(1, cold.getMisses());
+
+        cold.invalidate("apiKey/1");
+        assertNull(store.get("apiKey/1"));
+    }
+
+    @Test
+    public void tiered_cache_with_loader() throws Exception {
+        InMemoryTrieStore store = new InMemoryTrieStore();
+        final AtomicInteger builds = new AtomicInteger();
+        TieredTrieCache.TemplateSource templates = apiKey -> {
+            builds.incrementAndGet();
+            PatternMatchingTrie trie = new PatternMatchingTrie();
+            trie.addTemplate("http://prodigi.com/" + apiKey + "/{id}");
+            return trie;
+        };
+
+        TrieRegistry registry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        TieredTrieCache cache = new TieredTrieCache(registry, store);
+        TrieLoader loader = new TrieLoader(registry, cache.loaderSource(templates));
+        assertTrue(loader.get("a").get(5, TimeUnit.SECONDS).matches("http://prodigi.com/a/1"));
+        assertEquals(1, store.size());
+
+        // another node with empty registry decodes instead of building
+        TrieRegistry coldRegistry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        TieredTrieCache coldCache = new TieredTrieCache(coldRegistry, store);
+        TrieLoader coldLoader = new TrieLoader(coldRegistry, coldCache.loaderSource(templates));
+        assertTrue(coldLoader.get("a").get(5, TimeUnit.SECONDS).matches("http://prodigi.com/a/1"));
+        assertEquals(1, builds.get());
+        assertEquals(1, coldCache.getL2Hits());
+    }
+
+    @Test
+    public void tiered_cache_refresh_rebuilds_from_templates() throws Exception {
+        InMemoryTrieStore store = new InMemoryTrieStore();
+        final Map<String, String> templates = new HashMap<>();
+        templates.put("a", "http://prodigi.com/image/{imageId}");
+        TieredTrieCache.TemplateSource source = apiKey -> {
+            PatternMatchingTrie trie = new PatternMatchingTrie();
+            trie.addTemplate(templates.get(apiKey));
+            return trie;
+        };
+
+        TrieRegistry registry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        TieredTrieCache cache = new TieredTrieCache(registry, store);
+        TrieLoader loader = new TrieLoader(registry, cache.loaderSource(source));
+        assertTrue(loader.get("a").get(5, TimeUnit.SECONDS).matches("http://prodigi.com/image/1"));
+
+        // templates change; refresh builds from them, not from L2
+        templates.put("a", "http://prodigi.com/video/{videoId}");
+        CompiledTrie refreshed = loader.refresh("a").get(5, TimeUnit.SECONDS);
+        assertTrue(refreshed.matches("http://prodigi.com/video/1"));
+        assertSame(refreshed, registry.get("a"));
+        assertEquals(0, cache.getL2Hits());
+
+        // and L2 has the new trie
+        TrieRegistry coldRegistry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        TieredTrieCache coldCache = new TieredTrieCache(coldRegistry, store);
+        CompiledTrie cold = new TrieLoader(coldRegistry, coldCache.loaderSource(source))
+                .get("a").get(5, TimeUnit.SECONDS);
+        assertTrue(cold.matches("http://prodigi.com/video/1"));
+        assertEquals(1, coldCache.getL2Hits());
+    }
+
+    @Test
+    public void warm_up_many_apiKeys() throws InterruptedException {
+        TrieRegistry registry = new TrieRegistry(1000, TrieRegistry.Unit.ENTRIES);
+        TrieWarmer warmer = new TrieWarmer(registry, new ForkJoinPool(4));
+        final AtomicInteger listened = new AtomicInteger();
+        warmer.addListener(new TrieWarmer.Listener() {
+            @Override
+            public void onBuilt(String apiKey, long buildNanos, TrieWarmer.Warmup warmup) {
+                listened.incrementAndGet();
+            }
+
+            @Override
+            public void onFailed(String apiKey, Exception cause, TrieWarmer.Warmup warmup) {
+                listened.incrementAndGet();
+            }
+        });
+
+        Map<String, TrieWarmer.TemplateSource> sources = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            final String apiKey = "apiKey" + i;
+            sources.put(apiKey, () -> Arrays.asList("http://prodigi.com/" + apiKey + "/{id}",
+                    "http://prodigi.com/" + apiKey + "/{id}/info"));
+        }
+        sources.put("broken", () -> {
+            throw new IOException("no templates");
+        });
+
+        TrieWarmer.Warmup warmup = warmer.warm(sources);
+        assertTrue(warmup.await(10, TimeUnit.SECONDS));
+        assertEquals(101, warmup.total());
+        assertEquals(100, warmup.built());
+        assertEquals(1, warmup.failed());
+        assertEquals(100, warmup.buildNanos().size());
+        assertEquals("no templates", warmup.failures().get("broken").getMessage());
+        assertEquals(101, listened.get());
+
+        assertEquals(100, registry.size());
+        assertTrue(registry.get("apiKey42").matches("http://prodigi.com/apiKey42/1/info"));
+        assertNull(registry.get("broken"));
+
+        assertTrue(warmer.warm(new HashMap<String, TrieWarmer.TemplateSource>()).isDone());
+    }
+
+    @Test
+    public void warm_up_completes_after_error() throws InterruptedException {
+        TrieRegistry registry = new TrieRegistry(10, TrieRegistry.Unit.ENTRIES);
+        TrieWarmer warmer = new TrieWarmer(registry);
+        Map<String, TrieWarmer.TemplateSource> sources = new LinkedHashMap<>();
+        sources.put("a", () -> Arrays.asList("http://prodigi.com/a/{id}"));
+        sources.put("deep", () -> {
+            throw new StackOverflowError("too deep");
+        });
+
+        TrieWarmer.Warmup warmup = warmer.warm(sources);
+        assertTrue(warmup.await(10, TimeUnit.SECONDS));
+        assertEquals(1, warmup.built());
+        assertEquals(1, warmup.failed());
+        assertTrue(warmup.failures().get("deep") instanceof ExecutionException);
+        assertTrue(warmup.failures().get("deep").getCause() instanceof StackOverflowError);
+        assertNotNull(registry.get("a"));
+
+        // own pool is shut down; a pool passed in is left running
+        warmer.close();
+        try {
+            warmer.warm(sources);
+            fail("pool should be shut down");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        ForkJoinPool pool = new ForkJoinPool(2);
+        new TrieWarmer(registry, pool).close();
+        assertFalse(pool.isShutdown());
+        pool.shutdown();
+    }
+
+    private static CompiledTrie trie(String name) {
+        PatternMatchingTrie trie = new PatternMatchingTrie();
+        trie.addTemplate("http://prodigi.com/" + name + "/{id}");
+        return trie.compile();
+    }
+
+    private static List<String> recordRemovals(TrieRegistry registry) {
+        final List<String> removed = new ArrayList<>();
+        registry.addListener(new TrieRegistry.EvictionListener() {
+            @Override
+            public void onRemoval(String apiKey, CompiledTrie trie, RemovalCause cause) {
+                removed.add(apiKey + " " + cause);
+            }
+        });
+        return removed;
+    }
+}
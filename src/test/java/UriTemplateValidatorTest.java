@@ -4,7 +4,10 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.Map;
 
+import com.prodigi.service.CharPolicy;
 import com.prodigi.service.UriTemplateValidator;
+import com.prodigi.service.UrlScanner;
+import com.prodigi.service.VariableFilter;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
@@ -164,6 +167,164 @@ public class UriTemplateValidatorTest {
 
     }
 
+    /**
+     * Greedy variables, same as the former regular expression.
+     */
+    @Test
+    public void greedy_variables() {
+        UriTemplateValidator.UriTemplate t =
+                new UriTemplateValidator.UriTemplate("search/{1},{2}");
+
+        Map<String, String> resultMap = t.match("search/a,b,c");
+
+        assertEquals(" key should match", "a,b", resultMap.get("1"));
+        assertEquals(" key should match", "c", resultMap.get("2"));
+    }
+
+    /**
+     * Long query string that used to backtrack heavily. Match and no match
+     * both finish in linear time.
+     */
+    @Test
+    public void long_query_string() {
+        UriTemplateValidator.UriTemplate t =
+                new UriTemplateValidator.UriTemplate(
+                        "first?by=length%3D{length},length%3D{length2},length%3D{length3},length%3D{length4}");
+
+        StringBuilder uri = new StringBuilder("first?by=");
+        for (int i = 0; i < 5000; i++) {
+            uri.append("length%3D,");
+        }
+        assertTrue(t.matches(uri.toString()));
+
+        uri.setLength(uri.length() - 1);
+        uri.append("length%3");
+        assertTrue(t.matches(uri.toString()));
+        assertFalse(t.matches(uri.toString().replace("length", "width")));
+    }
+
+    /**
+     * Input above the work budget is rejected.
+     */
+    @Test
+    public void work_budget() {
+        UriTemplateValidator.UriTemplate t =
+                new UriTemplateValidator.UriTemplate("id={id}", 100);
+
+        assertTrue(t.matches("id=123"));
+        assertFalse(t.matches("id=" + new String(new char[100]).replace('\0', '1')));
+    }
+
+    /**
+     * Boolean-only mode with filter on each variable value.
+     */
+    @Test
+    public void match_region_with_filter() {
+        UriTemplateValidator.UriTemplate t =
+                new UriTemplateValidator.UriTemplate("{A}.{B}");
+        String uri = "image/123.png/info";
+
+        assertTrue(t.matches(uri, 6, 13, null));
+        assertFalse(t.matches(uri, 6, 13, new VariableFilter() {
+            @Override
+            public boolean accept(int index, CharSequence s, int start, int end) {
+                return index != 1 || end - start > 3;
+            }
+        }));
+    }
+
+    /**
+     * Parts of url, as offsets
+     */
+    @Test
+    public void url_scanner() {
+        UrlScanner scanner = new UrlScanner();
+        assertEquals("UrlScanner [scheme=http, userInfo=user:pw, host=[::1], port=8080, "
+                        + "path=/image/123.jpg, query=size=2, fragment=top]",
+                scanner.scan("http://user:pw@[::1]:8080/image/123.jpg?size=2#top").toString());
+        assertEquals("UrlScanner [scheme=https, userInfo=null, host=prodigi.com, port=null, "
+                        + "path=, query=q=1/2, fragment=null]",
+                scanner.scan("https://prodigi.com?q=1/2").toString());
+        assertEquals("UrlScanner [scheme=null, userInfo=null, host=null, port=null, "
+                        + "path=/image/{id}, query=by={by}, fragment=null]",
+                scanner.scan("/image/{id}?by={by}").toString());
+        assertEquals("UrlScanner [scheme=mailto, userInfo=null, host=null, port=null, "
+                        + "path=a@prodigi.com, query=null, fragment=null]",
+                scanner.scan("mailto:a@prodigi.com").toString());
+        assertEquals(-1, scanner.authorityStart());
+
+        assertEquals("image/123", uriTemplateValidator.removeHttpHostAndPort("http://[::1]:80/image/123"));
+        assertEquals("", uriTemplateValidator.removeHttpHostAndPort("http://prodigi.com"));
+        assertEquals("?q=1", uriTemplateValidator.removeHttpHostAndPort("http://prodigi.com?q=1"));
+        assertEquals("/image/123", uriTemplateValidator.removeHttpHostAndPort("/image/123"));
+        assertEquals(0, UrlScanner.pathAfterAuthority("//prodigi.com/image/123"));
+    }
+
+    /**
+     * Compiled templates are kept, by template as given
+     */
+    @Test
+    public void compiled_template_cache() {
+        UriTemplateValidator validator = new UriTemplateValidator(2);
+        UriTemplateValidator.UriTemplate template =
+                validator.compile("http://prodigi.com/image/{imageId}");
+        assertEquals("image/{imageId}", template.toString());
+        assertTrue(template == validator.compile("http://prodigi.com/image/{imageId}"));
+        assertEquals("123.jpg", validator.matches("http://prodigi.com/image/123.jpg",
+                "http://prodigi.com/image/{imageId}").get("imageId"));
+        assertEquals(1, validator.getCacheSize());
+
+        // bounded
+        validator.compile("/a/{b}");
+        validator.compile("/c/{d}");
+        assertEquals(2, validator.getCacheSize());
+        assertTrue(validator.isMatch("http://prodigi.com/c/1", "/c/{d}"));
+
+        validator.clearCache();
+        assertEquals(0, validator.getCacheSize());
+
+        UriTemplateValidator uncached = new UriTemplateValidator(0);
+        assertTrue(uncached.isMatch("/a/1", "/a/{b}"));
+        assertEquals(0, uncached.getCacheSize());
+    }
+
+    /**
+     * Characters allowed in variable values, by lookup table
+     */
+    @Test
+    public void char_policy() {
+        CharPolicy policy = CharPolicy.DEFAULT;
+        assertTrue(policy.isValid("abc-._~!$'()*+%"));
+        assertTrue(policy.isValid("\u007f\u0100"));
+        for (char c : "&,/:;=?@\"<>#{}|\\^[]` \t\u0000\u0080\u00ff".toCharArray()) {
+            assertFalse(String.valueOf(c), policy.isAllowed(c));
+        }
+        assertFalse(policy.isValid("ab cd", 1, 4));
+        assertTrue(policy.isValid("ab cd", 3, 5));
+
+        policy = CharPolicy.UNRESERVED;
+        assertTrue(policy.isValid("Az09-._~"));
+        assertFalse(policy.isValid("a!b"));
+        assertFalse(policy.isValid("\u0100"));
+        assertTrue(policy.allow(",:").isValid("1,2:3"));
+        assertTrue(policy.nonAscii(CharPolicy.NonAscii.ALLOW).isValid("caf\u00e9"));
+        assertFalse(policy.allow(",").reject(",").isValid(","));
+
+        // percent-encoded octets only
+        policy = CharPolicy.UNRESERVED.allowPercentEncoded();
+        assertTrue(policy.isValid("a%2Cb%e9"));
+        assertFalse(policy.isValid("a%2"));
+        assertFalse(policy.isValid("a%zz"));
+        assertFalse(policy.isValid("%"));
+
+        // checked while matching, as a VariableFilter
+        UriTemplateValidator.UriTemplate template =
+                new UriTemplateValidator.UriTemplate("{A},{B}");
+        assertTrue(template.matches("1,2", 0, 3, CharPolicy.UNRESERVED));
+        assertFalse(template.matches("1,2,3", 0, 5, CharPolicy.UNRESERVED));
+        assertTrue(template.matches("1,2,3", 0, 5, CharPolicy.UNRESERVED.allow(",")));
+    }
+
     /**
      * Print each Map KV pair to console for debugging purpose
      *